@@ -7,6 +7,8 @@
  */
 package org.openimmunizationsoftware.dqa.construct;
 
+import java.io.IOException;
+
 import org.openimmunizationsoftware.dqa.db.model.MessageReceived;
 
 public interface ConstructerInterface
@@ -16,4 +18,13 @@ public interface ConstructerInterface
   public String makeHeader(MessageReceived messageReceived);
 
   public String makeFooter(MessageReceived messageReceived);
+
+  /**
+   * Writes the message straight to out instead of building a String for it.
+   */
+  public void constructMessage(MessageReceived messageReceived, Appendable out) throws IOException;
+
+  public void makeHeader(MessageReceived messageReceived, Appendable out) throws IOException;
+
+  public void makeFooter(MessageReceived messageReceived, Appendable out) throws IOException;
 }
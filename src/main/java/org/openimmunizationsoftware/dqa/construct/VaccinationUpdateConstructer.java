@@ -7,8 +7,11 @@
  */
 package org.openimmunizationsoftware.dqa.construct;
 
+import java.io.IOException;
 import java.text.SimpleDateFormat;
+import java.util.Arrays;
 import java.util.Date;
+import java.util.concurrent.atomic.AtomicInteger;
 
 import org.openimmunizationsoftware.dqa.db.model.KeyedSetting;
 import org.openimmunizationsoftware.dqa.db.model.MessageReceived;
@@ -24,21 +27,46 @@ import org.openimmunizationsoftware.dqa.db.model.received.types.OrganizationName
 import org.openimmunizationsoftware.dqa.db.model.received.types.PhoneNumber;
 import org.openimmunizationsoftware.dqa.manager.KeyedSettingManager;
 
+/**
+ * Builds VXU messages and the batch header and footer around them. Segments
+ * are written straight to the Appendable given, using a field buffer and
+ * date formats kept for each thread, so one constructer can be used by
+ * several threads at once.
+ */
 public class VaccinationUpdateConstructer implements ConstructerInterface
 {
+  private static final int FIELD_COUNT = 60;
 
   private SubmitterProfile profile = null;
-  private StringBuilder out;
-  private String[] fields;
   private Date generationDate = new Date();
+  private String generationDateText = null;
   private KeyedSettingManager ksm = KeyedSettingManager.getKeyedSettingManager();
-  private SimpleDateFormat dateTimezoneFormat = new SimpleDateFormat("yyyyMMddHHmmssZ");
-  private SimpleDateFormat dateTimeFormat = new SimpleDateFormat("yyMMddHHmmss");
-  private int increment = 0;
+  private AtomicInteger increment = new AtomicInteger();
   private String orgLocalCode = "";
 
+  /**
+   * Field buffer and date formats for one thread. SimpleDateFormat can not be
+   * shared between threads.
+   */
+  private static class SegmentWriter
+  {
+    private Appendable out = null;
+    private String[] fields = new String[FIELD_COUNT];
+    private SimpleDateFormat dateTimezoneFormat = new SimpleDateFormat("yyyyMMddHHmmssZ");
+    private SimpleDateFormat dateOnlyFormat = new SimpleDateFormat("yyyyMMdd");
+  }
+
+  private static final ThreadLocal<SegmentWriter> segmentWriter = new ThreadLocal<SegmentWriter>() {
+    @Override
+    protected SegmentWriter initialValue()
+    {
+      return new SegmentWriter();
+    }
+  };
+
   public VaccinationUpdateConstructer(SubmitterProfile profile) {
     this.profile = profile;
+    generationDateText = new SimpleDateFormat("yyMMddHHmmss").format(generationDate);
     orgLocalCode = profile.getOrganization() == null ? "" : profile.getOrganization().getOrgLocalCode();
     if (orgLocalCode == null || orgLocalCode.equals(""))
     {
@@ -52,40 +80,65 @@ public class VaccinationUpdateConstructer implements ConstructerInterface
   
   public String constructMessage(MessageReceived messageReceived)
   {
-    out = new StringBuilder();
-    makeMSH(messageReceived);
-    Patient patient = messageReceived.getPatient();
-    if (patient != null)
+    StringBuilder out = new StringBuilder();
+    try
     {
-      makePID(patient);
+      constructMessage(messageReceived, out);
+    } catch (IOException ioe)
+    {
+      // StringBuilder does not throw
     }
-    int pos = 0;
-    for (NextOfKin nextOfKin : messageReceived.getNextOfKins())
+    return out.toString();
+  }
+
+  public void constructMessage(MessageReceived messageReceived, Appendable out) throws IOException
+  {
+    SegmentWriter sw = open(out);
+    try
     {
-      if (!nextOfKin.isSkipped())
+      makeMSH(sw, messageReceived);
+      Patient patient = messageReceived.getPatient();
+      if (patient != null)
       {
-        pos++;
-        makeNK1(nextOfKin, pos);
+        makePID(sw, patient);
       }
-    }
-    makePV1(patient);
-    for (Vaccination vaccination : messageReceived.getVaccinations())
-    {
-      if (!vaccination.isSkipped())
+      int pos = 0;
+      for (NextOfKin nextOfKin : messageReceived.getNextOfKins())
       {
-        makeORC(vaccination);
-        makeRXA(vaccination);
+        if (!nextOfKin.isSkipped())
+        {
+          pos++;
+          makeNK1(sw, nextOfKin, pos);
+        }
       }
+      makePV1(sw, patient);
+      for (Vaccination vaccination : messageReceived.getVaccinations())
+      {
+        if (!vaccination.isSkipped())
+        {
+          makeORC(sw, vaccination);
+          makeRXA(sw, vaccination);
+        }
+      }
+    } finally
+    {
+      sw.out = null;
     }
-    return out.toString();
   }
 
-  private void makeRXA(Vaccination vaccination)
+  private SegmentWriter open(Appendable out)
+  {
+    SegmentWriter sw = segmentWriter.get();
+    sw.out = out;
+    return sw;
+  }
+
+  private void makeRXA(SegmentWriter sw, Vaccination vaccination) throws IOException
   {
-    makeSegment("RXA");
+    String[] fields = makeSegment(sw, "RXA");
     fields[1] = "0";
     fields[2] = "999";
-    fields[3] = makeFieldDateOnly(vaccination.getAdminDate());
+    fields[3] = makeFieldDateOnly(sw, vaccination.getAdminDate());
     if (isEmpty(vaccination.getAdminCptCode()))
     {
       fields[5] = makeField(vaccination.getAdminCvxCode(), vaccination.getAdminCvx().getTable(), "CVX");
@@ -112,37 +165,37 @@ public class VaccinationUpdateConstructer implements ConstructerInterface
     fields[11] = makeField(vaccination.getFacility());
     fields[15] = makeField(vaccination.getLotNumber());
     fields[17] = makeField(vaccination.getManufacturer());
-    printFields();
+    printFields(sw);
   }
 
-  private void makeORC(Vaccination vaccination)
+  private void makeORC(SegmentWriter sw, Vaccination vaccination) throws IOException
   {
-    makeSegment("ORC");
+    String[] fields = makeSegment(sw, "ORC");
     fields[1] = "RE";
     fields[2] = vaccination.getIdSubmitter();
-    printFields();
+    printFields(sw);
   }
 
-  private void makePV1(Patient patient)
+  private void makePV1(SegmentWriter sw, Patient patient) throws IOException
   {
-    makeSegment("PV1");
+    String[] fields = makeSegment(sw, "PV1");
     fields[2] = "R";
     fields[20] = makeField(patient.getFinancialEligibilityCode());
-    printFields();
+    printFields(sw);
   }
 
-  private void makeNK1(NextOfKin nextOfKin, int pos)
+  private void makeNK1(SegmentWriter sw, NextOfKin nextOfKin, int pos) throws IOException
   {
-    makeSegment("NK1");
+    String[] fields = makeSegment(sw, "NK1");
     fields[1] = String.valueOf(pos);
     fields[2] = makeField(nextOfKin.getName());
     fields[3] = makeField(nextOfKin.getRelationship());
-    printFields();
+    printFields(sw);
   }
 
-  private void makePID(Patient patient)
+  private void makePID(SegmentWriter sw, Patient patient) throws IOException
   {
-    makeSegment("PID");
+    String[] fields = makeSegment(sw, "PID");
     fields[3] = makeFieldIdOnly(patient.getIdSubmitter());
     if (!isEmpty(patient.getIdSsnNumber()))
     {
@@ -154,7 +207,7 @@ public class VaccinationUpdateConstructer implements ConstructerInterface
     }
     fields[5] = makeField(patient.getName());
     fields[6] = makeField(patient.getMotherMaidenName());
-    fields[7] = makeFieldDateOnly(patient.getBirthDate());
+    fields[7] = makeFieldDateOnly(sw, patient.getBirthDate());
     fields[8] = makeField(patient.getSexCode());
     fields[10] = makeField(patient.getRace());
     fields[11] = makeField(patient.getAddress());
@@ -168,52 +221,87 @@ public class VaccinationUpdateConstructer implements ConstructerInterface
     {
       fields[24] = "N";
     }
-    printFields();
+    printFields(sw);
   }
   
   public String makeHeader(MessageReceived messageReceived)
   {
-    out = new StringBuilder();
-    makeSegment("FHS");
-    fields[3] = makeField(ksm.getKeyedValue(KeyedSetting.OUT_HL7_MSH_SENDING_APPLICATION, "DQA"));
-    fields[4] = makeField(messageReceived.getMessageHeader().getSendingFacility());
-    fields[5] = ksm.getKeyedValue(KeyedSetting.OUT_HL7_MSH_RECEIVING_APPLICATION, "TxImmTrac");
-    fields[6] = ksm.getKeyedValue(KeyedSetting.OUT_HL7_MSH_RECEIVING_APPLICATION, "TxDSHS");
-    fields[7] = dateTimezoneFormat.format(messageReceived.getReceivedDate());
-    printFields();
-    makeSegment("BHS");
+    StringBuilder out = new StringBuilder();
+    try
+    {
+      makeHeader(messageReceived, out);
+    } catch (IOException ioe)
+    {
+      // StringBuilder does not throw
+    }
+    return out.toString();
+  }
+
+  public void makeHeader(MessageReceived messageReceived, Appendable out) throws IOException
+  {
+    SegmentWriter sw = open(out);
+    try
+    {
+      makeBatchSegment(sw, messageReceived, "FHS");
+      makeBatchSegment(sw, messageReceived, "BHS");
+    } finally
+    {
+      sw.out = null;
+    }
+  }
+
+  private void makeBatchSegment(SegmentWriter sw, MessageReceived messageReceived, String segmentName) throws IOException
+  {
+    String[] fields = makeSegment(sw, segmentName);
     fields[3] = makeField(ksm.getKeyedValue(KeyedSetting.OUT_HL7_MSH_SENDING_APPLICATION, "DQA"));
     fields[4] = makeField(messageReceived.getMessageHeader().getSendingFacility());
     fields[5] = ksm.getKeyedValue(KeyedSetting.OUT_HL7_MSH_RECEIVING_APPLICATION, "TxImmTrac");
     fields[6] = ksm.getKeyedValue(KeyedSetting.OUT_HL7_MSH_RECEIVING_APPLICATION, "TxDSHS");
-    fields[7] = dateTimezoneFormat.format(messageReceived.getReceivedDate());
-    printFields();
-    return out.toString();
+    fields[7] = sw.dateTimezoneFormat.format(messageReceived.getReceivedDate());
+    printFields(sw);
   }
 
   public String makeFooter(MessageReceived messageReceived)
   {
-    out = new StringBuilder();
-    makeSegment("BTS");
-    printFields();
-    makeSegment("FTS");
-    printFields();
+    StringBuilder out = new StringBuilder();
+    try
+    {
+      makeFooter(messageReceived, out);
+    } catch (IOException ioe)
+    {
+      // StringBuilder does not throw
+    }
     return out.toString();
   }
 
-  private void makeMSH(MessageReceived messageReceived)
+  public void makeFooter(MessageReceived messageReceived, Appendable out) throws IOException
   {
-    makeSegment("MSH");
+    SegmentWriter sw = open(out);
+    try
+    {
+      makeSegment(sw, "BTS");
+      printFields(sw);
+      makeSegment(sw, "FTS");
+      printFields(sw);
+    } finally
+    {
+      sw.out = null;
+    }
+  }
+
+  private void makeMSH(SegmentWriter sw, MessageReceived messageReceived) throws IOException
+  {
+    String[] fields = makeSegment(sw, "MSH");
     fields[3] = makeField(ksm.getKeyedValue(KeyedSetting.OUT_HL7_MSH_SENDING_APPLICATION, "DQA"));
     fields[4] = makeField(messageReceived.getMessageHeader().getSendingFacility());
     fields[5] = ksm.getKeyedValue(KeyedSetting.OUT_HL7_MSH_RECEIVING_APPLICATION, "TxImmTrac");
     fields[6] = ksm.getKeyedValue(KeyedSetting.OUT_HL7_MSH_RECEIVING_FACILITY, "TxDSHS");
-    fields[7] = dateTimezoneFormat.format(messageReceived.getReceivedDate());
+    fields[7] = sw.dateTimezoneFormat.format(messageReceived.getReceivedDate());
     fields[9] = makeField("VXU", "V04");
-    fields[10] = (++increment) + "-" + dateTimeFormat.format(generationDate);
+    fields[10] = increment.incrementAndGet() + "-" + generationDateText;
     fields[11] = makeField(ksm.getKeyedValue(KeyedSetting.OUT_HL7_MSH_PROCESSING_ID, "P"));
     fields[12] = makeField(ksm.getKeyedValue(KeyedSetting.OUT_HL7_MSH_VERSION_ID, "2.5"));
-    printFields();
+    printFields(sw);
   }
 
   protected Date getGenerationDate()
@@ -221,14 +309,18 @@ public class VaccinationUpdateConstructer implements ConstructerInterface
     return generationDate;
   }
 
-  private void makeSegment(String segmentName)
+  private String[] makeSegment(SegmentWriter sw, String segmentName)
   {
-    fields = new String[60];
+    String[] fields = sw.fields;
+    Arrays.fill(fields, null);
     fields[0] = segmentName;
+    return fields;
   }
 
-  private void printFields()
+  private void printFields(SegmentWriter sw) throws IOException
   {
+    Appendable out = sw.out;
+    String[] fields = sw.fields;
     out.append(fields[0]);
     out.append("|");
     int pos = 1;
@@ -311,15 +403,13 @@ public class VaccinationUpdateConstructer implements ConstructerInterface
     return sb.toString();
   }
 
-  SimpleDateFormat dateOnlyFormat = new SimpleDateFormat("yyyyMMdd");
-
-  private String makeFieldDateOnly(Date date)
+  private String makeFieldDateOnly(SegmentWriter sw, Date date)
   {
     if (date == null)
     {
       return null;
     }
-    return dateOnlyFormat.format(date);
+    return sw.dateOnlyFormat.format(date);
   }
 
   private String makeField(CodedEntity ce)
@@ -68,6 +68,7 @@ public class BatchReport implements Serializable
   private int timelinessCountVeryLate = 0;
   private Date timelinessDateFirst = null;
   private Date timelinessDateLast = null;
+  private LatencyHistogram timelinessHistogram = new LatencyHistogram();
   private int timelinessScore = 0;
   private int timelinessScoreEarly = 0;
   private int timelinessScoreLate = 0;
@@ -111,6 +112,7 @@ public class BatchReport implements Serializable
     timelinessCountOldData += report.getTimelinessCountOldData();
     timelinessDateFirst = min(timelinessDateFirst, report.getTimelinessDateFirst());
     timelinessDateLast = max(timelinessDateLast, report.getTimelinessDateLast());
+    timelinessHistogram.merge(report.getTimelinessHistogram());
     vaccinationAdministeredCount += report.getVaccinationAdministeredCount();
     vaccinationDeleteCount += report.getVaccinationDeleteCount();
     vaccinationHistoricalCount += report.getVaccinationHistoricalCount();
@@ -200,6 +202,25 @@ public class BatchReport implements Serializable
     return timelinessAverage;
   }
 
+  /**
+   * Delay between administration and receipt for each message with an
+   * administered vaccination.
+   */
+  public LatencyHistogram getTimelinessHistogram()
+  {
+    return timelinessHistogram;
+  }
+
+  public String getTimelinessHistogramText()
+  {
+    return timelinessHistogram.toText();
+  }
+
+  public void setTimelinessHistogramText(String timelinessHistogramText)
+  {
+    this.timelinessHistogram = LatencyHistogram.fromText(timelinessHistogramText);
+  }
+
   public int getTimelinessCountEarly()
   {
     return timelinessCountEarly;
@@ -56,13 +56,19 @@ public class KeyedSetting implements Serializable
   public static final String WEEKLY_BATCH_DAY = "weekly.batch.day";
   public static final String WEEKLY_BATCH_END_TIME = "weekly.batch.end_time";
   public static final String WEEKLY_BATCH_START_TIME = "weekly.batch.start_time";
+  public static final String WEEKLY_EXPORT_CHARSET = "weekly.export.charset";
+  public static final String WEEKLY_EXPORT_CHECKPOINT_PATIENTS = "weekly.export.checkpoint.patients";
   public static final String WEEKLY_EXPORT_DAY_HIGH = "weekly.export.day.high";
   public static final String WEEKLY_EXPORT_DAY_HIGHEST = "weekly.export.day.highest";
   public static final String WEEKLY_EXPORT_DAY_LOW = "weekly.export.day.low";
   public static final String WEEKLY_EXPORT_DAY_LOWEST = "weekly.export.day.lowest";
   public static final String WEEKLY_EXPORT_DAY_NORMAL = "weekly.export.day.normal";
   public static final String WEEKLY_EXPORT_END_TIME = "weekly.export.end_time";
+  public static final String WEEKLY_EXPORT_GZIP_ENABLED = "weekly.export.gzip.enabled";
+  public static final String WEEKLY_EXPORT_SCHEDULE = "weekly.export.schedule";
+  public static final String WEEKLY_EXPORT_SORT_EXTERNAL = "weekly.export.sort.external";
   public static final String WEEKLY_EXPORT_START_TIME = "weekly.export.start_time";
+  public static final String WEEKLY_EXPORT_THREADS = "weekly.export.threads";
   public static final String UPLOAD_ENABLED = "upload.enabled";
   public static final String UPLOAD_DIR = "upload.dir";
   public static final String REMOTE_ENABLED = "remote.enabled";
@@ -72,6 +78,24 @@ public class KeyedSetting implements Serializable
   public static final String CDS_SOFTWARE_SERVICE_URL = "cds_software.service_url";
   public static final String CDS_SOFTWARE_SERVICE_TYPE = "cds_software.service_type";
   public static final String CDS_SOFTWARE_SCHEDULE_NAME = "cds_software.schedule_name"; 
+  public static final String CDS_SOFTWARE_SERVICE_TIMEOUT = "cds_software.service.timeout";
+  public static final String CDS_SOFTWARE_SERVICE_THREADS = "cds_software.service.threads";
+  public static final String CDS_SOFTWARE_CACHE_SIZE = "cds_software.cache.size";
+  public static final String CDS_SOFTWARE_STUB_DELAY = "cds_software.stub.delay";
+  public static final String QUERY_HISTORY_CACHE_ENABLED = "query.history_cache.enabled";
+  public static final String QUERY_HISTORY_CACHE_SIZE = "query.history_cache.size";
+  public static final String ADMISSION_ENABLED = "admission.enabled";
+  public static final String ADMISSION_MAX_CONCURRENT = "admission.max_concurrent";
+  public static final String ADMISSION_MAX_CONCURRENT_PROFILE = "admission.max_concurrent_profile";
+  public static final String ADMISSION_QUEUE_SIZE = "admission.queue_size";
+  public static final String ADMISSION_MAX_WAIT = "admission.max_wait";
+  public static final String DEDUPE_ENABLED = "dedupe.enabled";
+  public static final String DEDUPE_INDEX_SIZE = "dedupe.index_size";
+  public static final String DEDUPE_WINDOW_MINUTES = "dedupe.window_minutes";
+  public static final String ANALYSIS_REPORT_THREADS = "analysis_report.threads";
+  public static final String ANALYSIS_REPORT_ZIP_ENABLED = "analysis_report.zip.enabled";
+  public static final String SCHEDULER_THREADS = "scheduler.threads";
+  public static final String WARMUP_MAX_WAIT = "warmup.max_wait";
 
   private String keyedCode = "";
   private int keyedId = 0;
@@ -0,0 +1,184 @@
+/*
+ * Copyright 2013 by Dandelion Software & Research, Inc (DSR)
+ * 
+ * This application was written for immunization information system (IIS) community and has
+ * been released by DSR under an Apache 2 License with the hope that this software will be used
+ * to improve Public Health.  
+ */
+package org.openimmunizationsoftware.dqa.db.model;
+
+import java.io.Serializable;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+
+/**
+ * Counts of delays, in minutes, kept in a fixed number of buckets that grow
+ * logarithmically. Delays under 16 minutes are counted exactly, beyond that
+ * each power of two is split into 8 buckets, so any delay is known to within
+ * about 12%. Histograms can be recorded into from several threads and merged,
+ * and percentiles taken from a merged histogram are the same as if every delay
+ * had been recorded into one.
+ */
+public class LatencyHistogram implements Serializable
+{
+  private static final long serialVersionUID = 1l;
+
+  private static final long MILLIS_PER_MINUTE = 60 * 1000;
+  private static final double MINUTES_PER_DAY = 24 * 60;
+  private static final int SUB_BUCKET_BITS = 3;
+  private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+  private static final int EXACT_LIMIT = SUB_BUCKET_COUNT * 2;
+  private static final int MAX_POWER = 40;
+  private static final int BUCKET_COUNT = EXACT_LIMIT + (MAX_POWER - SUB_BUCKET_BITS) * SUB_BUCKET_COUNT;
+
+  private AtomicIntegerArray counts = new AtomicIntegerArray(BUCKET_COUNT);
+
+  /**
+   * Records one delay given in milliseconds. Negative delays are counted as
+   * zero.
+   */
+  public void record(long delayMillis)
+  {
+    counts.incrementAndGet(getBucket(delayMillis < 0 ? 0 : delayMillis / MILLIS_PER_MINUTE));
+  }
+
+  public void merge(LatencyHistogram other)
+  {
+    for (int i = 0; i < BUCKET_COUNT; i++)
+    {
+      int count = other.counts.get(i);
+      if (count > 0)
+      {
+        counts.addAndGet(i, count);
+      }
+    }
+  }
+
+  public int getCount()
+  {
+    int count = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++)
+    {
+      count += counts.get(i);
+    }
+    return count;
+  }
+
+  /**
+   * Returns the delay in days that the given fraction (such as 0.9) of the
+   * recorded delays are at or below, or 0 if nothing has been recorded. The
+   * value returned is the upper end of the bucket the percentile falls in.
+   */
+  public double getPercentileDays(double fraction)
+  {
+    int total = getCount();
+    if (total == 0)
+    {
+      return 0.0;
+    }
+    long target = (long) Math.ceil(fraction * total);
+    if (target < 1)
+    {
+      target = 1;
+    }
+    long seen = 0;
+    for (int i = 0; i < BUCKET_COUNT; i++)
+    {
+      seen += counts.get(i);
+      if (seen >= target)
+      {
+        return getBucketLimit(i) / MINUTES_PER_DAY;
+      }
+    }
+    return getBucketLimit(BUCKET_COUNT - 1) / MINUTES_PER_DAY;
+  }
+
+  public double getMedianDays()
+  {
+    return getPercentileDays(0.5);
+  }
+
+  /**
+   * Returns the counts as a compact list of bucket:count pairs, leaving out
+   * empty buckets, for example "0:12,9:3,14:1".
+   */
+  public String toText()
+  {
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < BUCKET_COUNT; i++)
+    {
+      int count = counts.get(i);
+      if (count > 0)
+      {
+        if (sb.length() > 0)
+        {
+          sb.append(',');
+        }
+        sb.append(i);
+        sb.append(':');
+        sb.append(count);
+      }
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Reads counts written by {@link #toText()}. Anything that cannot be read is
+   * skipped.
+   */
+  public static LatencyHistogram fromText(String text)
+  {
+    LatencyHistogram latencyHistogram = new LatencyHistogram();
+    if (text != null && !text.equals(""))
+    {
+      for (String pair : text.split(","))
+      {
+        int pos = pair.indexOf(':');
+        if (pos > 0)
+        {
+          try
+          {
+            int bucket = Integer.parseInt(pair.substring(0, pos).trim());
+            int count = Integer.parseInt(pair.substring(pos + 1).trim());
+            if (bucket >= 0 && bucket < BUCKET_COUNT)
+            {
+              latencyHistogram.counts.addAndGet(bucket, count);
+            }
+          } catch (NumberFormatException nfe)
+          {
+            // skip
+          }
+        }
+      }
+    }
+    return latencyHistogram;
+  }
+
+  protected static int getBucket(long minutes)
+  {
+    if (minutes < EXACT_LIMIT)
+    {
+      return (int) minutes;
+    }
+    int power = 63 - Long.numberOfLeadingZeros(minutes);
+    if (power >= MAX_POWER + 1)
+    {
+      return BUCKET_COUNT - 1;
+    }
+    int subBucket = (int) (minutes >>> (power - SUB_BUCKET_BITS)) - SUB_BUCKET_COUNT;
+    return EXACT_LIMIT + (power - SUB_BUCKET_BITS - 1) * SUB_BUCKET_COUNT + subBucket;
+  }
+
+  /**
+   * Returns the largest number of minutes that falls in the bucket.
+   */
+  protected static long getBucketLimit(int bucket)
+  {
+    if (bucket < EXACT_LIMIT)
+    {
+      return bucket;
+    }
+    int power = (bucket - EXACT_LIMIT) / SUB_BUCKET_COUNT + SUB_BUCKET_BITS + 1;
+    int subBucket = (bucket - EXACT_LIMIT) % SUB_BUCKET_COUNT;
+    return ((long) (SUB_BUCKET_COUNT + subBucket + 1) << (power - SUB_BUCKET_BITS)) - 1;
+  }
+}
@@ -25,6 +25,9 @@ public class MessageBatch implements Serializable
   private BatchType batchType = null;
   private Map<VaccineCvx, BatchVaccineCvx> batchVaccineCvxMap = new HashMap<VaccineCvx, BatchVaccineCvx>();
   private Date endDate = null;
+  private Integer exportCheckpointCount = null;
+  private String exportCheckpointKey = null;
+  private Long exportCheckpointSize = null;
   private SubmitterProfile profile = null;
   private BatchReport batchReport = new BatchReport();
   private Date startDate = null;
@@ -123,6 +126,31 @@ public class MessageBatch implements Serializable
     return endDate;
   }
 
+  /**
+   * Number of messages in the export file as of the last checkpoint.
+   */
+  public Integer getExportCheckpointCount()
+  {
+    return exportCheckpointCount;
+  }
+
+  /**
+   * Sort key of the last patient exported before the last checkpoint.
+   */
+  public String getExportCheckpointKey()
+  {
+    return exportCheckpointKey;
+  }
+
+  /**
+   * Size of the export file as of the last checkpoint, or null if the export
+   * has not been checkpointed.
+   */
+  public Long getExportCheckpointSize()
+  {
+    return exportCheckpointSize;
+  }
+
   public SubmitterProfile getProfile()
   {
     return profile;
@@ -179,6 +207,21 @@ public class MessageBatch implements Serializable
     this.endDate = endDate;
   }
 
+  public void setExportCheckpointCount(Integer exportCheckpointCount)
+  {
+    this.exportCheckpointCount = exportCheckpointCount;
+  }
+
+  public void setExportCheckpointKey(String exportCheckpointKey)
+  {
+    this.exportCheckpointKey = exportCheckpointKey;
+  }
+
+  public void setExportCheckpointSize(Long exportCheckpointSize)
+  {
+    this.exportCheckpointSize = exportCheckpointSize;
+  }
+
   public void setProfile(SubmitterProfile profile)
   {
     this.profile = profile;
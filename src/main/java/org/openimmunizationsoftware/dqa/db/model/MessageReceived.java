@@ -28,6 +28,17 @@ public class MessageReceived extends MessageReceivedGeneric
   private List<Vaccination> vaccinations = new ArrayList<Vaccination>();
   
   private int internalTemporaryId = 0;
+  private String contentHash = null;
+
+  public String getContentHash()
+  {
+    return contentHash;
+  }
+
+  public void setContentHash(String contentHash)
+  {
+    this.contentHash = contentHash;
+  }
   
   public int getInternalTemporaryId()
   {
@@ -0,0 +1,195 @@
+/*
+ * Copyright 2013 by Dandelion Software & Research, Inc (DSR)
+ * 
+ * This application was written for immunization information system (IIS) community and has
+ * been released by DSR under an Apache 2 License with the hope that this software will be used
+ * to improve Public Health.  
+ */
+package org.openimmunizationsoftware.dqa.db.model;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Date;
+import java.util.List;
+
+/**
+ * Consolidated immunization history for one submitter patient id. Rather than
+ * storing the history itself this row records which patient, next-of-kin,
+ * vaccination and immunity records make up the current consolidated view, in
+ * the order they should be returned.
+ */
+public class PatientHistory implements Serializable
+{
+  private static final long serialVersionUID = 1L;
+
+  private static final String ID_SEPARATOR = ",";
+
+  private int historyId = 0;
+  private int version = 0;
+  private SubmitterProfile profile = null;
+  private String idSubmitterNumber = "";
+  private String nameFirst = "";
+  private String nameLast = "";
+  private boolean nameConsistent = true;
+  private long patientId = 0l;
+  private String vaccinationIds = "";
+  private String nextOfKinIds = "";
+  private String immunityIds = "";
+  private Date updatedDate = null;
+
+  public static String joinIds(Collection<? extends Number> ids)
+  {
+    StringBuilder sb = new StringBuilder();
+    for (Number id : ids)
+    {
+      if (sb.length() > 0)
+      {
+        sb.append(ID_SEPARATOR);
+      }
+      sb.append(id);
+    }
+    return sb.toString();
+  }
+
+  public static List<Long> splitIds(String ids)
+  {
+    List<Long> idList = new ArrayList<Long>();
+    if (ids != null && !ids.equals(""))
+    {
+      for (String id : ids.split(ID_SEPARATOR))
+      {
+        idList.add(Long.parseLong(id));
+      }
+    }
+    return idList;
+  }
+
+  public int getHistoryId()
+  {
+    return historyId;
+  }
+
+  public void setHistoryId(int historyId)
+  {
+    this.historyId = historyId;
+  }
+
+  /**
+   * Incremented by Hibernate each time the row is updated, used to tell if a
+   * history held in memory is still current.
+   */
+  public int getVersion()
+  {
+    return version;
+  }
+
+  public void setVersion(int version)
+  {
+    this.version = version;
+  }
+
+  public SubmitterProfile getProfile()
+  {
+    return profile;
+  }
+
+  public void setProfile(SubmitterProfile profile)
+  {
+    this.profile = profile;
+  }
+
+  public String getIdSubmitterNumber()
+  {
+    return idSubmitterNumber;
+  }
+
+  public void setIdSubmitterNumber(String idSubmitterNumber)
+  {
+    this.idSubmitterNumber = idSubmitterNumber;
+  }
+
+  public String getNameFirst()
+  {
+    return nameFirst;
+  }
+
+  public void setNameFirst(String nameFirst)
+  {
+    this.nameFirst = nameFirst;
+  }
+
+  public String getNameLast()
+  {
+    return nameLast;
+  }
+
+  public void setNameLast(String nameLast)
+  {
+    this.nameLast = nameLast;
+  }
+
+  /**
+   * @return true if every accepted message for this patient id carried the
+   *         same first and last name (ignoring case)
+   */
+  public boolean isNameConsistent()
+  {
+    return nameConsistent;
+  }
+
+  public void setNameConsistent(boolean nameConsistent)
+  {
+    this.nameConsistent = nameConsistent;
+  }
+
+  public long getPatientId()
+  {
+    return patientId;
+  }
+
+  public void setPatientId(long patientId)
+  {
+    this.patientId = patientId;
+  }
+
+  public String getVaccinationIds()
+  {
+    return vaccinationIds;
+  }
+
+  public void setVaccinationIds(String vaccinationIds)
+  {
+    this.vaccinationIds = vaccinationIds;
+  }
+
+  public String getNextOfKinIds()
+  {
+    return nextOfKinIds;
+  }
+
+  public void setNextOfKinIds(String nextOfKinIds)
+  {
+    this.nextOfKinIds = nextOfKinIds;
+  }
+
+  public String getImmunityIds()
+  {
+    return immunityIds;
+  }
+
+  public void setImmunityIds(String immunityIds)
+  {
+    this.immunityIds = immunityIds;
+  }
+
+  public Date getUpdatedDate()
+  {
+    return updatedDate;
+  }
+
+  public void setUpdatedDate(Date updatedDate)
+  {
+    this.updatedDate = updatedDate;
+  }
+}
@@ -0,0 +1,356 @@
+/*
+ * Copyright 2013 by Dandelion Software & Research, Inc (DSR)
+ * 
+ * This application was written for immunization information system (IIS) community and has
+ * been released by DSR under an Apache 2 License with the hope that this software will be used
+ * to improve Public Health.  
+ */
+package org.openimmunizationsoftware.dqa.manager;
+
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collections;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hibernate.LockMode;
+import org.hibernate.LockOptions;
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.openimmunizationsoftware.dqa.db.model.BatchActions;
+import org.openimmunizationsoftware.dqa.db.model.BatchCodeReceived;
+import org.openimmunizationsoftware.dqa.db.model.BatchIssues;
+import org.openimmunizationsoftware.dqa.db.model.BatchReport;
+import org.openimmunizationsoftware.dqa.db.model.BatchType;
+import org.openimmunizationsoftware.dqa.db.model.BatchVaccineCvx;
+import org.openimmunizationsoftware.dqa.db.model.MessageBatch;
+import org.openimmunizationsoftware.dqa.db.model.SubmitterProfile;
+
+/**
+ * Keeps daily, weekly and monthly totals for each profile. The totals are
+ * stored as ordinary message batches of type Daily, Weekly and Monthly, with
+ * their own batch report, actions, issues, codes received and vaccine counts,
+ * and each closed batch is added to the three periods it falls in. Reports
+ * over a long range can then combine a few of these instead of every batch
+ * received in that range. The titles of the totals start with
+ * {@link #ROLLUP_TITLE_PREFIX}, which is how they are told apart from other
+ * batches of the same types.
+ */
+public class BatchRollupManager
+{
+  private static BatchRollupManager singleton = null;
+  private static final String INIT_BLOCK = "init";
+
+  public static final String ROLLUP_TITLE_PREFIX = "Rollup ";
+
+  private static final int LOAD_CHUNK_SIZE = 500;
+
+  public static BatchRollupManager getBatchRollupManager()
+  {
+    if (singleton == null)
+    {
+      synchronized (INIT_BLOCK)
+      {
+        if (singleton == null)
+        {
+          singleton = new BatchRollupManager();
+        }
+      }
+    }
+    return singleton;
+  }
+
+  private BatchRollupManager() {
+    // singleton
+  }
+
+  public static boolean isRollupType(BatchType batchType)
+  {
+    return batchType != null
+        && (batchType.getTypeCode().equals(BatchType.DAILY.getTypeCode()) || batchType.getTypeCode().equals(BatchType.WEEKLY.getTypeCode()) || batchType
+            .getTypeCode().equals(BatchType.MONTHLY.getTypeCode()));
+  }
+
+  /**
+   * Adds a closed batch to the daily, weekly and monthly totals for its profile,
+   * creating them as needed. The counts are taken from the batch report and the
+   * child maps of the batch as filled in by the quality collector, so this
+   * should be called once the batch has been closed and saved, inside the same
+   * transaction. Batches that are themselves totals are ignored.
+   *
+   * The profile row is locked until the transaction ends, so batches of the
+   * same profile closing at the same time, on this server or another, are
+   * added one after the other and create each total only once.
+   */
+  public void rollupBatch(MessageBatch messageBatch, Session session)
+  {
+    if (isRollup(messageBatch))
+    {
+      return;
+    }
+    Date batchDate = messageBatch.getEndDate() != null ? messageBatch.getEndDate() : messageBatch.getStartDate();
+    if (batchDate == null)
+    {
+      return;
+    }
+    session.get(SubmitterProfile.class, messageBatch.getProfile().getProfileId(), new LockOptions(LockMode.PESSIMISTIC_WRITE));
+    for (BatchType batchType : new BatchType[] { BatchType.DAILY, BatchType.WEEKLY, BatchType.MONTHLY })
+    {
+      MessageBatch rollupBatch = getRollupBatch(messageBatch.getProfile(), batchType, getPeriodStart(batchType, batchDate), session);
+      addToRollup(rollupBatch, messageBatch);
+      saveRollup(rollupBatch, session);
+    }
+  }
+
+  /**
+   * Returns the combined counts for everything received by the profile from
+   * the start date up to but not including the end date, both taken as whole
+   * days. Whole months are read from the monthly totals, whole weeks from the
+   * weekly totals and the remaining days from the daily totals. The batch
+   * returned is not saved.
+   */
+  public MessageBatch getRangeBatch(SubmitterProfile profile, Date startDate, Date endDate, Session session)
+  {
+    Date rangeStart = getPeriodStart(BatchType.DAILY, startDate);
+    Date rangeEnd = getPeriodStart(BatchType.DAILY, endDate);
+    Map<Date, MessageBatch> monthlyMap = getRollupBatchMap(profile, BatchType.MONTHLY, rangeStart, rangeEnd, session);
+    Map<Date, MessageBatch> weeklyMap = getRollupBatchMap(profile, BatchType.WEEKLY, rangeStart, rangeEnd, session);
+    Map<Date, MessageBatch> dailyMap = getRollupBatchMap(profile, BatchType.DAILY, rangeStart, rangeEnd, session);
+
+    MessageBatch rangeBatch = new MessageBatch();
+    rangeBatch.setBatchType(BatchType.OTHER);
+    rangeBatch.setProfile(profile);
+    rangeBatch.setStartDate(rangeStart);
+    rangeBatch.setEndDate(rangeEnd);
+    SimpleDateFormat sdf = new SimpleDateFormat("MM/dd/yyyy");
+    rangeBatch.setBatchTitle(sdf.format(rangeStart) + " - " + sdf.format(rangeEnd));
+
+    List<MessageBatch> rollupBatchList = new ArrayList<MessageBatch>();
+    for (Map.Entry<Date, BatchType> period : getRangePeriods(rangeStart, rangeEnd).entrySet())
+    {
+      BatchType batchType = period.getValue();
+      Map<Date, MessageBatch> rollupMap = batchType == BatchType.MONTHLY ? monthlyMap : (batchType == BatchType.WEEKLY ? weeklyMap
+          : dailyMap);
+      MessageBatch rollupBatch = rollupMap.get(period.getKey());
+      if (rollupBatch != null)
+      {
+        rollupBatchList.add(rollupBatch);
+      }
+    }
+    loadRollups(rollupBatchList, session);
+    for (MessageBatch rollupBatch : rollupBatchList)
+    {
+      addToRollup(rangeBatch, rollupBatch);
+    }
+    return rangeBatch;
+  }
+
+  /**
+   * Splits the range into the fewest days, weeks and months that cover it,
+   * preferring a whole month over the weeks and days it contains and a whole
+   * week over its days. A week that runs into a month lying wholly in the
+   * range is split into days, so the month can still be used. Returns the
+   * start of each period with its type, in date order.
+   */
+  static LinkedHashMap<Date, BatchType> getRangePeriods(Date rangeStart, Date rangeEnd)
+  {
+    LinkedHashMap<Date, BatchType> periods = new LinkedHashMap<Date, BatchType>();
+    Date day = rangeStart;
+    while (day.before(rangeEnd))
+    {
+      BatchType batchType = BatchType.DAILY;
+      Date monthEnd = getPeriodEnd(BatchType.MONTHLY, day);
+      Date weekEnd = getPeriodEnd(BatchType.WEEKLY, day);
+      if (day.equals(getPeriodStart(BatchType.MONTHLY, day)) && !monthEnd.after(rangeEnd))
+      {
+        batchType = BatchType.MONTHLY;
+      } else if (day.equals(getPeriodStart(BatchType.WEEKLY, day)) && !weekEnd.after(rangeEnd)
+          && !(weekEnd.after(monthEnd) && !getPeriodEnd(BatchType.MONTHLY, monthEnd).after(rangeEnd)))
+      {
+        batchType = BatchType.WEEKLY;
+      }
+      periods.put(day, batchType);
+      day = getPeriodEnd(batchType, day);
+    }
+    return periods;
+  }
+
+  /**
+   * Returns true if the batch is one of the totals kept here, rather than a
+   * batch of messages that happens to be of a Daily, Weekly or Monthly type.
+   */
+  public static boolean isRollup(MessageBatch messageBatch)
+  {
+    return isRollupType(messageBatch.getBatchType()) && messageBatch.getBatchTitle() != null
+        && messageBatch.getBatchTitle().startsWith(ROLLUP_TITLE_PREFIX);
+  }
+
+  /**
+   * Returns the start of the day, week or month that contains the date.
+   */
+  public static Date getPeriodStart(BatchType batchType, Date date)
+  {
+    Calendar calendar = Calendar.getInstance();
+    calendar.setTime(date);
+    calendar.set(Calendar.HOUR_OF_DAY, 0);
+    calendar.set(Calendar.MINUTE, 0);
+    calendar.set(Calendar.SECOND, 0);
+    calendar.set(Calendar.MILLISECOND, 0);
+    if (batchType.getTypeCode().equals(BatchType.WEEKLY.getTypeCode()))
+    {
+      while (calendar.get(Calendar.DAY_OF_WEEK) != calendar.getFirstDayOfWeek())
+      {
+        calendar.add(Calendar.DAY_OF_MONTH, -1);
+      }
+    } else if (batchType.getTypeCode().equals(BatchType.MONTHLY.getTypeCode()))
+    {
+      calendar.set(Calendar.DAY_OF_MONTH, 1);
+    }
+    return calendar.getTime();
+  }
+
+  /**
+   * Returns the start of the period following the one that contains the date.
+   */
+  public static Date getPeriodEnd(BatchType batchType, Date date)
+  {
+    Calendar calendar = Calendar.getInstance();
+    calendar.setTime(getPeriodStart(batchType, date));
+    if (batchType.getTypeCode().equals(BatchType.WEEKLY.getTypeCode()))
+    {
+      calendar.add(Calendar.DAY_OF_MONTH, 7);
+    } else if (batchType.getTypeCode().equals(BatchType.MONTHLY.getTypeCode()))
+    {
+      calendar.add(Calendar.MONTH, 1);
+    } else
+    {
+      calendar.add(Calendar.DAY_OF_MONTH, 1);
+    }
+    return calendar.getTime();
+  }
+
+  private MessageBatch getRollupBatch(SubmitterProfile profile, BatchType batchType, Date periodStart, Session session)
+  {
+    Query query = session.createQuery("from MessageBatch where profile = ? and batchType.typeCode = ? and startDate = ? "
+        + "and batchTitle like ?");
+    query.setParameter(0, profile);
+    query.setString(1, batchType.getTypeCode());
+    query.setTimestamp(2, periodStart);
+    query.setString(3, ROLLUP_TITLE_PREFIX + "%");
+    List<MessageBatch> messageBatchList = query.list();
+    if (messageBatchList.size() > 0)
+    {
+      MessageBatch rollupBatch = messageBatchList.get(0);
+      loadRollups(Collections.singletonList(rollupBatch), session);
+      return rollupBatch;
+    }
+    SimpleDateFormat sdf = new SimpleDateFormat("MM/dd/yyyy");
+    MessageBatch rollupBatch = new MessageBatch();
+    rollupBatch.setBatchTitle(ROLLUP_TITLE_PREFIX + batchType.getTypeLabel() + " " + sdf.format(periodStart));
+    rollupBatch.setBatchType(batchType);
+    rollupBatch.setProfile(profile);
+    rollupBatch.setStartDate(periodStart);
+    rollupBatch.setEndDate(getPeriodEnd(batchType, periodStart));
+    session.save(rollupBatch);
+    return rollupBatch;
+  }
+
+  private Map<Date, MessageBatch> getRollupBatchMap(SubmitterProfile profile, BatchType batchType, Date rangeStart, Date rangeEnd,
+      Session session)
+  {
+    Query query = session.createQuery("from MessageBatch where profile = ? and batchType.typeCode = ? and startDate >= ? "
+        + "and startDate < ? and batchTitle like ?");
+    query.setParameter(0, profile);
+    query.setString(1, batchType.getTypeCode());
+    query.setTimestamp(2, rangeStart);
+    query.setTimestamp(3, rangeEnd);
+    query.setString(4, ROLLUP_TITLE_PREFIX + "%");
+    List<MessageBatch> messageBatchList = query.list();
+    Map<Date, MessageBatch> rollupMap = new HashMap<Date, MessageBatch>();
+    for (MessageBatch messageBatch : messageBatchList)
+    {
+      // Timestamps may come back as java.sql.Timestamp, which does not
+      // compare equal to a plain Date
+      rollupMap.put(new Date(messageBatch.getStartDate().getTime()), messageBatch);
+    }
+    return rollupMap;
+  }
+
+  /**
+   * Reads the stored batch reports and child counts of the rollups into their
+   * in memory maps, with one query per table for every
+   * {@link #LOAD_CHUNK_SIZE} rollups.
+   */
+  private void loadRollups(List<MessageBatch> rollupBatchList, Session session)
+  {
+    Map<Integer, MessageBatch> rollupMap = new HashMap<Integer, MessageBatch>();
+    for (MessageBatch rollupBatch : rollupBatchList)
+    {
+      rollupMap.put(rollupBatch.getBatchId(), rollupBatch);
+    }
+    for (int start = 0; start < rollupBatchList.size(); start += LOAD_CHUNK_SIZE)
+    {
+      List<MessageBatch> chunk = rollupBatchList.subList(start, Math.min(rollupBatchList.size(), start + LOAD_CHUNK_SIZE));
+      for (BatchReport batchReport : (List<BatchReport>) listForBatches("BatchReport", chunk, session))
+      {
+        rollupMap.get(batchReport.getMessageBatch().getBatchId()).setBatchReport(batchReport);
+      }
+      for (BatchActions batchActions : (List<BatchActions>) listForBatches("BatchActions", chunk, session))
+      {
+        rollupMap.get(batchActions.getMessageBatch().getBatchId()).getBatchActionsMap().put(batchActions.getIssueAction(), batchActions);
+      }
+      for (BatchIssues batchIssues : (List<BatchIssues>) listForBatches("BatchIssues", chunk, session))
+      {
+        rollupMap.get(batchIssues.getMessageBatch().getBatchId()).getBatchIssuesMap().put(batchIssues.getIssue(), batchIssues);
+      }
+      for (BatchCodeReceived batchCodeReceived : (List<BatchCodeReceived>) listForBatches("BatchCodeReceived", chunk, session))
+      {
+        rollupMap.get(batchCodeReceived.getMessageBatch().getBatchId()).getBatchCodeReceivedMap()
+            .put(batchCodeReceived.getCodeReceived(), batchCodeReceived);
+      }
+      for (BatchVaccineCvx batchVaccineCvx : (List<BatchVaccineCvx>) listForBatches("BatchVaccineCvx", chunk, session))
+      {
+        rollupMap.get(batchVaccineCvx.getMessageBatch().getBatchId()).getBatchVaccineCvxMap()
+            .put(batchVaccineCvx.getVaccineCvx(), batchVaccineCvx);
+      }
+    }
+  }
+
+  private static List<?> listForBatches(String entityName, List<MessageBatch> messageBatchList, Session session)
+  {
+    Query query = session.createQuery("from " + entityName + " where messageBatch in (:batches)");
+    query.setParameterList("batches", messageBatchList);
+    return query.list();
+  }
+
+  static void addToRollup(MessageBatch rollupBatch, MessageBatch messageBatch)
+  {
+    rollupBatch.addToCounts(messageBatch);
+    for (BatchActions batchActions : messageBatch.getBatchActionsMap().values())
+    {
+      rollupBatch.getBatchActions(batchActions.getIssueAction()).inc(batchActions);
+    }
+    for (BatchIssues batchIssues : messageBatch.getBatchIssuesMap().values())
+    {
+      rollupBatch.getBatchIssues(batchIssues.getIssue()).inc(batchIssues);
+    }
+    for (BatchCodeReceived batchCodeReceived : messageBatch.getBatchCodeReceivedMap().values())
+    {
+      rollupBatch.getBatchCodeReceived(batchCodeReceived.getCodeReceived()).inc(batchCodeReceived);
+    }
+    for (BatchVaccineCvx batchVaccineCvx : messageBatch.getBatchVaccineCvxMap().values())
+    {
+      rollupBatch.getBatchVaccineCvx(batchVaccineCvx.getVaccineCvx()).inc(batchVaccineCvx);
+    }
+  }
+
+  private static void saveRollup(MessageBatch rollupBatch, Session session)
+  {
+    session.saveOrUpdate(rollupBatch.getBatchReport());
+    BatchStatisticsWriter.saveBatchStatistics(rollupBatch, session);
+  }
+}
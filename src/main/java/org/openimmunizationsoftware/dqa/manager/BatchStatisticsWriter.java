@@ -0,0 +1,319 @@
+/*
+ * Copyright 2013 by Dandelion Software & Research, Inc (DSR)
+ * 
+ * This application was written for immunization information system (IIS) community and has
+ * been released by DSR under an Apache 2 License with the hope that this software will be used
+ * to improve Public Health.  
+ */
+package org.openimmunizationsoftware.dqa.manager;
+
+import java.sql.Connection;
+import java.sql.PreparedStatement;
+import java.sql.ResultSet;
+import java.sql.SQLException;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hibernate.Session;
+import org.hibernate.dialect.Dialect;
+import org.hibernate.dialect.PostgreSQLDialect;
+import org.hibernate.engine.SessionFactoryImplementor;
+import org.hibernate.id.IdentityGenerator;
+import org.hibernate.id.SequenceGenerator;
+import org.hibernate.jdbc.Work;
+import org.openimmunizationsoftware.dqa.db.model.BatchActions;
+import org.openimmunizationsoftware.dqa.db.model.BatchCodeReceived;
+import org.openimmunizationsoftware.dqa.db.model.BatchIssues;
+import org.openimmunizationsoftware.dqa.db.model.BatchVaccineCvx;
+import org.openimmunizationsoftware.dqa.db.model.MessageBatch;
+
+/**
+ * Writes the action, issue, code received and vaccine counts of a closed batch
+ * with a few JDBC statements instead of one Hibernate save per row. On
+ * PostgreSQL the rows go out as multi-row inserts, elsewhere as JDBC batches.
+ * Ids are assigned the same way Hibernate's native generator would, from the
+ * sequence on databases that use sequences and by the database on those that
+ * use identity columns.
+ *
+ * The rows written replace whatever was stored for the batch before, so
+ * writing a batch again, or writing one whose rows were already saved through
+ * Hibernate, does not duplicate them. The batch itself must already be saved.
+ * Count objects the session holds for the batch are evicted so Hibernate does
+ * not write them as well. Afterwards each count object is given the id of the
+ * row written for it, so it can still be updated through a session later.
+ */
+public class BatchStatisticsWriter
+{
+  private static final int ROWS_PER_STATEMENT = 500;
+
+  private static final ChildTable BATCH_ACTIONS = new ChildTable("dqa_batch_actions", "batch_actions_id", "dqa_batch_action_sequence",
+      "action_code", "action_count");
+  private static final ChildTable BATCH_ISSUES = new ChildTable("dqa_batch_issues", "batch_issues_id", "dqa_batch_issue_sequence",
+      "issue_id", "issue_count");
+  private static final ChildTable BATCH_CODE_RECEIVED = new ChildTable("dqa_batch_code_received", "batch_code_received_id",
+      "dqa_batch_code_rec_sequence", "coded_id", "received_count");
+  private static final ChildTable BATCH_VACCINE_CVX = new ChildTable("dqa_batch_vaccine_cvx", "batch_vaccine_cvx_id",
+      "dqa_batch_vaccine_cvx_sequence", "cvx_id", "received_count");
+
+  private static class ChildTable
+  {
+    private String tableName;
+    private String idColumn;
+    private String sequenceName;
+    private String keyColumn;
+    private String countColumn;
+
+    private ChildTable(String tableName, String idColumn, String sequenceName, String keyColumn, String countColumn) {
+      this.tableName = tableName;
+      this.idColumn = idColumn;
+      this.sequenceName = sequenceName;
+      this.keyColumn = keyColumn;
+      this.countColumn = countColumn;
+    }
+  }
+
+  /**
+   * Replaces the stored count rows of the batch with the counts in memory and
+   * returns how many were written. If the database generates ids some other
+   * way (such as a hi/lo table) the rows are saved through the session as
+   * before.
+   */
+  public static int saveBatchStatistics(final MessageBatch messageBatch, Session session)
+  {
+    final Dialect dialect = ((SessionFactoryImplementor) session.getSessionFactory()).getDialect();
+    Class<?> generatorClass = dialect.getNativeIdentifierGeneratorClass();
+    final boolean useSequence = SequenceGenerator.class.isAssignableFrom(generatorClass);
+    if (!useSequence && !IdentityGenerator.class.isAssignableFrom(generatorClass))
+    {
+      return saveWithSession(messageBatch, session);
+    }
+    final List<Object[]> actionRows = new ArrayList<Object[]>();
+    for (BatchActions batchActions : messageBatch.getBatchActionsMap().values())
+    {
+      actionRows.add(new Object[] { batchActions.getIssueAction().getActionCode(), batchActions.getActionCount(), batchActions });
+    }
+    final List<Object[]> issueRows = new ArrayList<Object[]>();
+    for (BatchIssues batchIssues : messageBatch.getBatchIssuesMap().values())
+    {
+      issueRows.add(new Object[] { batchIssues.getIssue().getIssueId(), batchIssues.getIssueCount(), batchIssues });
+    }
+    final List<Object[]> codeReceivedRows = new ArrayList<Object[]>();
+    for (BatchCodeReceived batchCodeReceived : messageBatch.getBatchCodeReceivedMap().values())
+    {
+      codeReceivedRows.add(new Object[] { batchCodeReceived.getCodeReceived().getCodeId(), batchCodeReceived.getReceivedCount(),
+          batchCodeReceived });
+    }
+    final List<Object[]> vaccineCvxRows = new ArrayList<Object[]>();
+    for (BatchVaccineCvx batchVaccineCvx : messageBatch.getBatchVaccineCvxMap().values())
+    {
+      vaccineCvxRows.add(new Object[] { batchVaccineCvx.getVaccineCvx().getCvxId(), batchVaccineCvx.getReceivedCount(), batchVaccineCvx });
+    }
+
+    // The rows are replaced below, so Hibernate must not write these as well
+    for (Object child : getChildList(messageBatch))
+    {
+      if (session.contains(child))
+      {
+        session.evict(child);
+      }
+    }
+    // Anything Hibernate is holding for the batch has to reach the database
+    // before rows that point at it, and before the old rows are deleted
+    session.flush();
+    final boolean multiRow = dialect instanceof PostgreSQLDialect;
+    session.doWork(new Work() {
+      public void execute(Connection connection) throws SQLException
+      {
+        int batchId = messageBatch.getBatchId();
+        for (ChildTable childTable : new ChildTable[] { BATCH_ACTIONS, BATCH_ISSUES, BATCH_CODE_RECEIVED, BATCH_VACCINE_CVX })
+        {
+          deleteRows(connection, childTable, batchId);
+        }
+        insertRows(connection, dialect, useSequence, multiRow, BATCH_ACTIONS, batchId, actionRows);
+        insertRows(connection, dialect, useSequence, multiRow, BATCH_ISSUES, batchId, issueRows);
+        insertRows(connection, dialect, useSequence, multiRow, BATCH_CODE_RECEIVED, batchId, codeReceivedRows);
+        insertRows(connection, dialect, useSequence, multiRow, BATCH_VACCINE_CVX, batchId, vaccineCvxRows);
+        assignIds(connection, BATCH_ACTIONS, batchId, actionRows);
+        assignIds(connection, BATCH_ISSUES, batchId, issueRows);
+        assignIds(connection, BATCH_CODE_RECEIVED, batchId, codeReceivedRows);
+        assignIds(connection, BATCH_VACCINE_CVX, batchId, vaccineCvxRows);
+      }
+    });
+    return actionRows.size() + issueRows.size() + codeReceivedRows.size() + vaccineCvxRows.size();
+  }
+
+  private static void deleteRows(Connection connection, ChildTable childTable, int batchId) throws SQLException
+  {
+    PreparedStatement statement = connection.prepareStatement("delete from " + childTable.tableName + " where batch_id = ?");
+    try
+    {
+      statement.setInt(1, batchId);
+      statement.executeUpdate();
+    } finally
+    {
+      statement.close();
+    }
+  }
+
+  private static void insertRows(Connection connection, Dialect dialect, boolean useSequence, boolean multiRow, ChildTable childTable,
+      int batchId, List<Object[]> rows) throws SQLException
+  {
+    if (rows.size() == 0)
+    {
+      return;
+    }
+    String insertStart;
+    String rowValues;
+    if (useSequence)
+    {
+      insertStart = "insert into " + childTable.tableName + " (" + childTable.idColumn + ", batch_id, " + childTable.keyColumn + ", "
+          + childTable.countColumn + ") values ";
+      rowValues = "(" + dialect.getSelectSequenceNextValString(childTable.sequenceName) + ", ?, ?, ?)";
+    } else
+    {
+      insertStart = "insert into " + childTable.tableName + " (batch_id, " + childTable.keyColumn + ", " + childTable.countColumn
+          + ") values ";
+      rowValues = "(?, ?, ?)";
+    }
+    if (multiRow)
+    {
+      for (int start = 0; start < rows.size(); start += ROWS_PER_STATEMENT)
+      {
+        int end = Math.min(rows.size(), start + ROWS_PER_STATEMENT);
+        StringBuilder sql = new StringBuilder(insertStart);
+        for (int i = start; i < end; i++)
+        {
+          if (i > start)
+          {
+            sql.append(", ");
+          }
+          sql.append(rowValues);
+        }
+        PreparedStatement statement = connection.prepareStatement(sql.toString());
+        try
+        {
+          int position = 1;
+          for (int i = start; i < end; i++)
+          {
+            statement.setInt(position++, batchId);
+            statement.setObject(position++, rows.get(i)[0]);
+            statement.setObject(position++, rows.get(i)[1]);
+          }
+          statement.executeUpdate();
+        } finally
+        {
+          statement.close();
+        }
+      }
+    } else
+    {
+      PreparedStatement statement = connection.prepareStatement(insertStart + rowValues);
+      try
+      {
+        int pending = 0;
+        for (Object[] row : rows)
+        {
+          statement.setInt(1, batchId);
+          statement.setObject(2, row[0]);
+          statement.setObject(3, row[1]);
+          statement.addBatch();
+          pending++;
+          if (pending == ROWS_PER_STATEMENT)
+          {
+            statement.executeBatch();
+            pending = 0;
+          }
+        }
+        if (pending > 0)
+        {
+          statement.executeBatch();
+        }
+      } finally
+      {
+        statement.close();
+      }
+    }
+  }
+
+  /**
+   * Reads back the ids of the rows just written and sets them on the count
+   * objects they were written for, matching on the key column since there is
+   * only one row per key in a batch.
+   */
+  private static void assignIds(Connection connection, ChildTable childTable, int batchId, List<Object[]> rows) throws SQLException
+  {
+    if (rows.size() == 0)
+    {
+      return;
+    }
+    Map<String, Integer> idMap = new HashMap<String, Integer>();
+    PreparedStatement statement = connection.prepareStatement("select " + childTable.idColumn + ", " + childTable.keyColumn + " from "
+        + childTable.tableName + " where batch_id = ?");
+    try
+    {
+      statement.setInt(1, batchId);
+      ResultSet resultSet = statement.executeQuery();
+      while (resultSet.next())
+      {
+        // keys are compared as strings, the driver may return a different
+        // number type than the one held in memory
+        idMap.put(resultSet.getString(2), resultSet.getInt(1));
+      }
+      resultSet.close();
+    } finally
+    {
+      statement.close();
+    }
+    for (Object[] row : rows)
+    {
+      Integer id = idMap.get(String.valueOf(row[0]));
+      if (id != null)
+      {
+        setId(row[2], id);
+      }
+    }
+  }
+
+  private static void setId(Object child, int id)
+  {
+    if (child instanceof BatchActions)
+    {
+      ((BatchActions) child).setBatchActionsId(id);
+    } else if (child instanceof BatchIssues)
+    {
+      ((BatchIssues) child).setBatchIssuesId(id);
+    } else if (child instanceof BatchCodeReceived)
+    {
+      ((BatchCodeReceived) child).setBatchCodeReceivedId(id);
+    } else if (child instanceof BatchVaccineCvx)
+    {
+      ((BatchVaccineCvx) child).setBatchVaccineCvxId(id);
+    }
+  }
+
+  /**
+   * Saves or updates each count object, so one that is already stored is
+   * updated rather than stored again.
+   */
+  private static int saveWithSession(MessageBatch messageBatch, Session session)
+  {
+    List<Object> childList = getChildList(messageBatch);
+    for (Object child : childList)
+    {
+      session.saveOrUpdate(child);
+    }
+    return childList.size();
+  }
+
+  private static List<Object> getChildList(MessageBatch messageBatch)
+  {
+    List<Object> childList = new ArrayList<Object>();
+    childList.addAll(messageBatch.getBatchActionsMap().values());
+    childList.addAll(messageBatch.getBatchIssuesMap().values());
+    childList.addAll(messageBatch.getBatchCodeReceivedMap().values());
+    childList.addAll(messageBatch.getBatchVaccineCvxMap().values());
+    return childList;
+  }
+}
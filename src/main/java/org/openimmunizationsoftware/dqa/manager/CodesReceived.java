@@ -29,13 +29,19 @@ import org.openimmunizationsoftware.dqa.db.model.VaccineProduct;
 
 public class CodesReceived
 {
-  private static CodesReceived singleton = null;
+  private static volatile CodesReceived singleton = null;
 
   public static CodesReceived getCodesReceived()
   {
     if (singleton == null)
     {
-      singleton = new CodesReceived(true);
+      synchronized (CodesReceived.class)
+      {
+        if (singleton == null)
+        {
+          singleton = new CodesReceived(true);
+        }
+      }
     }
     return singleton;
   }
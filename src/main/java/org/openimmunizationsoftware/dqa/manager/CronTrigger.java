@@ -0,0 +1,174 @@
+/*
+ * Copyright 2013 by Dandelion Software & Research, Inc (DSR)
+ * 
+ * This application was written for immunization information system (IIS) community and has
+ * been released by DSR under an Apache 2 License with the hope that this software will be used
+ * to improve Public Health.  
+ */
+package org.openimmunizationsoftware.dqa.manager;
+
+import java.util.BitSet;
+import java.util.Calendar;
+import java.util.Date;
+
+/**
+ * Trigger using the five fields of a Unix cron line: minute, hour, day of
+ * month, month and day of week. Each field can be *, a number, a range such as
+ * 1-5, a list such as 1,15 or a step such as 8-18/2, and a step can also
+ * follow *. Months are 1-12 and days of week 0-6 starting with Sunday, with 7
+ * also Sunday. As in cron, when both day of month and day of week are given
+ * either one matching is enough.
+ */
+public class CronTrigger implements ScheduleTrigger
+{
+  private static final int SEARCH_YEARS = 5;
+
+  private String expression;
+  private BitSet minutes;
+  private BitSet hours;
+  private BitSet daysOfMonth;
+  private BitSet months;
+  private BitSet daysOfWeek;
+  private boolean anyDayOfMonth;
+  private boolean anyDayOfWeek;
+
+  public CronTrigger(String expression) {
+    this.expression = expression;
+    String[] parts = expression.trim().split("\\s+");
+    if (parts.length != 5)
+    {
+      throw new IllegalArgumentException("Cron expression '" + expression + "' must have 5 fields");
+    }
+    minutes = parseField(parts[0], 0, 59);
+    hours = parseField(parts[1], 0, 23);
+    daysOfMonth = parseField(parts[2], 1, 31);
+    months = parseField(parts[3], 1, 12);
+    daysOfWeek = parseField(parts[4], 0, 7);
+    if (daysOfWeek.get(7))
+    {
+      daysOfWeek.set(0);
+    }
+    anyDayOfMonth = parts[2].equals("*");
+    anyDayOfWeek = parts[4].equals("*");
+  }
+
+  public String getExpression()
+  {
+    return expression;
+  }
+
+  public Date getNextFireTime(Date after)
+  {
+    Calendar cal = Calendar.getInstance();
+    cal.setTime(after);
+    cal.set(Calendar.SECOND, 0);
+    cal.set(Calendar.MILLISECOND, 0);
+    cal.add(Calendar.MINUTE, 1);
+    int lastYear = cal.get(Calendar.YEAR) + SEARCH_YEARS;
+    while (cal.get(Calendar.YEAR) <= lastYear)
+    {
+      if (!months.get(cal.get(Calendar.MONTH) + 1))
+      {
+        cal.set(Calendar.DAY_OF_MONTH, 1);
+        cal.set(Calendar.HOUR_OF_DAY, 0);
+        cal.set(Calendar.MINUTE, 0);
+        cal.add(Calendar.MONTH, 1);
+        continue;
+      }
+      if (!matchesDay(cal))
+      {
+        cal.set(Calendar.HOUR_OF_DAY, 0);
+        cal.set(Calendar.MINUTE, 0);
+        cal.add(Calendar.DAY_OF_MONTH, 1);
+        continue;
+      }
+      if (!hours.get(cal.get(Calendar.HOUR_OF_DAY)))
+      {
+        cal.set(Calendar.MINUTE, 0);
+        cal.add(Calendar.HOUR_OF_DAY, 1);
+        continue;
+      }
+      if (!minutes.get(cal.get(Calendar.MINUTE)))
+      {
+        cal.add(Calendar.MINUTE, 1);
+        continue;
+      }
+      return cal.getTime();
+    }
+    return null;
+  }
+
+  private boolean matchesDay(Calendar cal)
+  {
+    boolean dayOfMonth = daysOfMonth.get(cal.get(Calendar.DAY_OF_MONTH));
+    boolean dayOfWeek = daysOfWeek.get(cal.get(Calendar.DAY_OF_WEEK) - 1);
+    if (anyDayOfMonth || anyDayOfWeek)
+    {
+      return dayOfMonth && dayOfWeek;
+    }
+    return dayOfMonth || dayOfWeek;
+  }
+
+  private BitSet parseField(String field, int min, int max)
+  {
+    BitSet bits = new BitSet(max + 1);
+    for (String item : field.split(","))
+    {
+      int step = 1;
+      int pos = item.indexOf('/');
+      if (pos >= 0)
+      {
+        step = parseNumber(item.substring(pos + 1), 1, max);
+        item = item.substring(0, pos);
+      }
+      int start;
+      int end;
+      if (item.equals("*"))
+      {
+        start = min;
+        end = max;
+      } else
+      {
+        pos = item.indexOf('-');
+        if (pos > 0)
+        {
+          start = parseNumber(item.substring(0, pos), min, max);
+          end = parseNumber(item.substring(pos + 1), min, max);
+        } else
+        {
+          start = parseNumber(item, min, max);
+          end = step > 1 ? max : start;
+        }
+      }
+      for (int i = start; i <= end; i += step)
+      {
+        bits.set(i);
+      }
+    }
+    return bits;
+  }
+
+  private int parseNumber(String s, int min, int max)
+  {
+    int i;
+    try
+    {
+      i = Integer.parseInt(s.trim());
+    } catch (NumberFormatException nfe)
+    {
+      throw new IllegalArgumentException("Cron expression '" + expression + "' has invalid value '" + s + "'");
+    }
+    if (i < min || i > max)
+    {
+      throw new IllegalArgumentException("Cron expression '" + expression + "' has value " + i + " outside of " + min + "-"
+          + max);
+    }
+    return i;
+  }
+
+  @Override
+  public String toString()
+  {
+    return expression;
+  }
+}
@@ -0,0 +1,243 @@
+/*
+ * Copyright 2013 by Dandelion Software & Research, Inc (DSR)
+ * 
+ * This application was written for immunization information system (IIS) community and has
+ * been released by DSR under an Apache 2 License with the hope that this software will be used
+ * to improve Public Health.  
+ */
+package org.openimmunizationsoftware.dqa.manager;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.openimmunizationsoftware.dqa.db.model.KeyedSetting;
+import org.openimmunizationsoftware.dqa.db.model.MessageReceived;
+import org.openimmunizationsoftware.dqa.db.model.SubmitterProfile;
+import org.openimmunizationsoftware.dqa.quality.LongHashSet;
+
+/**
+ * Recognizes update messages that are identical to one already received for
+ * the same profile. Messages are compared after removing the message date
+ * (MSH-7) and control id (MSH-10), which change when a message is resent. Only
+ * messages received within the last dedupe.window_minutes count, so the same
+ * record sent again later, for example after it was deleted, is processed
+ * again. The most recent content hashes for each profile are held in memory,
+ * older ones are found using the hash stored with each received message.
+ *
+ * A duplicate is answered with the earlier acknowledgement and is not parsed,
+ * so it is not counted in the batch quality report.
+ */
+public class DuplicateMessageManager
+{
+  private static DuplicateMessageManager singleton = null;
+  private static final String INIT_BLOCK = "init";
+
+  private static final int DEFAULT_INDEX_SIZE = 1000;
+  private static final int DEFAULT_WINDOW_MINUTES = 60;
+  private static final long MILLIS_PER_MINUTE = 60 * 1000;
+
+  public static DuplicateMessageManager getDuplicateMessageManager()
+  {
+    if (singleton == null)
+    {
+      synchronized (INIT_BLOCK)
+      {
+        if (singleton == null)
+        {
+          singleton = new DuplicateMessageManager();
+        }
+      }
+    }
+    return singleton;
+  }
+
+  private final Map<Integer, LinkedHashMap<String, Long>> recentHashes = new HashMap<Integer, LinkedHashMap<String, Long>>();
+  private int duplicateCount = 0;
+
+  private DuplicateMessageManager() {
+    // singleton
+  }
+
+  public boolean isEnabled()
+  {
+    return KeyedSettingManager.getKeyedSettingManager().getKeyedValueBoolean(KeyedSetting.DEDUPE_ENABLED, false);
+  }
+
+  public synchronized int getDuplicateCount()
+  {
+    return duplicateCount;
+  }
+
+  /**
+   * Returns the message text with line endings made consistent, blank
+   * segments removed and the MSH-7 and MSH-10 fields emptied.
+   */
+  public static String normalizeMessage(String messageText)
+  {
+    StringBuilder sb = new StringBuilder(messageText.length());
+    int startPos = 0;
+    while (startPos < messageText.length())
+    {
+      int endPos = startPos;
+      while (endPos < messageText.length() && messageText.charAt(endPos) != '\r' && messageText.charAt(endPos) != '\n')
+      {
+        endPos++;
+      }
+      String segment = messageText.substring(startPos, endPos).trim();
+      startPos = endPos + 1;
+      if (segment.length() == 0)
+      {
+        continue;
+      }
+      if (segment.startsWith("MSH") && segment.length() > 3)
+      {
+        char bar = segment.charAt(3);
+        int fieldPos = 1;
+        for (int i = 0; i < segment.length(); i++)
+        {
+          char c = segment.charAt(i);
+          if (c == bar)
+          {
+            fieldPos++;
+            sb.append(c);
+          } else if (fieldPos != 7 && fieldPos != 10)
+          {
+            sb.append(c);
+          }
+        }
+      } else
+      {
+        sb.append(segment);
+      }
+      sb.append('\r');
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Fast 64-bit hash of the normalized message, using the same FNV-1a hash as
+   * LongHashSet, returned as 16 hex characters. Matches are confirmed against
+   * the stored text so collisions do not cause a message to be skipped.
+   */
+  public static String hashMessage(String normalizedText)
+  {
+    long hash = LongHashSet.hash(LongHashSet.HASH_START, normalizedText);
+    String hex = Long.toHexString(hash);
+    while (hex.length() < 16)
+    {
+      hex = "0" + hex;
+    }
+    return hex;
+  }
+
+  /**
+   * Looks for a message received for this profile within the dedupe window
+   * with the same content. Returns null if this message has not been seen in
+   * that time.
+   */
+  public MessageReceived findDuplicate(SubmitterProfile profile, String normalizedText, String contentHash,
+      Session session)
+  {
+    Long receivedId;
+    synchronized (this)
+    {
+      LinkedHashMap<String, Long> index = recentHashes.get(profile.getProfileId());
+      receivedId = index == null ? null : index.get(contentHash);
+    }
+    int windowMinutes = KeyedSettingManager.getKeyedSettingManager().getKeyedValueInt(
+        KeyedSetting.DEDUPE_WINDOW_MINUTES, DEFAULT_WINDOW_MINUTES);
+    Date windowStart = new Date(System.currentTimeMillis() - windowMinutes * MILLIS_PER_MINUTE);
+    MessageReceived previous = null;
+    if (receivedId != null)
+    {
+      previous = (MessageReceived) session.get(MessageReceived.class, receivedId);
+    }
+    if (previous == null || previous.getReceivedDate().before(windowStart)
+        || !normalizedText.equals(normalizeMessage(previous.getRequestText())))
+    {
+      previous = null;
+      Query query = session.createQuery("from MessageReceived where profile = ? and contentHash = ? "
+          + "and receivedDate >= ? order by receivedId desc");
+      query.setParameter(0, profile);
+      query.setParameter(1, contentHash);
+      query.setTimestamp(2, windowStart);
+      List<MessageReceived> messageReceivedList = query.list();
+      for (MessageReceived messageReceived : messageReceivedList)
+      {
+        if (normalizedText.equals(normalizeMessage(messageReceived.getRequestText())))
+        {
+          previous = messageReceived;
+          break;
+        }
+      }
+    }
+    if (previous != null)
+    {
+      synchronized (this)
+      {
+        duplicateCount++;
+      }
+      registerMessage(previous);
+    }
+    return previous;
+  }
+
+  /**
+   * Remembers the content hash of a message that has been saved.
+   */
+  public void registerMessage(MessageReceived messageReceived)
+  {
+    if (messageReceived.getContentHash() == null || messageReceived.getReceivedId() == 0)
+    {
+      return;
+    }
+    int indexSize = KeyedSettingManager.getKeyedSettingManager().getKeyedValueInt(KeyedSetting.DEDUPE_INDEX_SIZE,
+        DEFAULT_INDEX_SIZE);
+    synchronized (this)
+    {
+      Integer profileId = messageReceived.getProfile().getProfileId();
+      LinkedHashMap<String, Long> index = recentHashes.get(profileId);
+      if (index == null)
+      {
+        index = new LinkedHashMap<String, Long>(16, 0.75f, true);
+        recentHashes.put(profileId, index);
+      }
+      index.put(messageReceived.getContentHash(), messageReceived.getReceivedId());
+      while (index.size() > indexSize)
+      {
+        index.remove(index.keySet().iterator().next());
+      }
+    }
+  }
+
+  /**
+   * Returns the acknowledgement with MSA-2 changed to the control id of the
+   * message being acknowledged.
+   */
+  public static String replaceAckMessageKey(String ackMessage, String messageKey)
+  {
+    int start = ackMessage.indexOf("\rMSA");
+    if (start == -1 || ackMessage.length() < start + 5)
+    {
+      return ackMessage;
+    }
+    char bar = ackMessage.charAt(start + 4);
+    int fieldStart = ackMessage.indexOf(bar, start + 5);
+    if (fieldStart == -1)
+    {
+      return ackMessage;
+    }
+    fieldStart++;
+    int fieldEnd = fieldStart;
+    while (fieldEnd < ackMessage.length() && ackMessage.charAt(fieldEnd) != bar && ackMessage.charAt(fieldEnd) != '\r')
+    {
+      fieldEnd++;
+    }
+    return ackMessage.substring(0, fieldStart) + messageKey + ackMessage.substring(fieldEnd);
+  }
+}
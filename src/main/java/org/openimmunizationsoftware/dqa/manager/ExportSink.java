@@ -0,0 +1,85 @@
+/*
+ * Copyright 2013 by Dandelion Software & Research, Inc (DSR)
+ * 
+ * This application was written for immunization information system (IIS) community and has
+ * been released by DSR under an Apache 2 License with the hope that this software will be used
+ * to improve Public Health.  
+ */
+package org.openimmunizationsoftware.dqa.manager;
+
+import java.io.IOException;
+import java.io.Writer;
+
+/**
+ * Destination for an export file. Nothing written should become visible to
+ * whoever picks up the export until commit is called, and abort throws away
+ * everything written so far.
+ */
+public interface ExportSink
+{
+  /**
+   * Thrown when an export cannot be resumed because what was written up to
+   * its checkpoint is no longer there.
+   */
+  public static class CheckpointLostException extends IOException
+  {
+    private static final long serialVersionUID = 1l;
+
+    public CheckpointLostException(String message) {
+      super(message);
+    }
+  }
+
+  /**
+   * Thrown when an export that was to be resumed had in fact been committed,
+   * and only recording that failed. It may already have been picked up, so it
+   * is left as it is.
+   */
+  public static class AlreadyCommittedException extends IOException
+  {
+    private static final long serialVersionUID = 1l;
+
+    public AlreadyCommittedException(String message) {
+      super(message);
+    }
+  }
+
+  /**
+   * Returns the writer the export is written to, such as by a constructer.
+   * The writer can change after a checkpoint, so get it again
+   * rather than keeping it.
+   */
+  public Writer getWriter() throws IOException;
+
+  /**
+   * Counts a message written to the writer.
+   */
+  public void messageWritten();
+
+  public int getMessageCount();
+
+  /**
+   * Makes everything written so far durable and returns the size of the
+   * export at this point, for passing back when the export is resumed.
+   */
+  public long checkpoint() throws IOException;
+
+  /**
+   * Finishes the export and makes it available. If this fails for an export
+   * that was resumed or has been checkpointed, the export is suspended rather
+   * than discarded, because what was written up to the checkpoint has already
+   * been recorded as submitted.
+   */
+  public void commit() throws IOException;
+
+  /**
+   * Stops writing but keeps the export as of its last checkpoint so it can be
+   * resumed later.
+   */
+  public void suspend();
+
+  /**
+   * Discards the export. Safe to call after commit or more than once.
+   */
+  public void abort();
+}
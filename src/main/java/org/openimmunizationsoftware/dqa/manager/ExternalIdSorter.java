@@ -0,0 +1,269 @@
+/*
+ * Copyright 2013 by Dandelion Software & Research, Inc (DSR)
+ * 
+ * This application was written for immunization information system (IIS) community and has
+ * been released by DSR under an Apache 2 License with the hope that this software will be used
+ * to improve Public Health.  
+ */
+package org.openimmunizationsoftware.dqa.manager;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.PriorityQueue;
+
+/**
+ * Sorts ids by a text key and a date without holding them all in memory. Ids
+ * are collected into runs of a fixed size, each run is sorted and written to
+ * a temporary file, and the runs are then merged back together as they are
+ * read. If everything fits in one run nothing is written to disk.
+ *
+ * Call close when done to remove the temporary files.
+ */
+public class ExternalIdSorter
+{
+  private static final int STREAM_BUFFER_SIZE = 64 * 1024;
+  private static final char KEY_SEPARATOR = '\u0000';
+
+  private int runSize;
+  private List<Entry> entryList;
+  private List<File> runFileList = new ArrayList<File>();
+  private List<RunReader> runReaderList = new ArrayList<RunReader>();
+  private PriorityQueue<RunReader> mergeQueue = null;
+  private Entry[] memoryRun = null;
+  private int memoryPosition = 0;
+  private Entry current = null;
+  private int count = 0;
+
+  private static class Entry implements Comparable<Entry>
+  {
+    private String key;
+    private long date;
+    private int id;
+
+    public Entry(String key, long date, int id) {
+      this.key = key;
+      this.date = date;
+      this.id = id;
+    }
+
+    public int compareTo(Entry other)
+    {
+      int c = key.compareTo(other.key);
+      if (c == 0)
+      {
+        c = date < other.date ? -1 : (date == other.date ? 0 : 1);
+      }
+      if (c == 0)
+      {
+        c = id < other.id ? -1 : (id == other.id ? 0 : 1);
+      }
+      return c;
+    }
+  }
+
+  /**
+   * Reads back one sorted run, keeping just its next entry in memory.
+   */
+  private static class RunReader implements Comparable<RunReader>
+  {
+    private DataInputStream in;
+    private Entry next = null;
+
+    public RunReader(File runFile) throws IOException {
+      in = new DataInputStream(new BufferedInputStream(new FileInputStream(runFile), STREAM_BUFFER_SIZE));
+      advance();
+    }
+
+    public void advance() throws IOException
+    {
+      try
+      {
+        String key = in.readUTF();
+        long date = in.readLong();
+        int id = in.readInt();
+        next = new Entry(key, date, id);
+      } catch (EOFException eofe)
+      {
+        next = null;
+      }
+    }
+
+    public int compareTo(RunReader other)
+    {
+      return next.compareTo(other.next);
+    }
+
+    public void close()
+    {
+      try
+      {
+        in.close();
+      } catch (IOException ioe)
+      {
+        // ignore, the run is finished with
+      }
+    }
+  }
+
+  public ExternalIdSorter(int runSize) {
+    this.runSize = runSize;
+    entryList = new ArrayList<Entry>(Math.min(runSize, 1024));
+  }
+
+  /**
+   * Builds a key from several values so they sort one after the other, with
+   * null sorting like an empty value.
+   */
+  public static String makeKey(String... values)
+  {
+    StringBuilder sb = new StringBuilder();
+    for (String value : values)
+    {
+      if (value != null)
+      {
+        sb.append(value);
+      }
+      sb.append(KEY_SEPARATOR);
+    }
+    return sb.toString();
+  }
+
+  public void add(String key, long date, int id) throws IOException
+  {
+    if (mergeQueue != null || memoryRun != null)
+    {
+      throw new IllegalStateException("Ids can not be added after sorting has started");
+    }
+    entryList.add(new Entry(key, date, id));
+    count++;
+    if (entryList.size() >= runSize)
+    {
+      writeRun();
+    }
+  }
+
+  public int getCount()
+  {
+    return count;
+  }
+
+  public int getRunCount()
+  {
+    return runFileList.size();
+  }
+
+  /**
+   * Finishes adding and moves to the first id in sorted order. Returns false
+   * if there are no ids.
+   */
+  public boolean next() throws IOException
+  {
+    if (mergeQueue == null && memoryRun == null)
+    {
+      startMerge();
+    }
+    if (memoryRun != null)
+    {
+      if (memoryPosition < memoryRun.length)
+      {
+        current = memoryRun[memoryPosition];
+        memoryRun[memoryPosition] = null;
+        memoryPosition++;
+        return true;
+      }
+      current = null;
+      return false;
+    }
+    RunReader runReader = mergeQueue.poll();
+    if (runReader == null)
+    {
+      current = null;
+      return false;
+    }
+    current = runReader.next;
+    runReader.advance();
+    if (runReader.next != null)
+    {
+      mergeQueue.add(runReader);
+    }
+    return true;
+  }
+
+  public int getId()
+  {
+    return current.id;
+  }
+
+  public void close()
+  {
+    for (RunReader runReader : runReaderList)
+    {
+      runReader.close();
+    }
+    runReaderList.clear();
+    for (File runFile : runFileList)
+    {
+      runFile.delete();
+    }
+    runFileList.clear();
+    entryList.clear();
+    memoryRun = null;
+  }
+
+  private void startMerge() throws IOException
+  {
+    if (runFileList.size() == 0)
+    {
+      memoryRun = entryList.toArray(new Entry[entryList.size()]);
+      entryList.clear();
+      Arrays.sort(memoryRun);
+      return;
+    }
+    if (entryList.size() > 0)
+    {
+      writeRun();
+    }
+    mergeQueue = new PriorityQueue<RunReader>(runFileList.size());
+    for (File runFile : runFileList)
+    {
+      RunReader runReader = new RunReader(runFile);
+      runReaderList.add(runReader);
+      if (runReader.next != null)
+      {
+        mergeQueue.add(runReader);
+      }
+    }
+  }
+
+  private void writeRun() throws IOException
+  {
+    Entry[] run = entryList.toArray(new Entry[entryList.size()]);
+    entryList.clear();
+    Arrays.sort(run);
+    File runFile = File.createTempFile("dqa-export-run", ".tmp");
+    runFileList.add(runFile);
+    DataOutputStream out = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(runFile), STREAM_BUFFER_SIZE));
+    try
+    {
+      for (Entry entry : run)
+      {
+        out.writeUTF(entry.key);
+        out.writeLong(entry.date);
+        out.writeInt(entry.id);
+      }
+    } finally
+    {
+      out.close();
+    }
+  }
+}
@@ -0,0 +1,387 @@
+/*
+ * Copyright 2013 by Dandelion Software & Research, Inc (DSR)
+ * 
+ * This application was written for immunization information system (IIS) community and has
+ * been released by DSR under an Apache 2 License with the hope that this software will be used
+ * to improve Public Health.  
+ */
+package org.openimmunizationsoftware.dqa.manager;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.RandomAccessFile;
+import java.io.Writer;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.security.DigestOutputStream;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Date;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Writes an export to a temporary file next to the final one, through a large
+ * buffer straight to the file channel and optionally gzipped. On commit the
+ * file is forced to disk and renamed into place, and a manifest with the
+ * message count, byte count and SHA-256 of the file is written beside it the
+ * same way. A reader that waits for the manifest never sees a partial file.
+ *
+ * A checkpoint forces everything written so far to disk and returns the size
+ * of the file. A gzipped file is ended at each checkpoint and a new gzip
+ * member started after it, so the file can later be cut back to any
+ * checkpoint and written on from there.
+ */
+public class FileExportSink implements ExportSink
+{
+  public static final String GZIP_EXTENSION = ".gz";
+  public static final String MANIFEST_EXTENSION = ".manifest";
+  private static final String TEMP_EXTENSION = ".part";
+  private static final int BUFFER_SIZE = 256 * 1024;
+
+  private File file = null;
+  private File tempFile = null;
+  private boolean gzip = false;
+  private Charset charset = null;
+  private RandomAccessFile fileOut = null;
+  private ChannelOutputStream channelOut = null;
+  private MessageDigest messageDigest = null;
+  private DigestOutputStream digestOut = null;
+  private GZIPOutputStream gzipOut = null;
+  private Writer writer = null;
+  private int messageCount = 0;
+  private boolean done = false;
+  private boolean resumable = false;
+
+  /**
+   * Opens a temporary file for the export. When gzip is set the final file
+   * name has .gz added to it.
+   */
+  public FileExportSink(File file, boolean gzip, Charset charset) throws IOException {
+    this(file, gzip, charset, 0, 0);
+  }
+
+  /**
+   * Opens the temporary file of an export that was stopped after a checkpoint
+   * and cuts it back to the size the checkpoint returned, so writing carries
+   * on from there. If the export had been renamed into place but its manifest
+   * was never written, no reader can have taken it, so it is taken back first.
+   * If the manifest was written the export is complete and is never taken
+   * back, an {@link ExportSink.AlreadyCommittedException} is thrown instead. A
+   * resume size of 0 starts a new export.
+   */
+  public FileExportSink(File file, boolean gzip, Charset charset, long resumeSize, int resumeCount) throws IOException {
+    this.file = gzip ? new File(file.getPath() + GZIP_EXTENSION) : file;
+    this.tempFile = new File(this.file.getPath() + TEMP_EXTENSION);
+    this.gzip = gzip;
+    this.charset = charset;
+    try
+    {
+      messageDigest = MessageDigest.getInstance("SHA-256");
+    } catch (NoSuchAlgorithmException nsae)
+    {
+      throw new IOException("Unable to create SHA-256 digest: " + nsae.getMessage());
+    }
+    if (resumeSize > 0)
+    {
+      if (!tempFile.exists() && this.file.exists())
+      {
+        if (getManifestFile().exists())
+        {
+          throw new AlreadyCommittedException("Export '" + this.file + "' has already been committed and will not be resumed");
+        }
+        rename(this.file, tempFile);
+      }
+      if (!tempFile.exists() || tempFile.length() < resumeSize)
+      {
+        throw new CheckpointLostException("Unable to resume export, '" + tempFile + "' is missing or shorter than the checkpoint of "
+            + resumeSize + " bytes");
+      }
+    } else if (tempFile.exists())
+    {
+      tempFile.delete();
+    }
+    fileOut = new RandomAccessFile(tempFile, "rw");
+    FileChannel channel = fileOut.getChannel();
+    channel.truncate(resumeSize);
+    if (resumeSize > 0)
+    {
+      // The checksum covers the whole file, so read back what is kept
+      ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+      channel.position(0);
+      while (channel.read(buffer) > 0)
+      {
+        buffer.flip();
+        messageDigest.update(buffer);
+        buffer.clear();
+      }
+      channel.position(resumeSize);
+      messageCount = resumeCount;
+      resumable = true;
+    }
+    channelOut = new ChannelOutputStream(channel, resumeSize);
+    digestOut = new DigestOutputStream(channelOut, messageDigest);
+  }
+
+  public File getFile()
+  {
+    return file;
+  }
+
+  public File getManifestFile()
+  {
+    return new File(file.getPath() + MANIFEST_EXTENSION);
+  }
+
+  public int getMessageCount()
+  {
+    return messageCount;
+  }
+
+  public Writer getWriter() throws IOException
+  {
+    if (writer == null)
+    {
+      if (gzip)
+      {
+        gzipOut = new GZIPOutputStream(digestOut, BUFFER_SIZE / 4);
+        writer = new OutputStreamWriter(gzipOut, charset);
+      } else
+      {
+        writer = new OutputStreamWriter(digestOut, charset);
+      }
+    }
+    return writer;
+  }
+
+  public void messageWritten()
+  {
+    messageCount++;
+  }
+
+  public long checkpoint() throws IOException
+  {
+    endWriter();
+    channelOut.force();
+    resumable = true;
+    return channelOut.getByteCount();
+  }
+
+  public void commit() throws IOException
+  {
+    if (done)
+    {
+      throw new IOException("Export to '" + file + "' has already been finished");
+    }
+    try
+    {
+      endWriter();
+      digestOut.close();
+      fileOut = null;
+      rename(tempFile, file);
+      writeManifest();
+      done = true;
+    } finally
+    {
+      if (!done)
+      {
+        if (resumable)
+        {
+          // Keep the file for the next run, the checkpoint recorded
+          // against it still stands
+          suspend();
+        } else
+        {
+          abort();
+        }
+      }
+    }
+  }
+
+  public void suspend()
+  {
+    done = true;
+    close();
+  }
+
+  public void abort()
+  {
+    done = true;
+    close();
+    if (tempFile.exists())
+    {
+      tempFile.delete();
+    }
+  }
+
+  private void close()
+  {
+    writer = null;
+    gzipOut = null;
+    try
+    {
+      if (fileOut != null)
+      {
+        fileOut.close();
+      }
+    } catch (IOException ioe)
+    {
+      // ignore, nothing more will be written
+    }
+    fileOut = null;
+  }
+
+  /**
+   * Pushes everything written through the encoder and, for gzip, ends the
+   * current gzip member. The next write starts new ones.
+   */
+  private void endWriter() throws IOException
+  {
+    if (writer != null)
+    {
+      writer.flush();
+      if (gzipOut != null)
+      {
+        gzipOut.finish();
+        gzipOut = null;
+      }
+      writer = null;
+    }
+    digestOut.flush();
+  }
+
+  private void writeManifest() throws IOException
+  {
+    File manifestFile = getManifestFile();
+    File manifestTempFile = new File(manifestFile.getPath() + TEMP_EXTENSION);
+    PrintWriter out = new PrintWriter(new OutputStreamWriter(new FileOutputStream(manifestTempFile), "UTF-8"));
+    try
+    {
+      out.print("file=" + file.getName() + "\n");
+      out.print("created=" + new Date() + "\n");
+      out.print("messages=" + messageCount + "\n");
+      out.print("bytes=" + channelOut.getByteCount() + "\n");
+      out.print("sha256=" + toHex(messageDigest.digest()) + "\n");
+    } finally
+    {
+      out.close();
+    }
+    if (out.checkError())
+    {
+      manifestTempFile.delete();
+      throw new IOException("Unable to write manifest '" + manifestFile + "'");
+    }
+    rename(manifestTempFile, manifestFile);
+  }
+
+  private static void rename(File from, File to) throws IOException
+  {
+    if (!from.renameTo(to))
+    {
+      // Some platforms will not rename over an existing file
+      if (!to.exists() || !to.delete() || !from.renameTo(to))
+      {
+        throw new IOException("Unable to rename '" + from + "' to '" + to + "'");
+      }
+    }
+  }
+
+  private static String toHex(byte[] bytes)
+  {
+    StringBuilder sb = new StringBuilder(bytes.length * 2);
+    for (byte b : bytes)
+    {
+      sb.append(Character.forDigit((b >> 4) & 0xf, 16));
+      sb.append(Character.forDigit(b & 0xf, 16));
+    }
+    return sb.toString();
+  }
+
+  /**
+   * Collects bytes in one large buffer and hands it to the channel when it
+   * fills. Closing forces the file to disk before closing the channel.
+   */
+  private static class ChannelOutputStream extends OutputStream
+  {
+    private FileChannel channel;
+    private ByteBuffer buffer = ByteBuffer.allocateDirect(BUFFER_SIZE);
+    private long byteCount = 0;
+
+    public ChannelOutputStream(FileChannel channel, long byteCount) {
+      this.channel = channel;
+      this.byteCount = byteCount;
+    }
+
+    public long getByteCount()
+    {
+      return byteCount;
+    }
+
+    @Override
+    public void write(int b) throws IOException
+    {
+      if (!buffer.hasRemaining())
+      {
+        drain();
+      }
+      buffer.put((byte) b);
+      byteCount++;
+    }
+
+    @Override
+    public void write(byte[] bytes, int offset, int length) throws IOException
+    {
+      while (length > 0)
+      {
+        if (!buffer.hasRemaining())
+        {
+          drain();
+        }
+        int count = Math.min(length, buffer.remaining());
+        buffer.put(bytes, offset, count);
+        offset += count;
+        length -= count;
+        byteCount += count;
+      }
+    }
+
+    @Override
+    public void flush() throws IOException
+    {
+      drain();
+    }
+
+    public void force() throws IOException
+    {
+      drain();
+      channel.force(false);
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+      try
+      {
+        drain();
+        channel.force(true);
+      } finally
+      {
+        channel.close();
+      }
+    }
+
+    private void drain() throws IOException
+    {
+      buffer.flip();
+      while (buffer.hasRemaining())
+      {
+        channel.write(buffer);
+      }
+      buffer.clear();
+    }
+  }
+}
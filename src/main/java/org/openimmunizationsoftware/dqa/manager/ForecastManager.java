@@ -0,0 +1,391 @@
+/*
+ * Copyright 2013 by Dandelion Software & Research, Inc (DSR)
+ * 
+ * This application was written for immunization information system (IIS) community and has
+ * been released by DSR under an Apache 2 License with the hope that this software will be used
+ * to improve Public Health.  
+ */
+package org.openimmunizationsoftware.dqa.manager;
+
+import java.io.IOException;
+import java.security.NoSuchAlgorithmException;
+import java.text.SimpleDateFormat;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openimmunizationsoftware.dqa.db.model.KeyedSetting;
+import org.openimmunizationsoftware.dqa.db.model.received.Patient;
+import org.openimmunizationsoftware.dqa.db.model.received.Vaccination;
+import org.tch.fc.ConnectFactory;
+import org.tch.fc.ConnectorInterface;
+import org.tch.fc.model.ForecastActual;
+import org.tch.fc.model.Service;
+import org.tch.fc.model.Software;
+import org.tch.fc.model.SoftwareResult;
+import org.tch.fc.model.TestCase;
+import org.tch.fc.model.TestEvent;
+
+/**
+ * Sends forecast requests to the CDS service on a small pool of worker threads
+ * so a query only waits as long as the configured deadline. Results are cached
+ * by patient date of birth, sex, vaccination events and evaluation date so
+ * repeated queries for the same history do not call the service again. A late
+ * result is still cached when it arrives.
+ */
+public class ForecastManager
+{
+  private static ForecastManager singleton = null;
+  private static final String INIT_BLOCK = "init";
+
+  /**
+   * Service type that selects the in-process {@link ForecastStub} instead of a
+   * remote service.
+   */
+  public static final String SERVICE_TYPE_STUB = "stub";
+
+  private static final int DEFAULT_TIMEOUT = 5000;
+  private static final int DEFAULT_CACHE_SIZE = 1000;
+  private static final int DEFAULT_THREADS = 10;
+  private static final int QUEUE_SIZE = 100;
+
+  public static ForecastManager getForecastManager()
+  {
+    if (singleton == null)
+    {
+      synchronized (INIT_BLOCK)
+      {
+        if (singleton == null)
+        {
+          singleton = new ForecastManager();
+        }
+      }
+    }
+    return singleton;
+  }
+
+  /**
+   * A service that can return a forecast for a test case. The evaluations for
+   * each test event are returned on the test events themselves.
+   */
+  public static interface ForecastService
+  {
+    public List<ForecastActual> queryForForecast(TestCase testCase) throws IOException;
+  }
+
+  /**
+   * The result of a forecast along with the test events, in sorted order, that
+   * carry the evaluations.
+   */
+  private static class Forecast
+  {
+    private List<ForecastActual> forecastActualList;
+    private List<TestEvent> testEventList;
+  }
+
+  /**
+   * A forecast that has been requested for a patient, call
+   * {@link #waitForForecast()} to get the result.
+   */
+  public class ForecastRequest
+  {
+    private Future<Forecast> future;
+    private String cacheKey;
+    private List<Vaccination> vaccinationList;
+    private int timeout;
+
+    /**
+     * Waits, no longer than the configured deadline, for the forecast. When it
+     * arrives each vaccination is given its evaluated test event and the list
+     * of forecasts is returned. Returns null if the forecast did not complete
+     * in time or could not be made.
+     */
+    public List<ForecastActual> waitForForecast()
+    {
+      Forecast forecast;
+      try
+      {
+        forecast = future.get(timeout, TimeUnit.MILLISECONDS);
+      } catch (TimeoutException te)
+      {
+        timeoutCount.incrementAndGet();
+        return null;
+      } catch (InterruptedException ie)
+      {
+        Thread.currentThread().interrupt();
+        return null;
+      } catch (ExecutionException ee)
+      {
+        ee.getCause().printStackTrace();
+        return null;
+      } catch (CancellationException ce)
+      {
+        // could not be started
+        return null;
+      }
+      for (int i = 0; i < vaccinationList.size(); i++)
+      {
+        vaccinationList.get(i).setTestEvent(forecast.testEventList.get(i));
+      }
+      return forecast.forecastActualList;
+    }
+
+    public String getCacheKey()
+    {
+      return cacheKey;
+    }
+  }
+
+  private final ThreadPoolExecutor executor;
+  private final LinkedHashMap<String, Future<Forecast>> cache = new LinkedHashMap<String, Future<Forecast>>(16, 0.75f,
+      true);
+  private final AtomicInteger cacheHitCount = new AtomicInteger();
+  private final AtomicInteger timeoutCount = new AtomicInteger();
+
+  private ForecastManager() {
+    int threads = KeyedSettingManager.getKeyedSettingManager().getKeyedValueInt(
+        KeyedSetting.CDS_SOFTWARE_SERVICE_THREADS, DEFAULT_THREADS);
+    if (threads < 1)
+    {
+      threads = 1;
+    }
+    executor = new ThreadPoolExecutor(threads, threads, 60, TimeUnit.SECONDS, new ArrayBlockingQueue<Runnable>(
+        QUEUE_SIZE), new ThreadFactory() {
+      private int count = 0;
+
+      public synchronized Thread newThread(Runnable runnable)
+      {
+        count++;
+        Thread thread = new Thread(runnable, "DQA Forecast " + count);
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    executor.allowCoreThreadTimeOut(true);
+  }
+
+  public boolean isEnabled()
+  {
+    KeyedSettingManager ksm = KeyedSettingManager.getKeyedSettingManager();
+    if (ksm.getKeyedValueBoolean(KeyedSetting.CDS_SOFTWARE_SERVICE_ENABLED, false))
+    {
+      String cdsServiceType = ksm.getKeyedValue(KeyedSetting.CDS_SOFTWARE_SERVICE_TYPE, "");
+      String cdsServiceUrl = ksm.getKeyedValue(KeyedSetting.CDS_SOFTWARE_SERVICE_URL, "");
+      return cdsServiceType.equals(SERVICE_TYPE_STUB) || (!cdsServiceType.equals("") && !cdsServiceUrl.equals(""));
+    }
+    return false;
+  }
+
+  public int getCacheHitCount()
+  {
+    return cacheHitCount.get();
+  }
+
+  public int getTimeoutCount()
+  {
+    return timeoutCount.get();
+  }
+
+  /**
+   * Starts a forecast for the patient and vaccinations. Vaccinations without a
+   * usable CVX code are not sent. The returned request is used to wait for the
+   * result. Returns null if the forecast could not be started.
+   */
+  public ForecastRequest requestForecast(Patient patient, List<Vaccination> vaccinationList)
+  {
+    KeyedSettingManager ksm = KeyedSettingManager.getKeyedSettingManager();
+    final String cdsServiceType = ksm.getKeyedValue(KeyedSetting.CDS_SOFTWARE_SERVICE_TYPE, "");
+    final String cdsServiceUrl = ksm.getKeyedValue(KeyedSetting.CDS_SOFTWARE_SERVICE_URL, "");
+
+    final List<Vaccination> sortedVaccinationList = new ArrayList<Vaccination>();
+    final List<Integer> cvxList = new ArrayList<Integer>();
+    for (Vaccination vaccination : vaccinationList)
+    {
+      String cvxString = vaccination.getAdminCvxCode();
+      if (cvxString != null && !cvxString.equals(""))
+      {
+        try
+        {
+          cvxList.add(Integer.parseInt(cvxString));
+          sortedVaccinationList.add(vaccination);
+        } catch (NumberFormatException nfe)
+        {
+          // ignore, forecast can't use bad CVX code
+        }
+      }
+    }
+    sortVaccinations(sortedVaccinationList);
+
+    final Date evalDate = new Date();
+    final String sex = "M".equals(patient.getSexCode()) ? "M" : "F";
+    final Date dob = patient.getBirthDate();
+    String cacheKey = createCacheKey(cdsServiceType, cdsServiceUrl, dob, sex, sortedVaccinationList, evalDate);
+
+    ForecastRequest forecastRequest = new ForecastRequest();
+    forecastRequest.cacheKey = cacheKey;
+    forecastRequest.vaccinationList = sortedVaccinationList;
+    forecastRequest.timeout = ksm.getKeyedValueInt(KeyedSetting.CDS_SOFTWARE_SERVICE_TIMEOUT, DEFAULT_TIMEOUT);
+    final TestCase testCase = new TestCase();
+    testCase.setEvalDate(evalDate);
+    testCase.setPatientSex(sex);
+    testCase.setPatientDob(dob);
+    final List<TestEvent> testEventList = new ArrayList<TestEvent>();
+    for (Vaccination vaccination : sortedVaccinationList)
+    {
+      testEventList.add(new TestEvent(Integer.parseInt(vaccination.getAdminCvxCode()), vaccination.getAdminDate()));
+    }
+    testCase.setTestEventList(testEventList);
+    final String key = cacheKey;
+    Callable<Forecast> callable = new Callable<Forecast>() {
+      public Forecast call() throws Exception
+      {
+        Forecast forecast = new Forecast();
+        forecast.forecastActualList = createForecastService(cdsServiceType, cdsServiceUrl).queryForForecast(testCase);
+        if (forecast.forecastActualList == null)
+        {
+          forecast.forecastActualList = new ArrayList<ForecastActual>();
+        }
+        forecast.testEventList = testEventList;
+        return forecast;
+      }
+    };
+    FutureTask<Forecast> futureTask = new FutureTask<Forecast>(callable) {
+      @Override
+      protected void setException(Throwable t)
+      {
+        // do not keep failures, the next query should try again; removed
+        // before anyone waiting can see the failure
+        removeFromCache(key, this);
+        super.setException(t);
+      }
+    };
+    // The task is cached before it can run, so however fast it fails it is
+    // never left in the cache
+    synchronized (cache)
+    {
+      forecastRequest.future = cache.get(cacheKey);
+      if (forecastRequest.future != null)
+      {
+        cacheHitCount.incrementAndGet();
+        return forecastRequest;
+      }
+      cache.put(cacheKey, futureTask);
+      int cacheSize = ksm.getKeyedValueInt(KeyedSetting.CDS_SOFTWARE_CACHE_SIZE, DEFAULT_CACHE_SIZE);
+      while (cache.size() > cacheSize)
+      {
+        cache.remove(cache.keySet().iterator().next());
+      }
+    }
+    try
+    {
+      executor.execute(futureTask);
+    } catch (RejectedExecutionException ree)
+    {
+      // all workers busy and queue full, answer without a forecast
+      removeFromCache(cacheKey, futureTask);
+      // anyone who found it in the cache meanwhile stops waiting
+      futureTask.cancel(false);
+      return null;
+    }
+    forecastRequest.future = futureTask;
+    return forecastRequest;
+  }
+
+  /**
+   * Removes the cached forecast only if it is still the given one, a later
+   * request may have replaced it already.
+   */
+  private void removeFromCache(String cacheKey, Future<Forecast> future)
+  {
+    synchronized (cache)
+    {
+      if (cache.get(cacheKey) == future)
+      {
+        cache.remove(cacheKey);
+      }
+    }
+  }
+
+  private static ForecastService createForecastService(String cdsServiceType, String cdsServiceUrl)
+  {
+    if (cdsServiceType.equals(SERVICE_TYPE_STUB))
+    {
+      return new ForecastStub();
+    }
+    Software software = new Software();
+    software.setServiceUrl(cdsServiceUrl);
+    software.setService(Service.getService(cdsServiceType));
+    final ConnectorInterface connector = ConnectFactory.createConnecter(software);
+    return new ForecastService() {
+      public List<ForecastActual> queryForForecast(TestCase testCase) throws IOException
+      {
+        return connector.queryForForecast(testCase, new SoftwareResult());
+      }
+    };
+  }
+
+  private static void sortVaccinations(List<Vaccination> vaccinationList)
+  {
+    Collections.sort(vaccinationList, new Comparator<Vaccination>() {
+      public int compare(Vaccination v1, Vaccination v2)
+      {
+        int c = Integer.parseInt(v1.getAdminCvxCode()) - Integer.parseInt(v2.getAdminCvxCode());
+        if (c != 0)
+        {
+          return c;
+        }
+        if (v1.getAdminDate() == null || v2.getAdminDate() == null)
+        {
+          return v1.getAdminDate() == null ? (v2.getAdminDate() == null ? 0 : -1) : 1;
+        }
+        return v1.getAdminDate().compareTo(v2.getAdminDate());
+      }
+    });
+  }
+
+  private static String createCacheKey(String cdsServiceType, String cdsServiceUrl, Date dob, String sex,
+      List<Vaccination> sortedVaccinationList, Date evalDate)
+  {
+    SimpleDateFormat sdf = new SimpleDateFormat("yyyyMMdd");
+    StringBuilder sb = new StringBuilder();
+    sb.append(cdsServiceType);
+    sb.append("|");
+    sb.append(cdsServiceUrl);
+    sb.append("|");
+    sb.append(dob == null ? "" : sdf.format(dob));
+    sb.append("|");
+    sb.append(sex);
+    sb.append("|");
+    sb.append(sdf.format(evalDate));
+    for (Vaccination vaccination : sortedVaccinationList)
+    {
+      sb.append("|");
+      sb.append(Integer.parseInt(vaccination.getAdminCvxCode()));
+      sb.append("@");
+      sb.append(vaccination.getAdminDate() == null ? "" : sdf.format(vaccination.getAdminDate()));
+    }
+    try
+    {
+      return HashManager.getMD5Hash(sb.toString());
+    } catch (NoSuchAlgorithmException nsae)
+    {
+      return sb.toString();
+    }
+  }
+}
@@ -0,0 +1,43 @@
+/*
+ * Copyright 2013 by Dandelion Software & Research, Inc (DSR)
+ * 
+ * This application was written for immunization information system (IIS) community and has
+ * been released by DSR under an Apache 2 License with the hope that this software will be used
+ * to improve Public Health.  
+ */
+package org.openimmunizationsoftware.dqa.manager;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.List;
+
+import org.openimmunizationsoftware.dqa.db.model.KeyedSetting;
+import org.tch.fc.model.ForecastActual;
+import org.tch.fc.model.TestCase;
+
+/**
+ * In-process forecast service used for load testing without a live CDS
+ * service. Select it by setting the CDS service type to "stub". It waits for
+ * the configured delay and then returns no forecasts.
+ */
+public class ForecastStub implements ForecastManager.ForecastService
+{
+  private static final int DEFAULT_DELAY = 0;
+
+  public List<ForecastActual> queryForForecast(TestCase testCase) throws IOException
+  {
+    int delay = KeyedSettingManager.getKeyedSettingManager().getKeyedValueInt(KeyedSetting.CDS_SOFTWARE_STUB_DELAY,
+        DEFAULT_DELAY);
+    if (delay > 0)
+    {
+      try
+      {
+        Thread.sleep(delay);
+      } catch (InterruptedException ie)
+      {
+        throw new IOException("Interrupted while waiting for stub forecast");
+      }
+    }
+    return new ArrayList<ForecastActual>();
+  }
+}
@@ -22,15 +22,13 @@ import org.openimmunizationsoftware.dqa.db.model.received.types.Name;
 
 public class KnownNames implements Reload
 {
-  private static KnownNames singleton = null;
-
-  private static String INIT_BLOCK = "";
+  private static volatile KnownNames singleton = null;
 
   public static KnownNames getKnownsNames()
   {
     if (singleton == null)
     {
-      synchronized (INIT_BLOCK)
+      synchronized (KnownNames.class)
       {
         if (singleton == null)
         {
@@ -0,0 +1,452 @@
+/*
+ * Copyright 2013 by Dandelion Software & Research, Inc (DSR)
+ * 
+ * This application was written for immunization information system (IIS) community and has
+ * been released by DSR under an Apache 2 License with the hope that this software will be used
+ * to improve Public Health.  
+ */
+package org.openimmunizationsoftware.dqa.manager;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.LinkedHashMap;
+import java.util.LinkedList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+import org.openimmunizationsoftware.dqa.db.model.KeyedSetting;
+
+/**
+ * Runs background jobs at the times their triggers give, on one small shared
+ * pool of threads, instead of each job keeping its own thread that wakes up
+ * to check the time. Each job is only timed for its next run, so nothing is
+ * polling in between.
+ *
+ * A job that is still running when it is due again is handled by its
+ * concurrency policy, and a run that starts well after it was due, for
+ * example because every thread was busy, is handled by its misfire policy.
+ * The last few runs of every job are kept for the status pages.
+ */
+public class ManagerScheduler
+{
+  private static ManagerScheduler singleton = null;
+  private static final String INIT_BLOCK = "init";
+
+  public static ManagerScheduler getManagerScheduler()
+  {
+    if (singleton == null)
+    {
+      synchronized (INIT_BLOCK)
+      {
+        if (singleton == null)
+        {
+          singleton = new ManagerScheduler();
+        }
+      }
+    }
+    return singleton;
+  }
+
+  /**
+   * What to do when a job is due while an earlier run is still going.
+   */
+  public enum ConcurrencyPolicy {
+    /**
+     * Start another run alongside it.
+     */
+    ALLOW,
+    /**
+     * Do not run this time.
+     */
+    SKIP,
+    /**
+     * Run once more as soon as the current run finishes.
+     */
+    QUEUE
+  }
+
+  /**
+   * What to do when a run starts more than the misfire threshold after it was
+   * due.
+   */
+  public enum MisfirePolicy {
+    /**
+     * Run now anyway.
+     */
+    FIRE_NOW,
+    /**
+     * Do not run, wait for the next time.
+     */
+    SKIP
+  }
+
+  public static final long MISFIRE_THRESHOLD = 60 * 1000;
+  private static final int HISTORY_SIZE = 20;
+
+  private ScheduledThreadPoolExecutor executor = null;
+  private Map<String, ScheduledJob> scheduledJobMap = new LinkedHashMap<String, ScheduledJob>();
+
+  private ManagerScheduler() {
+    int threads = KeyedSettingManager.getKeyedSettingManager().getKeyedValueInt(KeyedSetting.SCHEDULER_THREADS, 3);
+    executor = new ScheduledThreadPoolExecutor(threads < 1 ? 1 : threads, new ThreadFactory() {
+      private int count = 0;
+
+      public synchronized Thread newThread(Runnable runnable)
+      {
+        count++;
+        Thread thread = new Thread(runnable, "DQA Scheduler " + count);
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+  }
+
+  /**
+   * Schedules the task to run at the times the trigger gives. A job already
+   * scheduled under the same label is cancelled first.
+   */
+  public ScheduledJob schedule(String label, ScheduleTrigger trigger, ConcurrencyPolicy concurrencyPolicy,
+      MisfirePolicy misfirePolicy, Runnable task)
+  {
+    ScheduledJob scheduledJob = new ScheduledJob(label, trigger, concurrencyPolicy, misfirePolicy, task);
+    ScheduledJob previousJob;
+    synchronized (scheduledJobMap)
+    {
+      previousJob = scheduledJobMap.put(label, scheduledJob);
+    }
+    if (previousJob != null)
+    {
+      previousJob.cancel();
+    }
+    scheduledJob.scheduleNext(new Date());
+    return scheduledJob;
+  }
+
+  public ScheduledJob getScheduledJob(String label)
+  {
+    synchronized (scheduledJobMap)
+    {
+      return scheduledJobMap.get(label);
+    }
+  }
+
+  public List<ScheduledJob> getScheduledJobs()
+  {
+    synchronized (scheduledJobMap)
+    {
+      return new ArrayList<ScheduledJob>(scheduledJobMap.values());
+    }
+  }
+
+  /**
+   * Cancels every job and stops the threads. Runs in progress are
+   * interrupted.
+   */
+  public void shutdown()
+  {
+    for (ScheduledJob scheduledJob : getScheduledJobs())
+    {
+      scheduledJob.cancel();
+    }
+    executor.shutdownNow();
+  }
+
+  /**
+   * One run of a job, or a time it was due but did not run.
+   */
+  public static class JobRun
+  {
+    public static final String STATUS_RUNNING = "Running";
+    public static final String STATUS_FINISHED = "Finished";
+    public static final String STATUS_FAILED = "Failed";
+    public static final String STATUS_SKIPPED = "Skipped";
+    public static final String STATUS_MISFIRED = "Misfired";
+
+    private Date scheduledTime;
+    private volatile Date startTime = null;
+    private volatile Date endTime = null;
+    private volatile String status;
+    private volatile String message = null;
+
+    private JobRun(Date scheduledTime, String status) {
+      this.scheduledTime = scheduledTime;
+      this.status = status;
+    }
+
+    public Date getScheduledTime()
+    {
+      return scheduledTime;
+    }
+
+    public Date getStartTime()
+    {
+      return startTime;
+    }
+
+    public Date getEndTime()
+    {
+      return endTime;
+    }
+
+    public String getStatus()
+    {
+      return status;
+    }
+
+    public String getMessage()
+    {
+      return message;
+    }
+  }
+
+  public class ScheduledJob
+  {
+    private String label;
+    private ScheduleTrigger trigger;
+    private ConcurrencyPolicy concurrencyPolicy;
+    private MisfirePolicy misfirePolicy;
+    private Runnable task;
+    private volatile Date nextFireTime = null;
+    private volatile boolean cancelled = false;
+    private ScheduledFuture<?> future = null;
+    // Guards runningCount and runPending, which have to change together
+    private final Object runLock = new Object();
+    private int runningCount = 0;
+    private boolean runPending = false;
+    private LinkedList<JobRun> history = new LinkedList<JobRun>();
+
+    private ScheduledJob(String label, ScheduleTrigger trigger, ConcurrencyPolicy concurrencyPolicy, MisfirePolicy misfirePolicy,
+        Runnable task) {
+      this.label = label;
+      this.trigger = trigger;
+      this.concurrencyPolicy = concurrencyPolicy;
+      this.misfirePolicy = misfirePolicy;
+      this.task = task;
+    }
+
+    public String getLabel()
+    {
+      return label;
+    }
+
+    public ScheduleTrigger getTrigger()
+    {
+      return trigger;
+    }
+
+    public ConcurrencyPolicy getConcurrencyPolicy()
+    {
+      return concurrencyPolicy;
+    }
+
+    public MisfirePolicy getMisfirePolicy()
+    {
+      return misfirePolicy;
+    }
+
+    /**
+     * Returns when the job is next due, or null if it is not scheduled to run
+     * again.
+     */
+    public Date getNextFireTime()
+    {
+      return nextFireTime;
+    }
+
+    public boolean isRunning()
+    {
+      synchronized (runLock)
+      {
+        return runningCount > 0;
+      }
+    }
+
+    public boolean isCancelled()
+    {
+      return cancelled;
+    }
+
+    /**
+     * Returns the most recent runs, newest first.
+     */
+    public List<JobRun> getHistory()
+    {
+      synchronized (history)
+      {
+        return new ArrayList<JobRun>(history);
+      }
+    }
+
+    public synchronized void cancel()
+    {
+      cancelled = true;
+      nextFireTime = null;
+      if (future != null)
+      {
+        future.cancel(false);
+        future = null;
+      }
+    }
+
+    /**
+     * Runs the job now, outside of its schedule, following its concurrency
+     * policy.
+     */
+    public void fireNow()
+    {
+      executor.execute(new Runnable() {
+        public void run()
+        {
+          start(new Date());
+        }
+      });
+    }
+
+    private synchronized void scheduleNext(Date after)
+    {
+      if (cancelled)
+      {
+        return;
+      }
+      Date fireTime = null;
+      try
+      {
+        fireTime = trigger.getNextFireTime(after);
+      } catch (Exception e)
+      {
+        // A trigger that can not work out its next time leaves the job
+        // unscheduled rather than stopping the scheduler
+        e.printStackTrace();
+      }
+      nextFireTime = fireTime;
+      if (fireTime == null)
+      {
+        future = null;
+        return;
+      }
+      final Date scheduledTime = fireTime;
+      long delay = scheduledTime.getTime() - System.currentTimeMillis();
+      future = executor.schedule(new Runnable() {
+        public void run()
+        {
+          fire(scheduledTime);
+        }
+      }, delay < 0 ? 0 : delay, TimeUnit.MILLISECONDS);
+    }
+
+    private void fire(Date scheduledTime)
+    {
+      if (cancelled)
+      {
+        return;
+      }
+      long now = System.currentTimeMillis();
+      // Time the next run from when this one was due so the schedule does not
+      // drift, unless that is already past, in which case the runs missed in
+      // between are folded into this one
+      Date after = scheduledTime;
+      try
+      {
+        Date next = trigger.getNextFireTime(after);
+        if (next != null && next.getTime() <= now)
+        {
+          after = new Date(now);
+        }
+      } catch (Exception e)
+      {
+        after = new Date(now);
+      }
+      scheduleNext(after);
+      if (now - scheduledTime.getTime() > MISFIRE_THRESHOLD && misfirePolicy == MisfirePolicy.SKIP)
+      {
+        JobRun jobRun = new JobRun(scheduledTime, JobRun.STATUS_MISFIRED);
+        jobRun.message = "Started " + ((now - scheduledTime.getTime()) / 1000) + " seconds late";
+        addToHistory(jobRun);
+        return;
+      }
+      start(scheduledTime);
+    }
+
+    private void start(Date scheduledTime)
+    {
+      boolean startRun;
+      synchronized (runLock)
+      {
+        if (concurrencyPolicy == ConcurrencyPolicy.QUEUE && runningCount > 0)
+        {
+          // The run in progress checks this under the same lock before it
+          // finishes, so it is sure to see it
+          runPending = true;
+          return;
+        }
+        startRun = concurrencyPolicy == ConcurrencyPolicy.ALLOW || runningCount == 0;
+        if (startRun)
+        {
+          runningCount++;
+        }
+      }
+      if (startRun)
+      {
+        run(scheduledTime);
+        return;
+      }
+      JobRun jobRun = new JobRun(scheduledTime, JobRun.STATUS_SKIPPED);
+      jobRun.message = "Previous run still going";
+      addToHistory(jobRun);
+    }
+
+    /**
+     * Runs the task once, and again for each run queued while it was going.
+     * The caller has already counted this run in runningCount.
+     */
+    private void run(Date scheduledTime)
+    {
+      while (true)
+      {
+        JobRun jobRun = new JobRun(scheduledTime, JobRun.STATUS_RUNNING);
+        jobRun.startTime = new Date();
+        addToHistory(jobRun);
+        try
+        {
+          task.run();
+          jobRun.status = JobRun.STATUS_FINISHED;
+        } catch (Throwable t)
+        {
+          t.printStackTrace();
+          jobRun.message = t.getMessage();
+          jobRun.status = JobRun.STATUS_FAILED;
+        } finally
+        {
+          jobRun.endTime = new Date();
+        }
+        synchronized (runLock)
+        {
+          boolean runAgain = runPending && !cancelled;
+          runPending = false;
+          if (!runAgain)
+          {
+            runningCount--;
+            return;
+          }
+        }
+        scheduledTime = new Date();
+      }
+    }
+
+    private void addToHistory(JobRun jobRun)
+    {
+      synchronized (history)
+      {
+        history.addFirst(jobRun);
+        while (history.size() > HISTORY_SIZE)
+        {
+          history.removeLast();
+        }
+      }
+    }
+  }
+}
@@ -8,25 +8,134 @@
 package org.openimmunizationsoftware.dqa.manager;
 
 import java.io.IOException;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReferenceArray;
 
-public class ManagerThread extends Thread
+import org.openimmunizationsoftware.dqa.manager.ManagerScheduler.ConcurrencyPolicy;
+import org.openimmunizationsoftware.dqa.manager.ManagerScheduler.MisfirePolicy;
+import org.openimmunizationsoftware.dqa.manager.ManagerScheduler.ScheduledJob;
+
+/**
+ * Base for the background managers. Progress is kept in atomic fields and the
+ * log in a fixed number of recent events, so a status page can read either
+ * at any time without locking and without the log growing during long runs.
+ * Despite the name these are not threads; the shared {@link ManagerScheduler}
+ * calls run on its own threads.
+ */
+public class ManagerThread implements Runnable
 {
-  protected StringBuilder internalLog = new StringBuilder();
-  protected boolean keepRunning = true;
+  public static final int LOG_SIZE = 200;
+
+  protected volatile boolean keepRunning = true;
   protected String label = "";
-  protected Throwable lastException = null;
-  protected int progressCount = 0;
-  protected long progressStart = 0l;
+  protected volatile Throwable lastException = null;
+  protected ScheduledJob scheduledJob = null;
+
+  private AtomicLong progressCount = new AtomicLong();
+  private AtomicLong progressTotal = new AtomicLong();
+  private AtomicLong progressStart = new AtomicLong();
+  private AtomicLong progressEnd = new AtomicLong();
+  private volatile String progressItem = "";
+
+  private AtomicReferenceArray<LogEvent> logEvents = new AtomicReferenceArray<LogEvent>(LOG_SIZE);
+  private AtomicLong logSequence = new AtomicLong();
+
+  /**
+   * One line of the log.
+   */
+  public static class LogEvent
+  {
+    private long sequence;
+    private long time;
+    private String message;
+
+    private LogEvent(long sequence, long time, String message) {
+      this.sequence = sequence;
+      this.time = time;
+      this.message = message;
+    }
+
+    public long getSequence()
+    {
+      return sequence;
+    }
+
+    public Date getTime()
+    {
+      return new Date(time);
+    }
+
+    public String getMessage()
+    {
+      return message;
+    }
+  }
 
   public ManagerThread(String label) {
     this.label = label;
   }
 
-  public StringBuilder getInternalLog()
+  /**
+   * Does one pass of the work. Subclasses override this, by default there is
+   * nothing to do.
+   */
+  public void run()
+  {
+    // nothing to do
+  }
+
+  /**
+   * Adds a line to the log, dropping the oldest line once there are
+   * LOG_SIZE of them. Trailing line breaks are removed.
+   */
+  protected void log(String message)
   {
-    return internalLog;
+    int end = message.length();
+    while (end > 0 && (message.charAt(end - 1) == '\n' || message.charAt(end - 1) == '\r'))
+    {
+      end--;
+    }
+    long sequence = logSequence.getAndIncrement();
+    logEvents.set((int) (sequence % LOG_SIZE), new LogEvent(sequence, System.currentTimeMillis(), message.substring(0, end)));
+  }
+
+  /**
+   * Returns the lines still held in the log, oldest first.
+   */
+  public List<LogEvent> getLogEvents()
+  {
+    long end = logSequence.get();
+    long start = end > LOG_SIZE ? end - LOG_SIZE : 0;
+    List<LogEvent> logEventList = new ArrayList<LogEvent>((int) (end - start));
+    for (long sequence = start; sequence < end; sequence++)
+    {
+      LogEvent logEvent = logEvents.get((int) (sequence % LOG_SIZE));
+      // Skip a slot that is being written over as it is read
+      if (logEvent != null && logEvent.sequence == sequence)
+      {
+        logEventList.add(logEvent);
+      }
+    }
+    return logEventList;
+  }
+
+  /**
+   * Returns the lines still held in the log as text, one per line. This is a
+   * copy, add to the log with {@link #log(String)}.
+   */
+  public String getInternalLog()
+  {
+    StringBuilder sb = new StringBuilder();
+    for (LogEvent logEvent : getLogEvents())
+    {
+      sb.append(logEvent.getMessage());
+      sb.append("\n");
+    }
+    return sb.toString();
   }
 
   public String getLabel()
@@ -41,32 +150,115 @@ public class ManagerThread extends Thread
 
   public int getProgressCount()
   {
-    return progressCount;
+    return (int) progressCount.get();
   }
 
   public long getProgressStart()
   {
-    return progressStart;
+    return progressStart.get();
+  }
+
+  public long getProgressEnd()
+  {
+    return progressEnd.get();
+  }
+
+  public long getProgressTotal()
+  {
+    return progressTotal.get();
   }
-  
+
+  /**
+   * Returns what is being worked on now, such as the profile being exported.
+   */
+  public String getProgressItem()
+  {
+    return progressItem;
+  }
+
+  /**
+   * Returns the items done per second since progress was started, or 0 if
+   * nothing has been done yet.
+   */
+  public double getProgressRate()
+  {
+    long start = progressStart.get();
+    if (start == 0)
+    {
+      return 0;
+    }
+    long end = progressEnd.get();
+    long elapsed = (end >= start ? end : System.currentTimeMillis()) - start;
+    if (elapsed <= 0)
+    {
+      return 0;
+    }
+    return progressCount.get() * 1000.0 / elapsed;
+  }
+
+  /**
+   * Returns the estimated milliseconds left at the current rate, or -1 if
+   * there is no total or no rate yet.
+   */
+  public long getProgressRemaining()
+  {
+    long total = progressTotal.get();
+    double rate = getProgressRate();
+    if (total <= 0 || rate <= 0)
+    {
+      return -1;
+    }
+    long left = total - progressCount.get();
+    return left <= 0 ? 0 : (long) (left * 1000 / rate);
+  }
+
+  /**
+   * Starts counting progress over, with the given total, or 0 if the total is
+   * not known.
+   */
+  public void startProgress(long total)
+  {
+    progressCount.set(0);
+    progressTotal.set(total);
+    progressEnd.set(0);
+    progressItem = "";
+    progressStart.set(System.currentTimeMillis());
+  }
+
+  public void endProgress()
+  {
+    progressItem = "";
+    progressEnd.set(System.currentTimeMillis());
+  }
+
   public void setProgressStart(long progressStart)
   {
-    this.progressStart = progressStart;
+    this.progressStart.set(progressStart);
   }
-  
+
   public void setProgressEnd(long progressEnd)
   {
-    this.progressStart = progressEnd;
+    this.progressEnd.set(progressEnd);
+  }
+
+  public void setProgressTotal(long progressTotal)
+  {
+    this.progressTotal.set(progressTotal);
   }
-  
+
+  public void setProgressItem(String progressItem)
+  {
+    this.progressItem = progressItem == null ? "" : progressItem;
+  }
+
   public void incProgressCount()
   {
-    progressCount++;
+    progressCount.incrementAndGet();
   }
-  
+
   public void setProgressCount(int progressCount)
   {
-    this.progressCount = progressCount;
+    this.progressCount.set(progressCount);
   }
 
   protected Date getTimeToday(String startTimeString)
@@ -97,6 +289,33 @@ public class ManagerThread extends Thread
     return keepRunning;
   }
 
+  /**
+   * Has the shared scheduler call run at the times the trigger gives. Each
+   * call to run should do one pass of the work and return.
+   */
+  protected void schedule(ScheduleTrigger trigger, ConcurrencyPolicy concurrencyPolicy, MisfirePolicy misfirePolicy)
+  {
+    scheduledJob = ManagerScheduler.getManagerScheduler().schedule(label, trigger, concurrencyPolicy, misfirePolicy, this);
+  }
+
+  /**
+   * Returns the scheduled job, with its next run time and run history, or null
+   * if this is not run by the scheduler.
+   */
+  public ScheduledJob getScheduledJob()
+  {
+    return scheduledJob;
+  }
+
+  public void stopRunning()
+  {
+    keepRunning = false;
+    if (scheduledJob != null)
+    {
+      scheduledJob.cancel();
+    }
+  }
+
   public synchronized void runNow(Date now) throws IOException
   {
     throw new IllegalArgumentException("This method has not been written");
@@ -25,6 +25,9 @@ public class OrganizationManager
       if (factory == null)
       {
         factory = new AnnotationConfiguration().configure().buildSessionFactory();
+        // Load the reference data in the background now, rather than on the
+        // first messages received
+        ReferenceDataWarmup.start();
       }
       return factory;
     }
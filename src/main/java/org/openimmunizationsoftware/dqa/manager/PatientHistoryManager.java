@@ -0,0 +1,599 @@
+/*
+ * Copyright 2013 by Dandelion Software & Research, Inc (DSR)
+ * 
+ * This application was written for immunization information system (IIS) community and has
+ * been released by DSR under an Apache 2 License with the hope that this software will be used
+ * to improve Public Health.  
+ */
+package org.openimmunizationsoftware.dqa.manager;
+
+import java.io.Serializable;
+import java.util.ArrayList;
+import java.util.Calendar;
+import java.util.Collection;
+import java.util.Date;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.hibernate.LockMode;
+import org.hibernate.LockOptions;
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.hibernate.Transaction;
+import org.hibernate.exception.ConstraintViolationException;
+import org.openimmunizationsoftware.dqa.db.model.KeyedSetting;
+import org.openimmunizationsoftware.dqa.db.model.MessageReceived;
+import org.openimmunizationsoftware.dqa.db.model.PatientHistory;
+import org.openimmunizationsoftware.dqa.db.model.SubmitterProfile;
+import org.openimmunizationsoftware.dqa.db.model.received.NextOfKin;
+import org.openimmunizationsoftware.dqa.db.model.received.Patient;
+import org.openimmunizationsoftware.dqa.db.model.received.Vaccination;
+import org.openimmunizationsoftware.dqa.db.model.received.types.PatientImmunity;
+
+/**
+ * Keeps the consolidated immunization history for each submitter patient id so
+ * that a query does not have to replay every accepted update message. Histories
+ * are updated as updates are accepted, stored in the dqa_patient_history table
+ * and the most recently used are held in memory.
+ *
+ * An update locks the history row until its transaction ends, so updates for
+ * the same patient are applied one after the other, even from different
+ * servers. The row version tells whether the copy held in memory is still
+ * current. There is one row per profile and patient id. The row for a patient
+ * not seen before is first added empty in its own transaction, so when two
+ * updates add it at the same time only that small insert fails and both
+ * updates then wait on the same row.
+ */
+public class PatientHistoryManager implements Reload
+{
+  private static PatientHistoryManager singleton = null;
+  private static final String INIT_BLOCK = "init";
+
+  private static final int DEFAULT_CACHE_SIZE = 10000;
+  private static final int LOAD_CHUNK_SIZE = 500;
+
+  public static PatientHistoryManager getPatientHistoryManager()
+  {
+    if (singleton == null)
+    {
+      synchronized (INIT_BLOCK)
+      {
+        if (singleton == null)
+        {
+          singleton = new PatientHistoryManager();
+          ReloadManager.registerReload(singleton);
+        }
+      }
+    }
+    return singleton;
+  }
+
+  public void reload()
+  {
+    if (singleton != null)
+    {
+      singleton = null;
+    }
+    getPatientHistoryManager();
+  }
+
+  /**
+   * Key used to decide if two vaccinations are the same event, matches on
+   * administered date (to the day) and CVX code.
+   */
+  public static String vaccinationKey(Vaccination vaccination)
+  {
+    Date adminDate = vaccination.getAdminDate();
+    String dayKey = "";
+    if (adminDate != null)
+    {
+      Calendar cal = Calendar.getInstance();
+      cal.setTime(adminDate);
+      dayKey = String.valueOf(cal.get(Calendar.YEAR) * 10000 + (cal.get(Calendar.MONTH) + 1) * 100
+          + cal.get(Calendar.DAY_OF_MONTH));
+    }
+    return dayKey + "|" + vaccination.getAdminCvxCode();
+  }
+
+  /**
+   * Key used to decide if two next-of-kin are the same person, matches on first
+   * and last name. A missing name only matches another missing name.
+   */
+  public static String nextOfKinKey(NextOfKin nextOfKin)
+  {
+    return nullSafeKey(nextOfKin.getNameFirst()) + "|" + nullSafeKey(nextOfKin.getNameLast());
+  }
+
+  private static String nullSafeKey(String s)
+  {
+    return s == null ? "-" : "+" + s.replace("|", "||");
+  }
+
+  private static boolean sameName(String s1, String s2)
+  {
+    if (s1 == null || s2 == null)
+    {
+      return s1 == s2;
+    }
+    return s1.equalsIgnoreCase(s2);
+  }
+
+  private boolean enabled = false;
+  private Map<String, ConsolidatedHistory> cache;
+
+  private PatientHistoryManager() {
+    KeyedSettingManager ksm = KeyedSettingManager.getKeyedSettingManager();
+    enabled = ksm.getKeyedValueBoolean(KeyedSetting.QUERY_HISTORY_CACHE_ENABLED, false);
+    final int cacheSize = ksm.getKeyedValueInt(KeyedSetting.QUERY_HISTORY_CACHE_SIZE, DEFAULT_CACHE_SIZE);
+    cache = new LinkedHashMap<String, ConsolidatedHistory>(16, 0.75f, true) {
+      private static final long serialVersionUID = 1L;
+
+      @Override
+      protected boolean removeEldestEntry(Map.Entry<String, ConsolidatedHistory> eldest)
+      {
+        return size() > cacheSize;
+      }
+    };
+  }
+
+  public boolean isEnabled()
+  {
+    return enabled;
+  }
+
+  /**
+   * Returns the consolidated history for the patient id, reading it from
+   * memory when the copy there is still current or else from the history
+   * table. If no history has been recorded yet it is built from the accepted
+   * messages but not stored, the next accepted update stores it.
+   *
+   * @return the history or null if no messages have been accepted for this
+   *         patient id
+   */
+  public ConsolidatedHistory getHistory(SubmitterProfile profile, String idSubmitterNumber, Session session)
+  {
+    PatientHistory patientHistory = findPatientHistory(profile, idSubmitterNumber, false, session);
+    if (patientHistory == null || patientHistory.getPatientId() == 0)
+    {
+      // the records read to build it are kept so the query need not read them again
+      return buildHistory(profile, idSubmitterNumber, 0l, true, session);
+    }
+    ConsolidatedHistory history = getCurrentHistory(patientHistory, session);
+    // the row has been committed, so what was read from it can be shared
+    cacheHistory(history);
+    return history;
+  }
+
+  /**
+   * Applies a newly accepted update message to the consolidated history and
+   * saves the history in the current transaction. The history row stays locked
+   * until the transaction ends. The returned history should be passed to
+   * {@link #cacheHistory(ConsolidatedHistory)} once the transaction has been
+   * committed, and not at all if it is rolled back.
+   *
+   * @return the updated history or null if the message has no patient id
+   */
+  public ConsolidatedHistory registerAcceptedMessage(MessageReceived messageReceived, Session session)
+  {
+    Patient patient = messageReceived.getPatient();
+    String idSubmitterNumber = patient.getIdSubmitterNumber();
+    if (idSubmitterNumber == null || idSubmitterNumber.equals(""))
+    {
+      return null;
+    }
+    SubmitterProfile profile = messageReceived.getProfile();
+    if (!hasPatientHistory(profile, idSubmitterNumber, session))
+    {
+      insertPatientHistory(profile, idSubmitterNumber);
+    }
+    PatientHistory patientHistory = findPatientHistory(profile, idSubmitterNumber, true, session);
+    ConsolidatedHistory history;
+    if (patientHistory == null || patientHistory.getPatientId() == 0)
+    {
+      // nothing has been applied to the row yet
+      history = buildHistory(profile, idSubmitterNumber, messageReceived.getReceivedId(), false, session);
+      if (history == null)
+      {
+        history = new ConsolidatedHistory(profile, idSubmitterNumber);
+      }
+    } else
+    {
+      // copied so the shared one is not changed before the commit
+      history = new ConsolidatedHistory(getCurrentHistory(patientHistory, session));
+    }
+    apply(history, patient, messageReceived.getNextOfKins(), messageReceived.getVaccinations(),
+        patient.getPatientImmunityList());
+    saveHistory(history, patientHistory, session);
+    return history;
+  }
+
+  /**
+   * Holds the committed history in memory, unless a later version of it is
+   * already held.
+   */
+  public void cacheHistory(ConsolidatedHistory history)
+  {
+    synchronized (cache)
+    {
+      ConsolidatedHistory cached = cache.get(history.cacheKey);
+      if (cached == null || cached.version <= history.version)
+      {
+        cache.put(history.cacheKey, history);
+      }
+    }
+  }
+
+  public List<Vaccination> loadVaccinations(ConsolidatedHistory history, Session session)
+  {
+    if (history.replayedVaccinations != null)
+    {
+      return getInOrder(history.replayedVaccinations, history.vaccinations.values());
+    }
+    return loadInOrder(session, Vaccination.class, "vaccinationId", new ArrayList<Long>(history.vaccinations.values()));
+  }
+
+  public List<NextOfKin> loadNextOfKins(ConsolidatedHistory history, Session session)
+  {
+    if (history.replayedNextOfKins != null)
+    {
+      return getInOrder(history.replayedNextOfKins, history.nextOfKins.values());
+    }
+    return loadInOrder(session, NextOfKin.class, "nextOfKinId", new ArrayList<Long>(history.nextOfKins.values()));
+  }
+
+  public List<PatientImmunity> loadImmunities(ConsolidatedHistory history, Session session)
+  {
+    if (history.replayedImmunities != null)
+    {
+      return getInOrder(history.replayedImmunities, history.immunities.values());
+    }
+    List<Integer> immunityIds = new ArrayList<Integer>();
+    for (Long immunityId : history.immunities.values())
+    {
+      immunityIds.add(immunityId.intValue());
+    }
+    return loadInOrder(session, PatientImmunity.class, "immunityId", immunityIds);
+  }
+
+  private static boolean hasPatientHistory(SubmitterProfile profile, String idSubmitterNumber, Session session)
+  {
+    // only the id is read so the row is not loaded into the session unlocked
+    Query query = session
+        .createQuery("select ph.historyId from PatientHistory ph where ph.profile = ? and ph.idSubmitterNumber = ?");
+    query.setParameter(0, profile);
+    query.setParameter(1, idSubmitterNumber);
+    return query.list().size() > 0;
+  }
+
+  /**
+   * Adds an empty history row using a separate session and transaction. If
+   * another update has added the row at the same moment the insert fails on
+   * the unique key, which only ends this transaction and not the one
+   * processing the message.
+   */
+  private static void insertPatientHistory(SubmitterProfile profile, String idSubmitterNumber)
+  {
+    Session session = OrganizationManager.getSessionFactory().openSession();
+    Transaction tx = session.beginTransaction();
+    try
+    {
+      PatientHistory patientHistory = new PatientHistory();
+      patientHistory.setProfile(profile);
+      patientHistory.setIdSubmitterNumber(idSubmitterNumber);
+      patientHistory.setUpdatedDate(new Date());
+      session.save(patientHistory);
+      tx.commit();
+      tx = null;
+    } catch (ConstraintViolationException cve)
+    {
+      // added by another update, which will be waited on instead
+    } finally
+    {
+      if (tx != null)
+      {
+        tx.rollback();
+      }
+      session.close();
+    }
+  }
+
+  /**
+   * Reads the history row, locking it for the rest of the transaction if
+   * asked. Returns null if there is no row yet.
+   */
+  private PatientHistory findPatientHistory(SubmitterProfile profile, String idSubmitterNumber, boolean lock,
+      Session session)
+  {
+    Query query = session.createQuery("from PatientHistory ph where ph.profile = ? and ph.idSubmitterNumber = ?");
+    query.setParameter(0, profile);
+    query.setParameter(1, idSubmitterNumber);
+    if (lock)
+    {
+      query.setLockOptions(new LockOptions(LockMode.PESSIMISTIC_WRITE));
+    }
+    List<PatientHistory> patientHistoryList = query.list();
+    return patientHistoryList.size() > 0 ? patientHistoryList.get(0) : null;
+  }
+
+  /**
+   * Returns the history held in memory if it is the same version as the row,
+   * otherwise reads it from the row.
+   */
+  private ConsolidatedHistory getCurrentHistory(PatientHistory patientHistory, Session session)
+  {
+    String cacheKey = patientHistory.getProfile().getProfileId() + "|" + patientHistory.getIdSubmitterNumber();
+    ConsolidatedHistory history;
+    synchronized (cache)
+    {
+      history = cache.get(cacheKey);
+    }
+    if (history != null && history.version == patientHistory.getVersion())
+    {
+      return history;
+    }
+    return readHistory(patientHistory, session);
+  }
+
+  private ConsolidatedHistory readHistory(PatientHistory patientHistory, Session session)
+  {
+    ConsolidatedHistory history = new ConsolidatedHistory(patientHistory.getProfile(),
+        patientHistory.getIdSubmitterNumber());
+    history.historyId = patientHistory.getHistoryId();
+    history.version = patientHistory.getVersion();
+    history.patientId = patientHistory.getPatientId();
+    history.nameFirst = patientHistory.getNameFirst();
+    history.nameLast = patientHistory.getNameLast();
+    history.nameConsistent = patientHistory.isNameConsistent();
+    // keys are not stored so the records are read back to rebuild them
+    for (Vaccination vaccination : loadInOrder(session, Vaccination.class, "vaccinationId",
+        PatientHistory.splitIds(patientHistory.getVaccinationIds())))
+    {
+      history.vaccinations.put(vaccinationKey(vaccination), vaccination.getVaccinationId());
+    }
+    for (NextOfKin nextOfKin : loadInOrder(session, NextOfKin.class, "nextOfKinId",
+        PatientHistory.splitIds(patientHistory.getNextOfKinIds())))
+    {
+      history.nextOfKins.put(nextOfKinKey(nextOfKin), nextOfKin.getNextOfKinId());
+    }
+    List<Integer> immunityIds = new ArrayList<Integer>();
+    for (Long immunityId : PatientHistory.splitIds(patientHistory.getImmunityIds()))
+    {
+      immunityIds.add(immunityId.intValue());
+    }
+    for (PatientImmunity patientImmunity : loadInOrder(session, PatientImmunity.class, "immunityId", immunityIds))
+    {
+      history.immunities.put(patientImmunity.getImmunityCode(), (long) patientImmunity.getImmunityId());
+    }
+    return history;
+  }
+
+  /**
+   * Replays the accepted messages for the patient id. If asked, the records
+   * read are kept with the history so the caller can use them directly.
+   */
+  private ConsolidatedHistory buildHistory(SubmitterProfile profile, String idSubmitterNumber, long excludeReceivedId,
+      boolean keepReplayed, Session session)
+  {
+    Query query = session.createQuery("from Patient where messageReceived.profile = ? and idSubmitterNumber = ? and "
+        + "(messageReceived.issueAction = 'W' or messageReceived.issueAction = 'A') "
+        + "and messageReceived.receivedId <> ? order by messageReceived.receivedDate ASC ");
+    query.setParameter(0, profile);
+    query.setParameter(1, idSubmitterNumber);
+    query.setParameter(2, excludeReceivedId);
+    List<Patient> patientList = query.list();
+    if (patientList.size() == 0)
+    {
+      return null;
+    }
+    ConsolidatedHistory history = new ConsolidatedHistory(profile, idSubmitterNumber);
+    if (keepReplayed)
+    {
+      history.replayedVaccinations = new HashMap<Long, Vaccination>();
+      history.replayedNextOfKins = new HashMap<Long, NextOfKin>();
+      history.replayedImmunities = new HashMap<Long, PatientImmunity>();
+    }
+    for (Patient patient : patientList)
+    {
+      MessageReceived messageReceived = patient.getMessageReceived();
+      query = session.createQuery("from NextOfKin where messageReceived = ?");
+      query.setParameter(0, messageReceived);
+      List<NextOfKin> nextOfKinList = query.list();
+      query = session.createQuery("from Vaccination where messageReceived = ?");
+      query.setParameter(0, messageReceived);
+      List<Vaccination> vaccinationList = query.list();
+      query = session.createQuery("from PatientImmunity where patient = ?");
+      query.setParameter(0, patient);
+      List<PatientImmunity> patientImmunityList = query.list();
+      apply(history, patient, nextOfKinList, vaccinationList, patientImmunityList);
+      if (keepReplayed)
+      {
+        for (NextOfKin nextOfKin : nextOfKinList)
+        {
+          history.replayedNextOfKins.put(nextOfKin.getNextOfKinId(), nextOfKin);
+        }
+        for (Vaccination vaccination : vaccinationList)
+        {
+          history.replayedVaccinations.put(vaccination.getVaccinationId(), vaccination);
+        }
+        for (PatientImmunity patientImmunity : patientImmunityList)
+        {
+          history.replayedImmunities.put((long) patientImmunity.getImmunityId(), patientImmunity);
+        }
+      }
+    }
+    return history;
+  }
+
+  /**
+   * Merges one message into the history using the same rules as a query
+   * replaying the messages: the latest patient record is used, next-of-kin and
+   * vaccinations replace earlier matching entries (a vaccination delete removes
+   * the earlier entry) and the first immunity recorded for a code is kept.
+   */
+  private void apply(ConsolidatedHistory history, Patient patient, List<NextOfKin> nextOfKinList,
+      List<Vaccination> vaccinationList, List<PatientImmunity> patientImmunityList)
+  {
+    if (history.patientId == 0)
+    {
+      history.nameConsistent = true;
+    } else if (!sameName(history.nameFirst, patient.getNameFirst()) || !sameName(history.nameLast, patient.getNameLast()))
+    {
+      history.nameConsistent = false;
+    }
+    history.patientId = patient.getPatientId();
+    history.nameFirst = patient.getNameFirst();
+    history.nameLast = patient.getNameLast();
+    for (NextOfKin nextOfKin : nextOfKinList)
+    {
+      if (!nextOfKin.isSkipped())
+      {
+        String key = nextOfKinKey(nextOfKin);
+        history.nextOfKins.remove(key);
+        history.nextOfKins.put(key, nextOfKin.getNextOfKinId());
+      }
+    }
+    for (Vaccination vaccination : vaccinationList)
+    {
+      if (!vaccination.isSkipped())
+      {
+        String key = vaccinationKey(vaccination);
+        Long replaced = history.vaccinations.remove(key);
+        if (replaced == null || !vaccination.isActionDelete())
+        {
+          history.vaccinations.put(key, vaccination.getVaccinationId());
+        }
+      }
+    }
+    for (PatientImmunity patientImmunity : patientImmunityList)
+    {
+      if (!patientImmunity.isSkipped() && !history.immunities.containsKey(patientImmunity.getImmunityCode()))
+      {
+        history.immunities.put(patientImmunity.getImmunityCode(), (long) patientImmunity.getImmunityId());
+      }
+    }
+  }
+
+  private void saveHistory(ConsolidatedHistory history, PatientHistory patientHistory, Session session)
+  {
+    if (patientHistory == null)
+    {
+      patientHistory = new PatientHistory();
+      patientHistory.setProfile(history.profile);
+      patientHistory.setIdSubmitterNumber(history.idSubmitterNumber);
+    }
+    patientHistory.setPatientId(history.patientId);
+    patientHistory.setNameFirst(history.nameFirst);
+    patientHistory.setNameLast(history.nameLast);
+    patientHistory.setNameConsistent(history.nameConsistent);
+    patientHistory.setVaccinationIds(PatientHistory.joinIds(history.vaccinations.values()));
+    patientHistory.setNextOfKinIds(PatientHistory.joinIds(history.nextOfKins.values()));
+    patientHistory.setImmunityIds(PatientHistory.joinIds(history.immunities.values()));
+    patientHistory.setUpdatedDate(new Date());
+    session.saveOrUpdate(patientHistory);
+    // the version is only moved on when the row is written
+    session.flush();
+    history.historyId = patientHistory.getHistoryId();
+    history.version = patientHistory.getVersion();
+  }
+
+  private static <T> List<T> getInOrder(Map<Long, T> replayed, Collection<Long> ids)
+  {
+    List<T> entityList = new ArrayList<T>(ids.size());
+    for (Long id : ids)
+    {
+      T entity = replayed.get(id);
+      if (entity != null)
+      {
+        entityList.add(entity);
+      }
+    }
+    return entityList;
+  }
+
+  private static <T> List<T> loadInOrder(Session session, Class<T> entityClass, String idProperty,
+      List<? extends Serializable> ids)
+  {
+    Map<Serializable, T> loaded = new HashMap<Serializable, T>();
+    for (int start = 0; start < ids.size(); start += LOAD_CHUNK_SIZE)
+    {
+      Query query = session.createQuery("from " + entityClass.getSimpleName() + " where " + idProperty + " in (:ids)");
+      query.setParameterList("ids", ids.subList(start, Math.min(ids.size(), start + LOAD_CHUNK_SIZE)));
+      for (Object entity : query.list())
+      {
+        loaded.put(session.getIdentifier(entity), entityClass.cast(entity));
+      }
+    }
+    List<T> entityList = new ArrayList<T>(ids.size());
+    for (Serializable id : ids)
+    {
+      T entity = loaded.get(id);
+      if (entity != null)
+      {
+        entityList.add(entity);
+      }
+    }
+    return entityList;
+  }
+
+  /**
+   * In memory form of a patient history. Each map goes from the matching key
+   * to the id of the record currently holding that entry, in the order the
+   * entries should be returned.
+   */
+  public static class ConsolidatedHistory
+  {
+    private String cacheKey = "";
+    private int historyId = 0;
+    private int version = 0;
+    private SubmitterProfile profile = null;
+    private String idSubmitterNumber = "";
+    private long patientId = 0l;
+    private String nameFirst = "";
+    private String nameLast = "";
+    private boolean nameConsistent = true;
+    private LinkedHashMap<String, Long> vaccinations = new LinkedHashMap<String, Long>();
+    private LinkedHashMap<String, Long> nextOfKins = new LinkedHashMap<String, Long>();
+    private LinkedHashMap<String, Long> immunities = new LinkedHashMap<String, Long>();
+    // only set on a history just built for a query, never on one that is cached
+    private Map<Long, Vaccination> replayedVaccinations = null;
+    private Map<Long, NextOfKin> replayedNextOfKins = null;
+    private Map<Long, PatientImmunity> replayedImmunities = null;
+
+    private ConsolidatedHistory(SubmitterProfile profile, String idSubmitterNumber) {
+      this.profile = profile;
+      this.idSubmitterNumber = idSubmitterNumber;
+      this.cacheKey = profile.getProfileId() + "|" + idSubmitterNumber;
+    }
+
+    private ConsolidatedHistory(ConsolidatedHistory history) {
+      this(history.profile, history.idSubmitterNumber);
+      historyId = history.historyId;
+      version = history.version;
+      patientId = history.patientId;
+      nameFirst = history.nameFirst;
+      nameLast = history.nameLast;
+      nameConsistent = history.nameConsistent;
+      vaccinations.putAll(history.vaccinations);
+      nextOfKins.putAll(history.nextOfKins);
+      immunities.putAll(history.immunities);
+    }
+
+    public long getPatientId()
+    {
+      return patientId;
+    }
+
+    /**
+     * A query only returns messages whose patient name matches the name
+     * requested, so the consolidated history can only answer the query when
+     * every message carried the name being asked for.
+     */
+    public boolean matchesName(String nameFirst, String nameLast)
+    {
+      return nameConsistent && this.nameFirst != null && this.nameLast != null && this.nameFirst.equalsIgnoreCase(nameFirst)
+          && this.nameLast.equalsIgnoreCase(nameLast);
+    }
+  }
+}
@@ -760,15 +760,13 @@ public class PotentialIssues implements Reload
     return issue;
   }
 
-  private static PotentialIssues singleton = null;
-
-  private static String INIT_BLOCK = "";
+  private static volatile PotentialIssues singleton = null;
 
   public static PotentialIssues getPotentialIssues()
   {
     if (singleton == null)
     {
-      synchronized (INIT_BLOCK)
+      synchronized (PotentialIssues.class)
       {
         if (singleton == null)
         {
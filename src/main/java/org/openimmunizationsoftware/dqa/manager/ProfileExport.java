@@ -0,0 +1,166 @@
+/*
+ * Copyright 2013 by Dandelion Software & Research, Inc (DSR)
+ * 
+ * This application was written for immunization information system (IIS) community and has
+ * been released by DSR under an Apache 2 License with the hope that this software will be used
+ * to improve Public Health.  
+ */
+package org.openimmunizationsoftware.dqa.manager;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.openimmunizationsoftware.dqa.db.model.SubmitterProfile;
+
+/**
+ * Progress of the weekly export for one submitter profile. The export runs on
+ * its own thread, so everything here can be read while it is still going.
+ */
+public class ProfileExport
+{
+  public static final String STATUS_WAITING = "Waiting";
+  public static final String STATUS_RUNNING = "Running";
+  public static final String STATUS_FINISHED = "Finished";
+  public static final String STATUS_FAILED = "Failed";
+
+  private int profileId = 0;
+  private String profileCode = "";
+  private String transferPriority = "";
+  private volatile String status = STATUS_WAITING;
+  private volatile long queuedTime = 0;
+  private volatile long startTime = 0;
+  private volatile long endTime = 0;
+  private AtomicInteger batchCount = new AtomicInteger();
+  private AtomicInteger messageCount = new AtomicInteger();
+  private StringBuffer log = new StringBuffer();
+  private volatile Throwable exception = null;
+
+  public ProfileExport(SubmitterProfile profile) {
+    this.profileId = profile.getProfileId();
+    this.profileCode = profile.getProfileCode();
+    this.transferPriority = profile.getTransferPriority();
+    this.queuedTime = System.currentTimeMillis();
+  }
+
+  public int getProfileId()
+  {
+    return profileId;
+  }
+
+  public String getProfileCode()
+  {
+    return profileCode;
+  }
+
+  public String getTransferPriority()
+  {
+    return transferPriority;
+  }
+
+  public String getStatus()
+  {
+    return status;
+  }
+
+  public long getQueuedTime()
+  {
+    return queuedTime;
+  }
+
+  public long getStartTime()
+  {
+    return startTime;
+  }
+
+  public long getEndTime()
+  {
+    return endTime;
+  }
+
+  /**
+   * Returns how long the export has taken so far in milliseconds, or 0 if it
+   * has not started.
+   */
+  public long getDuration()
+  {
+    if (startTime == 0)
+    {
+      return 0;
+    }
+    return (endTime == 0 ? System.currentTimeMillis() : endTime) - startTime;
+  }
+
+  public int getBatchCount()
+  {
+    return batchCount.get();
+  }
+
+  public int getMessageCount()
+  {
+    return messageCount.get();
+  }
+
+  public String getLog()
+  {
+    return log.toString();
+  }
+
+  public Throwable getException()
+  {
+    return exception;
+  }
+
+  public boolean isDone()
+  {
+    return status == STATUS_FINISHED || status == STATUS_FAILED;
+  }
+
+  protected void log(String message)
+  {
+    log.append(message);
+  }
+
+  protected void started()
+  {
+    startTime = System.currentTimeMillis();
+    status = STATUS_RUNNING;
+  }
+
+  protected void finished()
+  {
+    endTime = System.currentTimeMillis();
+    status = STATUS_FINISHED;
+  }
+
+  protected void failed(Throwable exception)
+  {
+    this.exception = exception;
+    endTime = System.currentTimeMillis();
+    status = STATUS_FAILED;
+  }
+
+  protected void incBatchCount()
+  {
+    batchCount.incrementAndGet();
+  }
+
+  protected void addMessageCount(int count)
+  {
+    messageCount.addAndGet(count);
+  }
+
+  @Override
+  public String toString()
+  {
+    String s = profileCode + " (" + transferPriority + ") " + status + ", " + batchCount.get() + " batches, " + messageCount.get()
+        + " messages";
+    if (startTime != 0)
+    {
+      s += ", " + getDuration() + " ms";
+    }
+    if (exception != null)
+    {
+      s += ", " + exception.getMessage();
+    }
+    return s;
+  }
+}
@@ -0,0 +1,321 @@
+/*
+ * Copyright 2013 by Dandelion Software & Research, Inc (DSR)
+ * 
+ * This application was written for immunization information system (IIS) community and has
+ * been released by DSR under an Apache 2 License with the hope that this software will be used
+ * to improve Public Health.  
+ */
+package org.openimmunizationsoftware.dqa.manager;
+
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads the reference data singletons at startup on a few threads, instead of
+ * one after another on the first messages received. A cache is only loaded
+ * once the caches it needs are loaded: key settings first, then the potential
+ * issues and then the master codes received. The others load alongside. A
+ * cache that fails to load is left to load itself on first use as before.
+ *
+ * The warm-up is started by {@link OrganizationManager} as soon as the
+ * session factory has been built, which happens before any message can be
+ * received. Message processing waits for the warm-up, so intake does not open
+ * until the caches are ready or the time set by
+ * {@link org.openimmunizationsoftware.dqa.db.model.KeyedSetting#WARMUP_MAX_WAIT}
+ * has passed since the warm-up started.
+ */
+public class ReferenceDataWarmup
+{
+  private static final int THREADS = 3;
+
+  private static volatile ReferenceDataWarmup singleton = null;
+
+  /**
+   * Starts the warm-up if it has not been started already and returns it.
+   */
+  public static ReferenceDataWarmup start()
+  {
+    if (singleton == null)
+    {
+      synchronized (ReferenceDataWarmup.class)
+      {
+        if (singleton == null)
+        {
+          ReferenceDataWarmup warmup = new ReferenceDataWarmup();
+          warmup.begin();
+          singleton = warmup;
+        }
+      }
+    }
+    return singleton;
+  }
+
+  /**
+   * Returns the warm-up, or null if it has not been started.
+   */
+  public static ReferenceDataWarmup getReferenceDataWarmup()
+  {
+    return singleton;
+  }
+
+  /**
+   * One cache to load, with the time it took.
+   */
+  public abstract static class CacheLoad implements Runnable
+  {
+    private String label;
+    private List<CacheLoad> dependentList = new ArrayList<CacheLoad>();
+    private AtomicInteger waitingOn = new AtomicInteger();
+    private ReferenceDataWarmup warmup = null;
+    private volatile long startTime = 0;
+    private volatile long endTime = 0;
+    private volatile Throwable exception = null;
+
+    public CacheLoad(String label) {
+      this.label = label;
+    }
+
+    protected abstract void load();
+
+    /**
+     * This cache will not start loading until the given one is done.
+     */
+    public void dependsOn(CacheLoad cacheLoad)
+    {
+      cacheLoad.dependentList.add(this);
+      waitingOn.incrementAndGet();
+    }
+
+    public void run()
+    {
+      startTime = System.currentTimeMillis();
+      try
+      {
+        load();
+      } catch (Throwable t)
+      {
+        t.printStackTrace();
+        exception = t;
+      } finally
+      {
+        endTime = System.currentTimeMillis();
+        for (CacheLoad dependent : dependentList)
+        {
+          // Dependents still load after a failure, the failed cache will just
+          // be loaded again when they first use it
+          if (dependent.waitingOn.decrementAndGet() == 0)
+          {
+            warmup.submit(dependent);
+          }
+        }
+        warmup.loadDone();
+      }
+    }
+
+    public String getLabel()
+    {
+      return label;
+    }
+
+    public boolean isDone()
+    {
+      return endTime > 0;
+    }
+
+    /**
+     * Returns the milliseconds the load took, or is taking so far, or 0 if it
+     * has not started.
+     */
+    public long getLoadTime()
+    {
+      if (startTime == 0)
+      {
+        return 0;
+      }
+      return (endTime > 0 ? endTime : System.currentTimeMillis()) - startTime;
+    }
+
+    public Throwable getException()
+    {
+      return exception;
+    }
+
+    @Override
+    public String toString()
+    {
+      if (startTime == 0)
+      {
+        return label + " waiting";
+      }
+      if (exception != null)
+      {
+        return label + " failed after " + getLoadTime() + " ms: " + exception.getMessage();
+      }
+      return label + (endTime > 0 ? " loaded in " : " loading for ") + getLoadTime() + " ms";
+    }
+  }
+
+  private List<CacheLoad> cacheLoadList = new ArrayList<CacheLoad>();
+  private CountDownLatch readyLatch = null;
+  private ExecutorService executor = null;
+  private long startTime = 0;
+  private volatile long readyTime = 0;
+
+  private ReferenceDataWarmup() {
+    CacheLoad keyedSettings = add(new CacheLoad("Keyed settings") {
+      @Override
+      protected void load()
+      {
+        KeyedSettingManager.getKeyedSettingManager();
+      }
+    });
+    CacheLoad potentialIssues = add(new CacheLoad("Potential issues") {
+      @Override
+      protected void load()
+      {
+        PotentialIssues.getPotentialIssues();
+      }
+    });
+    potentialIssues.dependsOn(keyedSettings);
+    CacheLoad codesReceived = add(new CacheLoad("Codes received") {
+      @Override
+      protected void load()
+      {
+        CodesReceived.getCodesReceived();
+      }
+    });
+    codesReceived.dependsOn(potentialIssues);
+    add(new CacheLoad("Known names") {
+      @Override
+      protected void load()
+      {
+        KnownNames.getKnownsNames();
+      }
+    });
+    add(new CacheLoad("Vaccine groups") {
+      @Override
+      protected void load()
+      {
+        VaccineGroupManager.getVaccineGroupManager();
+      }
+    });
+    add(new CacheLoad("Vaccine products") {
+      @Override
+      protected void load()
+      {
+        VaccineProductManager.getVaccineProductManager();
+      }
+    });
+  }
+
+  private CacheLoad add(CacheLoad cacheLoad)
+  {
+    cacheLoad.warmup = this;
+    cacheLoadList.add(cacheLoad);
+    return cacheLoad;
+  }
+
+  private void begin()
+  {
+    startTime = System.currentTimeMillis();
+    readyLatch = new CountDownLatch(cacheLoadList.size());
+    executor = Executors.newFixedThreadPool(THREADS, new ThreadFactory() {
+      private int count = 0;
+
+      public synchronized Thread newThread(Runnable runnable)
+      {
+        count++;
+        Thread thread = new Thread(runnable, "DQA Warm-up " + count);
+        thread.setDaemon(true);
+        return thread;
+      }
+    });
+    for (CacheLoad cacheLoad : cacheLoadList)
+    {
+      if (cacheLoad.waitingOn.get() == 0)
+      {
+        submit(cacheLoad);
+      }
+    }
+  }
+
+  private void submit(CacheLoad cacheLoad)
+  {
+    executor.execute(cacheLoad);
+  }
+
+  /**
+   * Called as each load finishes, after its dependents have been submitted,
+   * so the pool is only shut down once nothing more can be submitted to it.
+   */
+  private void loadDone()
+  {
+    readyLatch.countDown();
+    if (readyLatch.getCount() == 0)
+    {
+      synchronized (this)
+      {
+        if (readyTime == 0)
+        {
+          readyTime = System.currentTimeMillis();
+          executor.shutdown();
+        }
+      }
+    }
+  }
+
+  public boolean isReady()
+  {
+    return readyLatch.getCount() == 0;
+  }
+
+  /**
+   * Returns the milliseconds from the start of the warm-up until every cache
+   * was loaded, or so far if it is still running.
+   */
+  public long getWarmupTime()
+  {
+    return (readyTime > 0 ? readyTime : System.currentTimeMillis()) - startTime;
+  }
+
+  /**
+   * Waits up to the given time for every cache to load and returns true if
+   * they all did.
+   */
+  public boolean awaitReady(long timeout, TimeUnit unit) throws InterruptedException
+  {
+    return readyLatch.await(timeout, unit);
+  }
+
+  public List<CacheLoad> getCacheLoadList()
+  {
+    return Collections.unmodifiableList(cacheLoadList);
+  }
+
+  /**
+   * Returns one line per cache with how long it took to load.
+   */
+  public String getReport()
+  {
+    StringBuilder sb = new StringBuilder();
+    sb.append("Reference data warm-up ");
+    sb.append(isReady() ? "ready" : "running");
+    sb.append(" after ");
+    sb.append(getWarmupTime());
+    sb.append(" ms\n");
+    for (CacheLoad cacheLoad : cacheLoadList)
+    {
+      sb.append(" + ");
+      sb.append(cacheLoad);
+      sb.append("\n");
+    }
+    return sb.toString();
+  }
+}
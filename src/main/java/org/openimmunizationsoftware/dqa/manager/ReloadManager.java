@@ -14,15 +14,19 @@ public class ReloadManager
 {
   private static List<Reload> reloadObjects = new ArrayList<Reload>();
   
-  public static void registerReload(Reload reload)
+  public static synchronized void registerReload(Reload reload)
   {
     reloadObjects.add(reload);
   }
   
   public static void triggerReload()
   {
-    List<Reload> oldList = new ArrayList<Reload>(reloadObjects);
-    reloadObjects = new ArrayList<Reload>();
+    List<Reload> oldList;
+    synchronized (ReloadManager.class)
+    {
+      oldList = reloadObjects;
+      reloadObjects = new ArrayList<Reload>();
+    }
     for (Reload reload : oldList)
     {
       reload.reload();
@@ -0,0 +1,406 @@
+/*
+ * Copyright 2013 by Dandelion Software & Research, Inc (DSR)
+ * 
+ * This application was written for immunization information system (IIS) community and has
+ * been released by DSR under an Apache 2 License with the hope that this software will be used
+ * to improve Public Health.  
+ */
+package org.openimmunizationsoftware.dqa.manager;
+
+import java.lang.management.ManagementFactory;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import javax.management.MBeanServer;
+import javax.management.ObjectName;
+
+import org.openimmunizationsoftware.dqa.db.model.IssueAction;
+import org.openimmunizationsoftware.dqa.db.model.IssueFound;
+import org.openimmunizationsoftware.dqa.db.model.MessageReceivedGeneric;
+import org.openimmunizationsoftware.dqa.db.model.PotentialIssue;
+import org.openimmunizationsoftware.dqa.db.model.SubmitterProfile;
+
+/**
+ * Keeps message counts for each profile over the last 24 hours in one minute
+ * buckets, so a feed that suddenly starts failing can be seen right away
+ * rather than when the weekly batch closes. Buckets are held in a ring and
+ * reused as time moves on.
+ */
+public class RollingMetricsManager implements RollingMetricsManagerMBean
+{
+  private static RollingMetricsManager singleton = null;
+  private static final String INIT_BLOCK = "init";
+
+  public static final String OBJECT_NAME = "org.openimmunizationsoftware.dqa:type=RollingMetrics";
+
+  public static final int WINDOW_5_MINUTES = 5;
+  public static final int WINDOW_1_HOUR = 60;
+  public static final int WINDOW_24_HOURS = 24 * 60;
+
+  private static final long MINUTE = 60 * 1000;
+  private static final int TOP_ISSUE_COUNT = 10;
+
+  public static RollingMetricsManager getRollingMetricsManager()
+  {
+    if (singleton == null)
+    {
+      synchronized (INIT_BLOCK)
+      {
+        if (singleton == null)
+        {
+          RollingMetricsManager rollingMetricsManager = new RollingMetricsManager();
+          try
+          {
+            MBeanServer mBeanServer = ManagementFactory.getPlatformMBeanServer();
+            ObjectName objectName = new ObjectName(OBJECT_NAME);
+            if (!mBeanServer.isRegistered(objectName))
+            {
+              mBeanServer.registerMBean(rollingMetricsManager, objectName);
+            }
+          } catch (Exception e)
+          {
+            // metrics are still available through the API
+            e.printStackTrace();
+          }
+          singleton = rollingMetricsManager;
+        }
+      }
+    }
+    return singleton;
+  }
+
+  /**
+   * Counts for one minute.
+   */
+  private static class Bucket
+  {
+    private long minute = -1;
+    private int messageCount = 0;
+    private int acceptCount = 0;
+    private int warnCount = 0;
+    private int errorCount = 0;
+    private int admittedCount = 0;
+    private int rejectedCount = 0;
+    private Map<PotentialIssue, int[]> issueCounts = new HashMap<PotentialIssue, int[]>();
+
+    private void reset(long minute)
+    {
+      this.minute = minute;
+      messageCount = 0;
+      acceptCount = 0;
+      warnCount = 0;
+      errorCount = 0;
+      admittedCount = 0;
+      rejectedCount = 0;
+      issueCounts.clear();
+    }
+  }
+
+  /**
+   * Ring of minute buckets for one profile.
+   */
+  private static class ProfileWindow
+  {
+    private final Bucket[] buckets = new Bucket[WINDOW_24_HOURS];
+
+    private ProfileWindow() {
+      for (int i = 0; i < buckets.length; i++)
+      {
+        buckets[i] = new Bucket();
+      }
+    }
+
+    private Bucket getBucket(long minute)
+    {
+      Bucket bucket = buckets[(int) (minute % buckets.length)];
+      if (bucket.minute != minute)
+      {
+        bucket.reset(minute);
+      }
+      return bucket;
+    }
+  }
+
+  /**
+   * Totals over a window of recent minutes.
+   */
+  public static class WindowSummary
+  {
+    private int minutes = 0;
+    private int messageCount = 0;
+    private int acceptCount = 0;
+    private int warnCount = 0;
+    private int errorCount = 0;
+    private int admittedCount = 0;
+    private int rejectedCount = 0;
+    private List<PotentialIssue> topIssues = new ArrayList<PotentialIssue>();
+    private List<Integer> topIssueCounts = new ArrayList<Integer>();
+
+    public int getMinutes()
+    {
+      return minutes;
+    }
+
+    public int getMessageCount()
+    {
+      return messageCount;
+    }
+
+    public int getAcceptCount()
+    {
+      return acceptCount;
+    }
+
+    public int getWarnCount()
+    {
+      return warnCount;
+    }
+
+    public int getErrorCount()
+    {
+      return errorCount;
+    }
+
+    /**
+     * Messages let through by admission control. Zero when it is off.
+     */
+    public int getAdmittedCount()
+    {
+      return admittedCount;
+    }
+
+    /**
+     * Messages turned away by admission control because the server was busy.
+     */
+    public int getRejectedCount()
+    {
+      return rejectedCount;
+    }
+
+    /**
+     * Most often found issues, most frequent first.
+     */
+    public List<PotentialIssue> getTopIssues()
+    {
+      return topIssues;
+    }
+
+    /**
+     * Counts for the issues in {@link #getTopIssues()}, in the same order.
+     */
+    public List<Integer> getTopIssueCounts()
+    {
+      return topIssueCounts;
+    }
+  }
+
+  private final Map<Integer, ProfileWindow> profileWindows = new HashMap<Integer, ProfileWindow>();
+
+  private RollingMetricsManager() {
+    // singleton
+  }
+
+  /**
+   * Counts a processed message in the current minute. A message is counted
+   * as an error if it has errors or processing failed, as a warning if it has
+   * warnings, and otherwise as accepted.
+   */
+  public void registerMessage(SubmitterProfile profile, MessageReceivedGeneric messageReceived)
+  {
+    if (profile == null)
+    {
+      return;
+    }
+    ProfileWindow profileWindow = getProfileWindow(profile.getProfileId(), true);
+    long minute = System.currentTimeMillis() / MINUTE;
+    synchronized (profileWindow)
+    {
+      Bucket bucket = profileWindow.getBucket(minute);
+      bucket.messageCount++;
+      if (!messageReceived.isSuccessfulCompletion() || messageReceived.hasErrors())
+      {
+        bucket.errorCount++;
+      } else if (messageReceived.hasWarns())
+      {
+        bucket.warnCount++;
+      } else
+      {
+        bucket.acceptCount++;
+      }
+      for (IssueFound issueFound : messageReceived.getIssuesFound())
+      {
+        if (issueFound.getIssue() != null && !IssueAction.SKIP.equals(issueFound.getIssueAction()))
+        {
+          int[] count = bucket.issueCounts.get(issueFound.getIssue());
+          if (count == null)
+          {
+            count = new int[1];
+            bucket.issueCounts.put(issueFound.getIssue(), count);
+          }
+          count[0]++;
+        }
+      }
+    }
+  }
+
+  /**
+   * Counts a message let through or turned away by admission control in the
+   * current minute.
+   */
+  public void registerAdmission(SubmitterProfile profile, boolean admitted)
+  {
+    if (profile == null)
+    {
+      return;
+    }
+    ProfileWindow profileWindow = getProfileWindow(profile.getProfileId(), true);
+    long minute = System.currentTimeMillis() / MINUTE;
+    synchronized (profileWindow)
+    {
+      Bucket bucket = profileWindow.getBucket(minute);
+      if (admitted)
+      {
+        bucket.admittedCount++;
+      } else
+      {
+        bucket.rejectedCount++;
+      }
+    }
+  }
+
+  /**
+   * Totals for the profile over the last number of minutes, including the
+   * current minute. Windows longer than 24 hours are cut to 24 hours.
+   */
+  public WindowSummary getSummary(int profileId, int minutes)
+  {
+    WindowSummary summary = new WindowSummary();
+    if (minutes > WINDOW_24_HOURS)
+    {
+      minutes = WINDOW_24_HOURS;
+    }
+    summary.minutes = minutes;
+    ProfileWindow profileWindow = getProfileWindow(profileId, false);
+    if (profileWindow == null)
+    {
+      return summary;
+    }
+    final Map<PotentialIssue, Integer> issueTotals = new HashMap<PotentialIssue, Integer>();
+    long currentMinute = System.currentTimeMillis() / MINUTE;
+    synchronized (profileWindow)
+    {
+      for (long minute = currentMinute - minutes + 1; minute <= currentMinute; minute++)
+      {
+        Bucket bucket = profileWindow.buckets[(int) (minute % profileWindow.buckets.length)];
+        if (bucket.minute == minute)
+        {
+          summary.messageCount += bucket.messageCount;
+          summary.acceptCount += bucket.acceptCount;
+          summary.warnCount += bucket.warnCount;
+          summary.errorCount += bucket.errorCount;
+          summary.admittedCount += bucket.admittedCount;
+          summary.rejectedCount += bucket.rejectedCount;
+          for (Map.Entry<PotentialIssue, int[]> entry : bucket.issueCounts.entrySet())
+          {
+            Integer total = issueTotals.get(entry.getKey());
+            issueTotals.put(entry.getKey(), (total == null ? 0 : total) + entry.getValue()[0]);
+          }
+        }
+      }
+    }
+    List<PotentialIssue> issues = new ArrayList<PotentialIssue>(issueTotals.keySet());
+    Collections.sort(issues, new Comparator<PotentialIssue>() {
+      public int compare(PotentialIssue pi1, PotentialIssue pi2)
+      {
+        return issueTotals.get(pi2) - issueTotals.get(pi1);
+      }
+    });
+    for (int i = 0; i < issues.size() && i < TOP_ISSUE_COUNT; i++)
+    {
+      summary.topIssues.add(issues.get(i));
+      summary.topIssueCounts.add(issueTotals.get(issues.get(i)));
+    }
+    return summary;
+  }
+
+  public WindowSummary getSummary(SubmitterProfile profile, int minutes)
+  {
+    return getSummary(profile.getProfileId(), minutes);
+  }
+
+  private ProfileWindow getProfileWindow(int profileId, boolean create)
+  {
+    synchronized (profileWindows)
+    {
+      ProfileWindow profileWindow = profileWindows.get(profileId);
+      if (profileWindow == null && create)
+      {
+        profileWindow = new ProfileWindow();
+        profileWindows.put(profileId, profileWindow);
+      }
+      return profileWindow;
+    }
+  }
+
+  public int[] getProfileIds()
+  {
+    synchronized (profileWindows)
+    {
+      int[] profileIds = new int[profileWindows.size()];
+      int i = 0;
+      for (Integer profileId : profileWindows.keySet())
+      {
+        profileIds[i++] = profileId;
+      }
+      return profileIds;
+    }
+  }
+
+  public int getMessageCount(int profileId, int minutes)
+  {
+    return getSummary(profileId, minutes).getMessageCount();
+  }
+
+  public int getAcceptCount(int profileId, int minutes)
+  {
+    return getSummary(profileId, minutes).getAcceptCount();
+  }
+
+  public int getWarnCount(int profileId, int minutes)
+  {
+    return getSummary(profileId, minutes).getWarnCount();
+  }
+
+  public int getErrorCount(int profileId, int minutes)
+  {
+    return getSummary(profileId, minutes).getErrorCount();
+  }
+
+  public int getAdmittedCount(int profileId, int minutes)
+  {
+    return getSummary(profileId, minutes).getAdmittedCount();
+  }
+
+  public int getRejectedCount(int profileId, int minutes)
+  {
+    return getSummary(profileId, minutes).getRejectedCount();
+  }
+
+  public String getTopIssues(int profileId, int minutes)
+  {
+    WindowSummary summary = getSummary(profileId, minutes);
+    StringBuilder sb = new StringBuilder();
+    for (int i = 0; i < summary.getTopIssues().size(); i++)
+    {
+      sb.append(summary.getTopIssueCounts().get(i));
+      sb.append(" ");
+      sb.append(summary.getTopIssues().get(i).getDisplayText());
+      sb.append("\n");
+    }
+    return sb.toString();
+  }
+}
@@ -0,0 +1,31 @@
+/*
+ * Copyright 2013 by Dandelion Software & Research, Inc (DSR)
+ * 
+ * This application was written for immunization information system (IIS) community and has
+ * been released by DSR under an Apache 2 License with the hope that this software will be used
+ * to improve Public Health.  
+ */
+package org.openimmunizationsoftware.dqa.manager;
+
+/**
+ * JMX view of the rolling message metrics. Windows are given in minutes, up
+ * to 24 hours.
+ */
+public interface RollingMetricsManagerMBean
+{
+  public int[] getProfileIds();
+
+  public int getMessageCount(int profileId, int minutes);
+
+  public int getAcceptCount(int profileId, int minutes);
+
+  public int getWarnCount(int profileId, int minutes);
+
+  public int getErrorCount(int profileId, int minutes);
+
+  public int getAdmittedCount(int profileId, int minutes);
+
+  public int getRejectedCount(int profileId, int minutes);
+
+  public String getTopIssues(int profileId, int minutes);
+}
@@ -0,0 +1,22 @@
+/*
+ * Copyright 2013 by Dandelion Software & Research, Inc (DSR)
+ * 
+ * This application was written for immunization information system (IIS) community and has
+ * been released by DSR under an Apache 2 License with the hope that this software will be used
+ * to improve Public Health.  
+ */
+package org.openimmunizationsoftware.dqa.manager;
+
+import java.util.Date;
+
+/**
+ * Decides when a scheduled job runs next.
+ */
+public interface ScheduleTrigger
+{
+  /**
+   * Returns the first time strictly after the given time that the job should
+   * run, or null if it should not run again.
+   */
+  public Date getNextFireTime(Date after);
+}
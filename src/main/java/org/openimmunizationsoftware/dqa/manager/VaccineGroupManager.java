@@ -57,6 +57,11 @@ public class VaccineGroupManager
     return vaccineGroups.get(groupCode);
   }
 
+  public Map<String, VaccineGroup> getVaccineGroupMap()
+  {
+    return vaccineGroups;
+  }
+
   public VaccineGroupManager() {
     SessionFactory factory = OrganizationManager.getSessionFactory();
     Session session = factory.openSession();
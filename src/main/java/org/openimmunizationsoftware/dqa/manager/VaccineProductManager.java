@@ -8,6 +8,7 @@
 package org.openimmunizationsoftware.dqa.manager;
 
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
@@ -16,24 +17,33 @@ import org.hibernate.Query;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.Transaction;
+import org.openimmunizationsoftware.dqa.db.model.VaccineCpt;
 import org.openimmunizationsoftware.dqa.db.model.VaccineCvx;
 import org.openimmunizationsoftware.dqa.db.model.VaccineMvx;
 import org.openimmunizationsoftware.dqa.db.model.VaccineProduct;
 
 public class VaccineProductManager
 {
-  private static VaccineProductManager singleton = null;
+  private static volatile VaccineProductManager singleton = null;
 
   public static VaccineProductManager getVaccineProductManager()
   {
     if (singleton == null)
     {
-      singleton = new VaccineProductManager();
+      synchronized (VaccineProductManager.class)
+      {
+        if (singleton == null)
+        {
+          singleton = new VaccineProductManager();
+        }
+      }
     }
     return singleton;
   }
 
   private Map<String, List<VaccineProduct>> vaccineProducts = new HashMap<String, List<VaccineProduct>>();
+  private Map<String, List<VaccineProduct>> vaccineProductsByCvx = new HashMap<String, List<VaccineProduct>>();
+  private Map<String, List<VaccineCpt>> vaccineCpts = new HashMap<String, List<VaccineCpt>>();
 
   private VaccineProductManager() {
     SessionFactory factory = OrganizationManager.getSessionFactory();
@@ -52,6 +62,13 @@ public class VaccineProductManager
         vaccineProducts.put(key, vpList);
       }
       vpList.add(vp);
+      addToList(vaccineProductsByCvx, vp.getCvx().getCvxCode(), vp);
+    }
+    query = session.createQuery("from VaccineCpt");
+    List<VaccineCpt> vaccineCptList = query.list();
+    for (VaccineCpt vaccineCpt : vaccineCptList)
+    {
+      addToList(vaccineCpts, vaccineCpt.getCptCode(), vaccineCpt);
     }
     tx.commit();
     session.close();
@@ -62,4 +79,43 @@ public class VaccineProductManager
     List<VaccineProduct> vaccineProductList = vaccineProducts.get(cvxCode.getCvxCode() + "-" + mvxCode.getMvxCode());
     return vaccineProductList;
   }
+
+  /**
+   * Returns all the products made for this CVX, or an empty list if there are
+   * none.
+   */
+  public List<VaccineProduct> getVaccineProducts(VaccineCvx cvxCode)
+  {
+    List<VaccineProduct> vaccineProductList = vaccineProductsByCvx.get(cvxCode.getCvxCode());
+    if (vaccineProductList == null)
+    {
+      return Collections.emptyList();
+    }
+    return vaccineProductList;
+  }
+
+  /**
+   * Returns the CPT entries defined for this code, or an empty list if the
+   * code is not known.
+   */
+  public List<VaccineCpt> getVaccineCpts(String cptCode)
+  {
+    List<VaccineCpt> vaccineCptList = vaccineCpts.get(cptCode);
+    if (vaccineCptList == null)
+    {
+      return Collections.emptyList();
+    }
+    return vaccineCptList;
+  }
+
+  private static <T> void addToList(Map<String, List<T>> map, String key, T value)
+  {
+    List<T> list = map.get(key);
+    if (list == null)
+    {
+      list = new ArrayList<T>();
+      map.put(key, list);
+    }
+    list.add(value);
+  }
 }
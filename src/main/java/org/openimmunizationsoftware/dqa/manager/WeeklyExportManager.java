@@ -8,10 +8,9 @@
 package org.openimmunizationsoftware.dqa.manager;
 
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
-import java.io.PrintWriter;
 import java.math.BigDecimal;
+import java.nio.charset.Charset;
 import java.text.SimpleDateFormat;
 import java.util.ArrayList;
 import java.util.Calendar;
@@ -20,9 +19,17 @@ import java.util.Comparator;
 import java.util.Date;
 import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.PriorityBlockingQueue;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
 
 import org.hibernate.Query;
 import org.hibernate.SQLQuery;
+import org.hibernate.ScrollMode;
+import org.hibernate.ScrollableResults;
 import org.hibernate.Session;
 import org.hibernate.SessionFactory;
 import org.hibernate.Transaction;
@@ -38,19 +45,31 @@ import org.openimmunizationsoftware.dqa.db.model.SubmitterProfile;
 import org.openimmunizationsoftware.dqa.db.model.received.NextOfKin;
 import org.openimmunizationsoftware.dqa.db.model.received.Patient;
 import org.openimmunizationsoftware.dqa.db.model.received.Vaccination;
+import org.openimmunizationsoftware.dqa.manager.ManagerScheduler.ConcurrencyPolicy;
+import org.openimmunizationsoftware.dqa.manager.ManagerScheduler.MisfirePolicy;
 
 public class WeeklyExportManager extends ManagerThread
 {
 
   private static final boolean EXPORT_UNIQUE = true;
-  private static WeeklyExportManager singleton = null;
+  private static final int EXPORT_CHUNK_SIZE = 500;
+  private static final int SORT_RUN_SIZE = 100000;
+  private static volatile WeeklyExportManager singleton = null;
+  private static final String INIT_BLOCK = "init";
 
   public static WeeklyExportManager getWeeklyExportManager()
   {
     if (singleton == null)
     {
-      singleton = new WeeklyExportManager();
-      singleton.start();
+      synchronized (INIT_BLOCK)
+      {
+        if (singleton == null)
+        {
+          WeeklyExportManager weeklyExportManager = new WeeklyExportManager();
+          weeklyExportManager.schedule(weeklyExportManager.getExportTrigger(), ConcurrencyPolicy.SKIP, MisfirePolicy.FIRE_NOW);
+          singleton = weeklyExportManager;
+        }
+      }
     }
     return singleton;
   }
@@ -68,111 +87,308 @@ public class WeeklyExportManager extends ManagerThread
   private int exportDayLowest;
   private File exportDir = null;
 
-  private PrintWriter out = null;
-  private File file = null;
+  private List<ProfileExport> profileExportList = new ArrayList<ProfileExport>();
 
   private SimpleDateFormat sdf = new SimpleDateFormat("MM/dd/yyyy hh:mm a");
 
+  /**
+   * Schedule used when weekly.export.schedule is not set. As before the
+   * scheduler was used, the manager wakes every ten minutes and exports once
+   * the day's end time has passed, so anything left prepared by a failed run,
+   * or by a restart after the end time, is picked up within minutes.
+   */
+  private static final String DEFAULT_SCHEDULE = "*/10 * * * *";
+
+  /**
+   * Runs at the times given by weekly.export.schedule, a cron expression, if
+   * it is set and otherwise every ten minutes. The settings are read again for
+   * every run, so a change applies from the next one.
+   */
+  private ScheduleTrigger getExportTrigger()
+  {
+    return new ScheduleTrigger() {
+      public Date getNextFireTime(Date after)
+      {
+        String schedule = getSchedule();
+        return new CronTrigger(schedule.equals("") ? DEFAULT_SCHEDULE : schedule).getNextFireTime(after);
+      }
+    };
+  }
+
+  private static String getSchedule()
+  {
+    String schedule = KeyedSettingManager.getKeyedSettingManager().getKeyedValue(KeyedSetting.WEEKLY_EXPORT_SCHEDULE, "");
+    return schedule == null ? "" : schedule.trim();
+  }
+
+  /**
+   * Called by the scheduler for each run. The export day settings decide which
+   * priorities are exported. Without a schedule of its own the export only
+   * runs once the start and end times for today have passed.
+   */
   @Override
   public void run()
   {
-    internalLog.append("Starting weekly export manager\r");
-    while (keepRunning)
+    log("Starting weekly export manager\r");
+    try
     {
-      try
+      boolean okayToProceed = setWeeklyParameters();
+      if (okayToProceed)
       {
-        boolean okayToProceed = setWeeklyParameters();
-        if (okayToProceed)
+        Date now = new Date();
+        if (!getSchedule().equals("") || (processingStartTime.before(now) && processingEndTime.before(now)))
         {
-          Date now = new Date();
-          if (processingStartTime.before(now) && processingEndTime.before(now))
-          {
-            runNow(now);
-          } else
-          {
-            internalLog.append("Weekly Export Manager will not run now\r");
-          }
-        }
-      } catch (Exception e)
-      {
-        e.printStackTrace();
-        lastException = e;
-      }
-
-      try
-      {
-        synchronized (sdf)
+          runNow(now);
+        } else
         {
-          sdf.wait(10 * 1000 * 60);
+          log("Weekly Export Manager will not run now\r");
         }
-      } catch (InterruptedException ie)
-      {
-        keepRunning = false;
-        return;
       }
-      internalLog.setLength(0);
+    } catch (Exception e)
+    {
+      e.printStackTrace();
+      lastException = e;
     }
   }
 
   @Override
   public void runNow(Date now) throws IOException
   {
-    internalLog.append("Running now " + sdf.format(new Date()) + " \n");
+    log("Running now " + sdf.format(new Date()) + " \n");
     Calendar cal = Calendar.getInstance();
     cal.setTime(now);
     int today = cal.get(Calendar.DAY_OF_WEEK);
+    List<String> transferPriorityList = new ArrayList<String>();
     if (today >= exportDayHighest)
     {
-      export(SubmitterProfile.TRANSFER_PRIORITY_HIGHEST);
+      transferPriorityList.add(SubmitterProfile.TRANSFER_PRIORITY_HIGHEST);
     }
     if (today >= exportDayHigh)
     {
-      export(SubmitterProfile.TRANSFER_PRIORITY_HIGH);
+      transferPriorityList.add(SubmitterProfile.TRANSFER_PRIORITY_HIGH);
     }
     if (today >= exportDayNormal)
     {
-      export(SubmitterProfile.TRANSFER_PRIORITY_NORMAL);
+      transferPriorityList.add(SubmitterProfile.TRANSFER_PRIORITY_NORMAL);
     }
     if (today >= exportDayLow)
     {
-      export(SubmitterProfile.TRANSFER_PRIORITY_LOW);
+      transferPriorityList.add(SubmitterProfile.TRANSFER_PRIORITY_LOW);
     }
     if (today >= exportDayLowest)
     {
-      export(SubmitterProfile.TRANSFER_PRIORITY_LOWEST);
+      transferPriorityList.add(SubmitterProfile.TRANSFER_PRIORITY_LOWEST);
     }
-    internalLog.append("Finished exporting\n");
+    export(transferPriorityList);
+    log("Finished exporting\n");
   }
 
-  private void export(String transferPriority) throws IOException
+  /**
+   * Returns the progress of each profile in the current or most recent export
+   * run.
+   */
+  public List<ProfileExport> getProfileExports()
   {
-    internalLog.append("Exporting profiles with " + transferPriority + " priority \n");
+    synchronized (profileExportList)
+    {
+      return new ArrayList<ProfileExport>(profileExportList);
+    }
+  }
+
+  /**
+   * Exports every production profile with one of the given priorities on a
+   * small pool of threads, each profile in its own session. Profiles are
+   * started in the order of the priorities given, so higher priorities still
+   * go first, but a slow profile no longer holds up the ones behind it.
+   */
+  private void export(List<String> transferPriorityList) throws IOException
+  {
+    List<ExportTask> exportTaskList = new ArrayList<ExportTask>();
     SessionFactory factory = OrganizationManager.getSessionFactory();
     Session session = factory.openSession();
-    Query query = session.createQuery("from SubmitterProfile where profileStatus = ? and transferPriority = ?");
-    query.setParameter(0, SubmitterProfile.PROFILE_STATUS_PROD);
-    query.setParameter(1, transferPriority);
-    List<SubmitterProfile> submitterProfiles = query.list();
-    for (SubmitterProfile profile : submitterProfiles)
+    try
     {
-      internalLog.append("Looking for exports under profile " + profile.getProfileCode() + "\n");
-      Transaction tx = session.beginTransaction();
-      if (EXPORT_UNIQUE)
+      for (int rank = 0; rank < transferPriorityList.size(); rank++)
       {
-        exportUnique(session, profile);
-      } else
+        String transferPriority = transferPriorityList.get(rank);
+        log("Exporting profiles with " + transferPriority + " priority \n");
+        Query query = session.createQuery("from SubmitterProfile where profileStatus = ? and transferPriority = ?");
+        query.setParameter(0, SubmitterProfile.PROFILE_STATUS_PROD);
+        query.setParameter(1, transferPriority);
+        List<SubmitterProfile> submitterProfiles = query.list();
+        for (SubmitterProfile profile : submitterProfiles)
+        {
+          exportTaskList.add(new ExportTask(new ProfileExport(profile), rank, exportTaskList.size()));
+        }
+      }
+    } finally
+    {
+      session.close();
+    }
+    synchronized (profileExportList)
+    {
+      profileExportList.clear();
+      for (ExportTask exportTask : exportTaskList)
+      {
+        profileExportList.add(exportTask.profileExport);
+      }
+    }
+    startProgress(exportTaskList.size());
+    if (exportTaskList.size() == 0)
+    {
+      endProgress();
+      return;
+    }
+
+    int threads = KeyedSettingManager.getKeyedSettingManager().getKeyedValueInt(KeyedSetting.WEEKLY_EXPORT_THREADS, 4);
+    if (threads < 1)
+    {
+      threads = 1;
+    }
+    CountDownLatch doneLatch = new CountDownLatch(exportTaskList.size());
+    // The priority queue hands waiting profiles to free threads in priority
+    // order, whatever order the running ones finish in
+    ThreadPoolExecutor executor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+        new PriorityBlockingQueue<Runnable>(), new ThreadFactory() {
+          private int count = 0;
+
+          public synchronized Thread newThread(Runnable runnable)
+          {
+            count++;
+            Thread thread = new Thread(runnable, "DQA Weekly Export " + count);
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+    try
+    {
+      for (ExportTask exportTask : exportTaskList)
+      {
+        exportTask.doneLatch = doneLatch;
+        executor.execute(exportTask);
+      }
+      doneLatch.await();
+    } catch (InterruptedException ie)
+    {
+      executor.shutdownNow();
+      Thread.currentThread().interrupt();
+      throw new IOException("Interrupted while waiting for profiles to export");
+    } finally
+    {
+      executor.shutdown();
+      endProgress();
+    }
+    for (ExportTask exportTask : exportTaskList)
+    {
+      ProfileExport profileExport = exportTask.profileExport;
+      log(" + " + profileExport + "\n");
+      if (profileExport.getException() != null)
+      {
+        lastException = profileExport.getException();
+      }
+    }
+  }
+
+  /**
+   * Exports one profile with its own session and output file. Tasks sort by
+   * priority first and then by the order the profiles were found in.
+   */
+  private class ExportTask implements Runnable, Comparable<ExportTask>
+  {
+    private ProfileExport profileExport;
+    private int rank;
+    private int sequence;
+    private CountDownLatch doneLatch = null;
+    private ExportSink out = null;
+    private boolean resumable = false;
+    private SimpleDateFormat sdf = new SimpleDateFormat("MM/dd/yyyy hh:mm a");
+
+    public ExportTask(ProfileExport profileExport, int rank, int sequence) {
+      this.profileExport = profileExport;
+      this.rank = rank;
+      this.sequence = sequence;
+    }
+
+    public int compareTo(ExportTask other)
+    {
+      if (rank != other.rank)
+      {
+        return rank < other.rank ? -1 : 1;
+      }
+      return sequence < other.sequence ? -1 : (sequence == other.sequence ? 0 : 1);
+    }
+
+    public void run()
+    {
+      profileExport.started();
+      SessionFactory factory = OrganizationManager.getSessionFactory();
+      Session session = factory.openSession();
+      try
+      {
+        SubmitterProfile profile = (SubmitterProfile) session.get(SubmitterProfile.class, profileExport.getProfileId());
+        setProgressItem(profile.getProfileCode());
+        WeeklyExportManager.this.log("Looking for exports under profile " + profile.getProfileCode() + "\n");
+        session.beginTransaction();
+        if (EXPORT_UNIQUE)
+        {
+          exportUnique(session, profile, this);
+        } else
+        {
+          exportSubmissionOrder(session, profile, this);
+        }
+        // Checkpoints commit and begin again, so commit whichever transaction
+        // is current
+        session.getTransaction().commit();
+        profileExport.finished();
+      } catch (Throwable t)
+      {
+        t.printStackTrace();
+        if (out != null)
+        {
+          if (resumable)
+          {
+            // Keep the file as of the last checkpoint for the next run
+            out.suspend();
+          } else
+          {
+            out.abort();
+          }
+          out = null;
+        }
+        Transaction tx = session.getTransaction();
+        if (tx != null && tx.isActive())
+        {
+          try
+          {
+            tx.rollback();
+          } catch (Exception e)
+          {
+            // ignore, the failure has already been recorded
+          }
+        }
+        profileExport.failed(t);
+      } finally
       {
-        exportSubmissionOrder(session, profile);
+        session.close();
+        incProgressCount();
+        doneLatch.countDown();
       }
-      tx.commit();
     }
-    session.close();
+
+    private void log(String message)
+    {
+      profileExport.log(message);
+    }
   }
 
-  private void exportUnique(Session session, SubmitterProfile profile) throws IOException
+  private void exportUnique(Session session, SubmitterProfile profile, ExportTask task) throws IOException
   {
-    internalLog.append("Looking for exports from profile " + profile.getProfileCode() + " \n");
+    task.log("Looking for exports from profile " + profile.getProfileCode() + " \n");
     ConstructerInterface constructor = ConstructFactory.getConstructer(profile);
+    int checkpointPatients = KeyedSettingManager.getKeyedSettingManager().getKeyedValueInt(
+        KeyedSetting.WEEKLY_EXPORT_CHECKPOINT_PATIENTS, 0);
+    boolean externalSort = KeyedSettingManager.getKeyedSettingManager().getKeyedValueBoolean(
+        KeyedSetting.WEEKLY_EXPORT_SORT_EXTERNAL, false);
     // Find profile to export
     Query query = session.createQuery("from MessageBatch where profile = ? and submitStatus = ?");
     query.setParameter(0, profile);
@@ -180,96 +396,476 @@ public class WeeklyExportManager extends ManagerThread
     List<MessageBatch> messageBatchList = query.list();
     for (MessageBatch messageBatch : messageBatchList)
     {
-      internalLog.append(" +  Exporting batch for week ending " + sdf.format(messageBatch.getEndDate()) + " \n");
-      openOutputFile(profile, messageBatch.getEndDate());
-      MessageReceived currMr = null;
-      SQLQuery sqlQuery = session.createSQLQuery("select rq.receive_queue_id "
-          + "from dqa_receive_queue rq, dqa_patient pat, dqa_message_received mr "
-          + "where rq.received_id = pat.received_id " + "  and rq.submit_code = 'P' " + "  and batch_id = ? "
-          + "  and rq.received_id = mr.received_id "
-          + "order by pat.name_last, pat.name_first, pat.name_middle, pat.id_submitter_number, mr.received_date");
-      sqlQuery.setParameter(0, messageBatch.getBatchId());
-      List receiveQueueIds = sqlQuery.list();
-      ReceiveQueue receiveQueue = null;
+      task.log(" +  Exporting batch for week ending " + task.sdf.format(messageBatch.getEndDate()) + " \n");
       boolean nothingExported = true;
-      for (Object receiveQueueId : receiveQueueIds)
+      if (messageBatch.getExportCheckpointSize() != null)
       {
-        if (receiveQueueId instanceof BigDecimal)
+        task.log(" +  Resuming after patient " + messageBatch.getExportCheckpointKey() + " \n");
+        try
         {
-          receiveQueue = (ReceiveQueue) session.get(ReceiveQueue.class, ((BigDecimal) receiveQueueId).intValue());
-        } else
+          openOutputFile(profile, messageBatch.getEndDate(), messageBatch.getExportCheckpointSize(),
+              messageBatch.getExportCheckpointCount() == null ? 0 : messageBatch.getExportCheckpointCount(), task);
+          task.resumable = true;
+          nothingExported = false;
+        } catch (ExportSink.AlreadyCommittedException ace)
         {
-          receiveQueue = (ReceiveQueue) session.get(ReceiveQueue.class, (Integer) receiveQueueId);
-        }
-        MessageReceived nextMr = receiveQueue.getMessageReceived();
-        populate(session, receiveQueue, nextMr);
-        if (currMr == null)
+          task.log(" +  " + ace.getMessage() + " \n");
+          completeCommittedExport(session, messageBatch, task);
+          continue;
+        } catch (ExportSink.CheckpointLostException cle)
         {
-          currMr = nextMr;
-        } else
+          task.log(" +  " + cle.getMessage() + " \n");
+          recoverLostCheckpoint(session, messageBatch, task);
+          openOutputFile(profile, messageBatch.getEndDate(), 0, 0, task);
+        }
+      } else
+      {
+        openOutputFile(profile, messageBatch.getEndDate(), 0, 0, task);
+      }
+      task.profileExport.incBatchCount();
+      MessageReceived currMr = null;
+      int exportCount = 0;
+      int patientCount = 0;
+      // Walk the sorted ids a chunk at a time, loading each chunk's messages
+      // together and clearing the session afterwards, so memory use does not
+      // depend on the size of the batch. The ids are sorted once; neither
+      // sort is affected by the commits made at checkpoints.
+      SortedIds receiveQueueIds = externalSort ? sortExternally(session, messageBatch, task) : sortInDatabase(messageBatch);
+      try
+      {
+        List<Integer> chunkIds = new ArrayList<Integer>(EXPORT_CHUNK_SIZE);
+        boolean moreIds = true;
+        while (moreIds)
         {
-          Patient nextPatient = nextMr.getPatient();
-          Patient currPatient = currMr.getPatient();
-          if (nextPatient.getIdSubmitterNumber().equals(currPatient.getIdSubmitterNumber()))
+          chunkIds.clear();
+          while (chunkIds.size() < EXPORT_CHUNK_SIZE && (moreIds = receiveQueueIds.next()))
           {
-            currMr.setPatient(nextPatient);
-            currMr.setMessageHeader(nextMr.getMessageHeader());
-            currMr.setNextOfKins(nextMr.getNextOfKins());
-            for (String id : nextMr.getVaccinationMap().keySet())
-            {
-              currMr.getVaccinationMap().put(id, nextMr.getVaccinationMap().get(id));
-            }
-          } else
+            chunkIds.add(receiveQueueIds.getId());
+          }
+          if (chunkIds.size() == 0)
           {
-            if (nothingExported)
+            break;
+          }
+          for (ReceiveQueue receiveQueue : loadChunk(session, chunkIds))
+          {
+            MessageReceived nextMr = receiveQueue.getMessageReceived();
+            if (currMr == null)
             {
-              out.print(constructor.makeHeader(currMr));
-              nothingExported = false;
+              currMr = nextMr;
+            } else
+            {
+              Patient nextPatient = nextMr.getPatient();
+              Patient currPatient = currMr.getPatient();
+              if (nextPatient.getIdSubmitterNumber().equals(currPatient.getIdSubmitterNumber()))
+              {
+                currMr.setPatient(nextPatient);
+                currMr.setMessageHeader(nextMr.getMessageHeader());
+                currMr.setNextOfKins(nextMr.getNextOfKins());
+                for (String id : nextMr.getVaccinationMap().keySet())
+                {
+                  currMr.getVaccinationMap().put(id, nextMr.getVaccinationMap().get(id));
+                }
+              } else
+              {
+                if (nothingExported)
+                {
+                  constructor.makeHeader(currMr, task.out.getWriter());
+                  nothingExported = false;
+                }
+                currMr.setVaccinations(getAndSortVaccinations(currMr));
+                constructor.constructMessage(currMr, task.out.getWriter());
+                task.out.messageWritten();
+                patientCount++;
+                if (checkpointPatients > 0 && patientCount >= checkpointPatients)
+                {
+                  // This message belongs to the next patient and has not been
+                  // marked yet, so the checkpoint covers exactly the patients
+                  // written so far
+                  checkpoint(session, messageBatch, getSortKey(currPatient), task);
+                  patientCount = 0;
+                }
+                currMr = nextMr;
+              }
             }
-            currMr.setVaccinations(getAndSortVaccinations(currMr));
-            out.print(constructor.constructMessage(currMr));
-            currMr = nextMr;
+            receiveQueue.setSubmitStatus(SubmitStatus.SUBMITTED);
+            nextMr.setSubmitStatus(SubmitStatus.SUBMITTED);
+            exportCount++;
           }
-          receiveQueue.setSubmitStatus(SubmitStatus.SUBMITTED);
-          nextMr.setSubmitStatus(SubmitStatus.SUBMITTED);
+          // Status changes have to be written before the session lets go of
+          // the objects holding them
+          session.flush();
+          session.clear();
         }
+      } finally
+      {
+        receiveQueueIds.close();
       }
       if (currMr != null)
       {
-        if (!receiveQueue.getSubmitStatus().isExcluded())
+        if (nothingExported)
         {
-          if (nothingExported)
-          {
-            out.print(constructor.makeHeader(currMr));
-            nothingExported = false;
-          }
-          currMr.setVaccinations(getAndSortVaccinations(currMr));
-          out.print(constructor.constructMessage(currMr));
+          constructor.makeHeader(currMr, task.out.getWriter());
+          nothingExported = false;
         }
+        currMr.setVaccinations(getAndSortVaccinations(currMr));
+        constructor.constructMessage(currMr, task.out.getWriter());
+        task.out.messageWritten();
+      }
+      if (!nothingExported)
+      {
+        // A resumed export may have nothing left after its checkpoint, but
+        // still needs its footer
+        constructor.makeFooter(currMr, task.out.getWriter());
       }
-      if (!nothingExported && currMr != null)
+      task.log(" +  Read " + exportCount + " messages \n");
+      task.profileExport.addMessageCount(exportCount);
+      closeOutput(nothingExported, task);
+      query = session.createQuery("update MessageBatch set submitStatus = ?, exportCheckpointKey = null, "
+          + "exportCheckpointSize = null, exportCheckpointCount = null where batchId = ?");
+      query.setParameter(0, SubmitStatus.SUBMITTED);
+      query.setParameter(1, messageBatch.getBatchId());
+      query.executeUpdate();
+      if (checkpointPatients > 0)
       {
-        out.print(constructor.makeFooter(currMr));
+        session.getTransaction().commit();
+        session.beginTransaction();
       }
-      closeOutput(nothingExported);
+      task.resumable = false;
     }
   }
 
-  private void closeOutput(boolean nothingExported)
+  /**
+   * Receive queue ids of a batch in the order they are to be exported, read
+   * one at a time.
+   */
+  private interface SortedIds
   {
-    out.close();
-    out = null;
-    if (nothingExported && file != null && file.exists())
+    public boolean next() throws IOException;
+
+    public int getId();
+
+    public void close();
+  }
+
+  /**
+   * Has the database sort the prepared messages of the batch by patient and
+   * then by when they were received. The cursor is read through a session of
+   * its own, so it stays open while the export commits at each checkpoint.
+   */
+  private SortedIds sortInDatabase(MessageBatch messageBatch)
+  {
+    final Session session = OrganizationManager.getSessionFactory().openSession();
+    session.beginTransaction();
+    SQLQuery sqlQuery = session.createSQLQuery("select rq.receive_queue_id "
+        + "from dqa_receive_queue rq, dqa_patient pat, dqa_message_received mr "
+        + "where rq.received_id = pat.received_id " + "  and rq.submit_code = 'P' " + "  and batch_id = ? "
+        + "  and rq.received_id = mr.received_id "
+        + "order by pat.name_last, pat.name_first, pat.name_middle, pat.id_submitter_number, mr.received_date");
+    sqlQuery.setParameter(0, messageBatch.getBatchId());
+    sqlQuery.setFetchSize(EXPORT_CHUNK_SIZE);
+    final ScrollableResults scrollableResults;
+    try
     {
-      try
+      scrollableResults = sqlQuery.scroll(ScrollMode.FORWARD_ONLY);
+    } catch (RuntimeException re)
+    {
+      session.close();
+      throw re;
+    }
+    return new SortedIds() {
+      public boolean next()
+      {
+        return scrollableResults.next();
+      }
+
+      public int getId()
+      {
+        return toInt(scrollableResults.get(0));
+      }
+
+      public void close()
+      {
+        try
+        {
+          scrollableResults.close();
+          session.getTransaction().rollback();
+        } finally
+        {
+          session.close();
+        }
+      }
+    };
+  }
+
+  /**
+   * Reads the prepared messages of the batch in whatever order the database
+   * returns them, along with their patient sort values, and sorts them here
+   * in runs on disk. Very large batches then cost the database a plain scan
+   * instead of a sort, and memory use stays bounded.
+   */
+  private SortedIds sortExternally(Session session, MessageBatch messageBatch, ExportTask task) throws IOException
+  {
+    SQLQuery sqlQuery = session.createSQLQuery("select rq.receive_queue_id, pat.name_last, pat.name_first, pat.name_middle, "
+        + "  pat.id_submitter_number, mr.received_date "
+        + "from dqa_receive_queue rq, dqa_patient pat, dqa_message_received mr "
+        + "where rq.received_id = pat.received_id " + "  and rq.submit_code = 'P' " + "  and batch_id = ? "
+        + "  and rq.received_id = mr.received_id ");
+    sqlQuery.setParameter(0, messageBatch.getBatchId());
+    sqlQuery.setFetchSize(EXPORT_CHUNK_SIZE);
+    final ExternalIdSorter externalIdSorter = new ExternalIdSorter(SORT_RUN_SIZE);
+    ScrollableResults scrollableResults = sqlQuery.scroll(ScrollMode.FORWARD_ONLY);
+    try
+    {
+      while (scrollableResults.next())
+      {
+        Object[] row = scrollableResults.get();
+        Date receivedDate = (Date) row[5];
+        String key = ExternalIdSorter.makeKey((String) row[1], (String) row[2], (String) row[3], (String) row[4]);
+        externalIdSorter.add(key, receivedDate == null ? 0 : receivedDate.getTime(), toInt(row[0]));
+      }
+    } catch (IOException ioe)
+    {
+      externalIdSorter.close();
+      throw ioe;
+    } finally
+    {
+      scrollableResults.close();
+    }
+    task.log(" +  Sorted " + externalIdSorter.getCount() + " messages in " + externalIdSorter.getRunCount() + " runs \n");
+    return new SortedIds() {
+      public boolean next() throws IOException
+      {
+        return externalIdSorter.next();
+      }
+
+      public int getId()
       {
-        file.delete();
-      } catch (Exception e)
+        return externalIdSorter.getId();
+      }
+
+      public void close()
       {
-        // ignore, if unable to delete
+        externalIdSorter.close();
       }
+    };
+  }
+
+  private static int toInt(Object id)
+  {
+    if (id instanceof BigDecimal)
+    {
+      return ((BigDecimal) id).intValue();
+    }
+    return ((Number) id).intValue();
+  }
+
+  /**
+   * Makes the export file durable as far as it has been written, records
+   * where it got to on the batch and commits, so the status changes of every
+   * exported message are saved along with the checkpoint that covers them.
+   */
+  private void checkpoint(Session session, MessageBatch messageBatch, String sortKey, ExportTask task) throws IOException
+  {
+    long size = task.out.checkpoint();
+    task.resumable = true;
+    Query query = session.createQuery("update MessageBatch set exportCheckpointKey = ?, exportCheckpointSize = ?, "
+        + "exportCheckpointCount = ? where batchId = ?");
+    query.setParameter(0, sortKey);
+    query.setParameter(1, size);
+    query.setParameter(2, task.out.getMessageCount());
+    query.setParameter(3, messageBatch.getBatchId());
+    query.executeUpdate();
+    // The session is not cleared, the rest of the chunk being exported is
+    // still held in it
+    session.flush();
+    session.getTransaction().commit();
+    session.beginTransaction();
+    task.log(" +  Checkpoint after patient " + sortKey + " at " + size + " bytes \n");
+  }
+
+  /**
+   * Called when a batch was checkpointed but the file written up to the
+   * checkpoint is gone, for example deleted or lost with the disk it was on.
+   * While a batch is still prepared the only messages in it marked as
+   * submitted are the ones that went into that file, so they are marked as
+   * prepared again and the checkpoint is cleared. The batch is then exported
+   * from the start into a new file. If the lost file had already been picked
+   * up, those messages will be sent a second time.
+   */
+  private void recoverLostCheckpoint(Session session, MessageBatch messageBatch, ExportTask task)
+  {
+    Query query = session.createQuery("update MessageReceived set submitStatus = ? where submitStatus = ? and receivedId in "
+        + "(select rq.messageReceived.receivedId from ReceiveQueue rq where rq.messageBatch = ? and rq.submitStatus = ?)");
+    query.setParameter(0, SubmitStatus.PREPARED);
+    query.setParameter(1, SubmitStatus.SUBMITTED);
+    query.setParameter(2, messageBatch);
+    query.setParameter(3, SubmitStatus.SUBMITTED);
+    query.executeUpdate();
+    query = session.createQuery("update ReceiveQueue set submitStatus = ? where messageBatch = ? and submitStatus = ?");
+    query.setParameter(0, SubmitStatus.PREPARED);
+    query.setParameter(1, messageBatch);
+    query.setParameter(2, SubmitStatus.SUBMITTED);
+    int count = query.executeUpdate();
+    query = session.createQuery("update MessageBatch set exportCheckpointKey = null, exportCheckpointSize = null, "
+        + "exportCheckpointCount = null where batchId = ?");
+    query.setParameter(0, messageBatch.getBatchId());
+    query.executeUpdate();
+    session.getTransaction().commit();
+    session.beginTransaction();
+    task.log(" +  Checkpoint lost, " + count + " messages prepared again and batch exported from the start \n");
+  }
+
+  /**
+   * Called when a batch was checkpointed but its file turns out to have been
+   * committed, so the run that wrote it stopped after publishing the file and
+   * before marking the batch submitted. Every message still prepared in the
+   * batch went into that file, so they and the batch are marked as submitted
+   * and the file is left alone.
+   */
+  private void completeCommittedExport(Session session, MessageBatch messageBatch, ExportTask task)
+  {
+    Query query = session.createQuery("update MessageReceived set submitStatus = ? where submitStatus = ? and receivedId in "
+        + "(select rq.messageReceived.receivedId from ReceiveQueue rq where rq.messageBatch = ? and rq.submitStatus = ?)");
+    query.setParameter(0, SubmitStatus.SUBMITTED);
+    query.setParameter(1, SubmitStatus.PREPARED);
+    query.setParameter(2, messageBatch);
+    query.setParameter(3, SubmitStatus.PREPARED);
+    query.executeUpdate();
+    query = session.createQuery("update ReceiveQueue set submitStatus = ? where messageBatch = ? and submitStatus = ?");
+    query.setParameter(0, SubmitStatus.SUBMITTED);
+    query.setParameter(1, messageBatch);
+    query.setParameter(2, SubmitStatus.PREPARED);
+    int count = query.executeUpdate();
+    query = session.createQuery("update MessageBatch set submitStatus = ?, exportCheckpointKey = null, "
+        + "exportCheckpointSize = null, exportCheckpointCount = null where batchId = ?");
+    query.setParameter(0, SubmitStatus.SUBMITTED);
+    query.setParameter(1, messageBatch.getBatchId());
+    query.executeUpdate();
+    session.getTransaction().commit();
+    session.beginTransaction();
+    task.log(" +  Export already committed, " + count + " messages after the checkpoint marked as submitted \n");
+  }
+
+  private static String getSortKey(Patient patient)
+  {
+    return patient.getNameLast() + "|" + patient.getNameFirst() + "|" + patient.getNameMiddle() + "|"
+        + patient.getIdSubmitterNumber();
+  }
+
+  /**
+   * Loads the receive queue entries for the ids, along with their messages,
+   * patients, headers, next of kin and vaccinations, using one query for each
+   * kind of record instead of four for every message. Entries are returned in
+   * the same order as the ids. Entries without a patient are marked as
+   * excluded and left out.
+   */
+  private List<ReceiveQueue> loadChunk(Session session, List<Integer> receiveQueueIds)
+  {
+    Query query = session.createQuery("from ReceiveQueue rq join fetch rq.messageReceived where rq.receiveQueueId in (:ids)");
+    query.setParameterList("ids", receiveQueueIds);
+    List<ReceiveQueue> loadedList = query.list();
+    Map<Integer, ReceiveQueue> receiveQueueMap = new HashMap<Integer, ReceiveQueue>();
+    List<MessageReceived> messageReceivedList = new ArrayList<MessageReceived>();
+    for (ReceiveQueue receiveQueue : loadedList)
+    {
+      receiveQueueMap.put(receiveQueue.getReceiveQueueId(), receiveQueue);
+      messageReceivedList.add(receiveQueue.getMessageReceived());
+    }
+    Map<Long, Patient> patientMap = new HashMap<Long, Patient>();
+    Map<Long, MessageHeader> messageHeaderMap = new HashMap<Long, MessageHeader>();
+    Map<Long, List<NextOfKin>> nextOfKinMap = new HashMap<Long, List<NextOfKin>>();
+    Map<Long, List<Vaccination>> vaccinationListMap = new HashMap<Long, List<Vaccination>>();
+    if (messageReceivedList.size() > 0)
+    {
+      query = session.createQuery("from Patient where messageReceived in (:messages)");
+      query.setParameterList("messages", messageReceivedList);
+      for (Patient patient : (List<Patient>) query.list())
+      {
+        Long receivedId = patient.getMessageReceived().getReceivedId();
+        if (!patientMap.containsKey(receivedId))
+        {
+          patientMap.put(receivedId, patient);
+        }
+      }
+      query = session.createQuery("from MessageHeader where messageReceived in (:messages)");
+      query.setParameterList("messages", messageReceivedList);
+      for (MessageHeader messageHeader : (List<MessageHeader>) query.list())
+      {
+        Long receivedId = messageHeader.getMessageReceived().getReceivedId();
+        if (!messageHeaderMap.containsKey(receivedId))
+        {
+          messageHeaderMap.put(receivedId, messageHeader);
+        }
+      }
+      query = session.createQuery("from NextOfKin where messageReceived in (:messages) order by positionId");
+      query.setParameterList("messages", messageReceivedList);
+      for (NextOfKin nextOfKin : (List<NextOfKin>) query.list())
+      {
+        getChildList(nextOfKinMap, nextOfKin.getMessageReceived().getReceivedId()).add(nextOfKin);
+      }
+      query = session.createQuery("from Vaccination where messageReceived in (:messages) order by positionId");
+      query.setParameterList("messages", messageReceivedList);
+      for (Vaccination vaccination : (List<Vaccination>) query.list())
+      {
+        getChildList(vaccinationListMap, vaccination.getMessageReceived().getReceivedId()).add(vaccination);
+      }
+    }
+
+    List<ReceiveQueue> receiveQueueList = new ArrayList<ReceiveQueue>(receiveQueueIds.size());
+    for (Integer receiveQueueId : receiveQueueIds)
+    {
+      ReceiveQueue receiveQueue = receiveQueueMap.get(receiveQueueId);
+      if (receiveQueue == null)
+      {
+        continue;
+      }
+      MessageReceived messageReceived = receiveQueue.getMessageReceived();
+      Long receivedId = messageReceived.getReceivedId();
+      Patient patient = patientMap.get(receivedId);
+      if (patient == null)
+      {
+        // This should not happen, but if it does
+        receiveQueue.setSubmitStatus(SubmitStatus.EXCLUDED);
+        messageReceived.setSubmitStatus(SubmitStatus.EXCLUDED);
+        continue;
+      }
+      messageReceived.setPatient(patient);
+      MessageHeader messageHeader = messageHeaderMap.get(receivedId);
+      if (messageHeader != null)
+      {
+        messageReceived.setMessageHeader(messageHeader);
+      }
+      messageReceived.setNextOfKins(getChildList(nextOfKinMap, receivedId));
+      HashMap<String, Vaccination> vaccinationMap = createVaccinationMap(getChildList(vaccinationListMap, receivedId));
+      messageReceived.setVaccinations(new ArrayList<Vaccination>(vaccinationMap.values()));
+      messageReceived.setVaccinationMap(vaccinationMap);
+      receiveQueueList.add(receiveQueue);
+    }
+    return receiveQueueList;
+  }
+
+  private static <T> List<T> getChildList(Map<Long, List<T>> childMap, Long receivedId)
+  {
+    List<T> childList = childMap.get(receivedId);
+    if (childList == null)
+    {
+      childList = new ArrayList<T>();
+      childMap.put(receivedId, childList);
+    }
+    return childList;
+  }
+
+  private void closeOutput(boolean nothingExported, ExportTask task) throws IOException
+  {
+    ExportSink out = task.out;
+    task.out = null;
+    if (nothingExported)
+    {
+      out.abort();
+    } else
+    {
+      out.commit();
     }
-    file = null;
   }
 
   private List<Vaccination> getAndSortVaccinations(MessageReceived currMr)
@@ -296,7 +892,7 @@ public class WeeklyExportManager extends ManagerThread
     return vaccinations;
   }
 
-  private void exportSubmissionOrder(Session session, SubmitterProfile profile) throws IOException
+  private void exportSubmissionOrder(Session session, SubmitterProfile profile, ExportTask task) throws IOException
   {
     Query query;
     query = session.createQuery("from MessageBatch where submitStatus = ? and profile = ? order by endDate");
@@ -305,28 +901,31 @@ public class WeeklyExportManager extends ManagerThread
     List<MessageBatch> messageBatches = query.list();
     for (MessageBatch messageBatch : messageBatches)
     {
-      openOutputFile(profile, messageBatch.getEndDate());
-      export(messageBatch, profile, session);
-      out.close();
+      openOutputFile(profile, messageBatch.getEndDate(), 0, 0, task);
+      task.profileExport.incBatchCount();
+      export(messageBatch, profile, session, task);
+      closeOutput(task.out.getMessageCount() == 0, task);
     }
   }
 
-  private void export(MessageBatch messageBatch, SubmitterProfile profile, Session session)
+  private void export(MessageBatch messageBatch, SubmitterProfile profile, Session session, ExportTask task) throws IOException
   {
-    internalLog.append(" + " + messageBatch.getEndDate() + "\n");
+    task.log(" + " + messageBatch.getEndDate() + "\n");
     ConstructerInterface constructor = ConstructFactory.getConstructer(profile);
     Query query = session.createQuery("from ReceiveQueue where messageBatch = ? and submitStatus = ?");
     query.setParameter(0, messageBatch);
     query.setParameter(1, SubmitStatus.PREPARED);
     List<ReceiveQueue> receiveQueues = query.list();
-    internalLog.append(" + receiveQueues.size() = " + receiveQueues.size() + "\n");
+    task.log(" + receiveQueues.size() = " + receiveQueues.size() + "\n");
     for (ReceiveQueue receiveQueue : receiveQueues)
     {
       MessageReceived messageReceived = receiveQueue.getMessageReceived();
       populate(session, receiveQueue, messageReceived);
       if (!receiveQueue.getSubmitStatus().isExcluded())
       {
-        out.print(constructor.constructMessage(messageReceived));
+        constructor.constructMessage(messageReceived, task.out.getWriter());
+        task.out.messageWritten();
+        task.profileExport.addMessageCount(1);
         messageReceived.setSubmitStatus(SubmitStatus.SUBMITTED);
         receiveQueue.setSubmitStatus(SubmitStatus.SUBMITTED);
       }
@@ -387,7 +986,7 @@ public class WeeklyExportManager extends ManagerThread
       exportDir = new File(ksm.getKeyedValue(KeyedSetting.OUT_FILE_DIR, "c:\\data\\out"));
       if (!exportDir.exists())
       {
-        internalLog.append("Internal dir '" + exportDir + "' does not exist, unable to export");
+        log("Internal dir '" + exportDir + "' does not exist, unable to export");
         return false;
       }
       exportDayHighest = ksm.getKeyedValueInt(KeyedSetting.WEEKLY_EXPORT_DAY_HIGHEST, 2);
@@ -397,34 +996,54 @@ public class WeeklyExportManager extends ManagerThread
       exportDayLowest = ksm.getKeyedValueInt(KeyedSetting.WEEKLY_EXPORT_DAY_LOWEST, 2);
       processingStartTime = getTimeToday(ksm.getKeyedValue(KeyedSetting.WEEKLY_EXPORT_START_TIME, "13:00"));
       processingEndTime = getTimeToday(ksm.getKeyedValue(KeyedSetting.WEEKLY_EXPORT_END_TIME, "19:00"));
-      internalLog.append("Highest priority export day = " + exportDayHighest + "\r");
-      internalLog.append("High priority export day = " + exportDayHigh + "\r");
-      internalLog.append("Normal priority export day = " + exportDayNormal + "\r");
-      internalLog.append("Low priority export day = " + exportDayLow + "\r");
-      internalLog.append("Lowest priority export day = " + exportDayLowest + "\r");
-      internalLog.append("Processing start time = " + processingStartTime + "\r");
-      internalLog.append("Processing end time = " + processingEndTime + "\r");
+      log("Highest priority export day = " + exportDayHighest + "\r");
+      log("High priority export day = " + exportDayHigh + "\r");
+      log("Normal priority export day = " + exportDayNormal + "\r");
+      log("Low priority export day = " + exportDayLow + "\r");
+      log("Lowest priority export day = " + exportDayLowest + "\r");
+      log("Processing start time = " + processingStartTime + "\r");
+      log("Processing end time = " + processingEndTime + "\r");
       return true;
     }
   }
 
-  private void openOutputFile(SubmitterProfile profile, Date generateDate) throws IOException
+  private void openOutputFile(SubmitterProfile profile, Date generateDate, long resumeSize, int resumeCount, ExportTask task)
+      throws IOException
   {
     Calendar cal = Calendar.getInstance();
     cal.setTime(generateDate);
     String filename = createFilename(cal, profile);
-    file = new File(exportDir, filename);
     try
     {
-      out = new PrintWriter(new FileWriter(file));
+      task.out = createExportSink(new File(exportDir, filename), resumeSize, resumeCount);
     } catch (IOException ioe)
     {
-      internalLog.append("Unable to open file '" + filename + "'");
-      lastException = ioe;
+      task.log("Unable to open file '" + filename + "'");
       throw ioe;
     }
   }
 
+  /**
+   * Opens the sink an export file is written through. The file is gzipped if
+   * weekly.export.gzip.enabled is set and is written in the character set
+   * given by weekly.export.charset. A resume size other than 0 picks up an
+   * export that was stopped after a checkpoint.
+   */
+  protected ExportSink createExportSink(File file, long resumeSize, int resumeCount) throws IOException
+  {
+    KeyedSettingManager ksm = KeyedSettingManager.getKeyedSettingManager();
+    boolean gzip = ksm.getKeyedValueBoolean(KeyedSetting.WEEKLY_EXPORT_GZIP_ENABLED, false);
+    Charset charset;
+    try
+    {
+      charset = Charset.forName(ksm.getKeyedValue(KeyedSetting.WEEKLY_EXPORT_CHARSET, "UTF-8"));
+    } catch (IllegalArgumentException iae)
+    {
+      throw new IOException("Unable to use character set for export: " + iae.getMessage());
+    }
+    return new FileExportSink(file, gzip, charset, resumeSize, resumeCount);
+  }
+
   private String createFilename(Calendar endOfWeek, SubmitterProfile profile)
   {
     return profile.getProfileCode() + pad(2000 - endOfWeek.get(Calendar.YEAR), 2)
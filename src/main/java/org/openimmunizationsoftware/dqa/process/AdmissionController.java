@@ -0,0 +1,222 @@
+/*
+ * Copyright 2013 by Dandelion Software & Research, Inc (DSR)
+ * 
+ * This application was written for immunization information system (IIS) community and has
+ * been released by DSR under an Apache 2 License with the hope that this software will be used
+ * to improve Public Health.  
+ */
+package org.openimmunizationsoftware.dqa.process;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import org.openimmunizationsoftware.dqa.db.model.KeyedSetting;
+import org.openimmunizationsoftware.dqa.db.model.SubmitterProfile;
+import org.openimmunizationsoftware.dqa.manager.KeyedSettingManager;
+import org.openimmunizationsoftware.dqa.manager.RollingMetricsManager;
+
+/**
+ * Limits how many messages are processed at the same time, both overall and
+ * for each submitter profile, so that bursts do not exhaust the database
+ * connection pool. Messages that can not start right away wait in a bounded
+ * queue for a limited time, after that they are rejected and the sender is
+ * asked to retry. Off unless admission.enabled is set. Admitted and rejected
+ * messages are also counted per profile in the {@link RollingMetricsManager},
+ * where they can be read over JMX.
+ */
+public class AdmissionController
+{
+  private static AdmissionController singleton = null;
+  private static final String INIT_BLOCK = "init";
+
+  private static final int DEFAULT_MAX_CONCURRENT = 25;
+  private static final int DEFAULT_MAX_CONCURRENT_PROFILE = 10;
+  private static final int DEFAULT_QUEUE_SIZE = 100;
+  private static final int DEFAULT_MAX_WAIT = 30000;
+
+  public static AdmissionController getAdmissionController()
+  {
+    if (singleton == null)
+    {
+      synchronized (INIT_BLOCK)
+      {
+        if (singleton == null)
+        {
+          singleton = new AdmissionController();
+        }
+      }
+    }
+    return singleton;
+  }
+
+  private final Object lock = new Object();
+  private final Map<Integer, Integer> runningByProfile = new HashMap<Integer, Integer>();
+  private int runningCount = 0;
+  private int queueDepth = 0;
+  private int queueDepthMax = 0;
+  private long admittedCount = 0;
+  private long rejectedCount = 0;
+
+  private AdmissionController() {
+    // singleton
+  }
+
+  public boolean isEnabled()
+  {
+    return KeyedSettingManager.getKeyedSettingManager().getKeyedValueBoolean(KeyedSetting.ADMISSION_ENABLED, false);
+  }
+
+  /**
+   * Waits until the message for this profile may be processed. Returns false
+   * if the queue is full or the wait took too long, in which case the message
+   * must not be processed. Every true return must be matched by a call to
+   * {@link #release(SubmitterProfile)}.
+   */
+  public boolean admit(SubmitterProfile profile)
+  {
+    boolean admitted = waitToStart(profile);
+    RollingMetricsManager.getRollingMetricsManager().registerAdmission(profile, admitted);
+    return admitted;
+  }
+
+  private boolean waitToStart(SubmitterProfile profile)
+  {
+    KeyedSettingManager ksm = KeyedSettingManager.getKeyedSettingManager();
+    int maxConcurrent = ksm.getKeyedValueInt(KeyedSetting.ADMISSION_MAX_CONCURRENT, DEFAULT_MAX_CONCURRENT);
+    int maxConcurrentProfile = ksm.getKeyedValueInt(KeyedSetting.ADMISSION_MAX_CONCURRENT_PROFILE,
+        DEFAULT_MAX_CONCURRENT_PROFILE);
+    int queueSize = ksm.getKeyedValueInt(KeyedSetting.ADMISSION_QUEUE_SIZE, DEFAULT_QUEUE_SIZE);
+    int maxWait = ksm.getKeyedValueInt(KeyedSetting.ADMISSION_MAX_WAIT, DEFAULT_MAX_WAIT);
+    Integer profileId = profile == null ? 0 : profile.getProfileId();
+    synchronized (lock)
+    {
+      if (canStart(profileId, maxConcurrent, maxConcurrentProfile))
+      {
+        start(profileId);
+        return true;
+      }
+      if (queueDepth >= queueSize)
+      {
+        rejectedCount++;
+        return false;
+      }
+      queueDepth++;
+      if (queueDepth > queueDepthMax)
+      {
+        queueDepthMax = queueDepth;
+      }
+      try
+      {
+        long giveUpTime = System.currentTimeMillis() + maxWait;
+        while (!canStart(profileId, maxConcurrent, maxConcurrentProfile))
+        {
+          long waitTime = giveUpTime - System.currentTimeMillis();
+          if (waitTime <= 0)
+          {
+            rejectedCount++;
+            return false;
+          }
+          try
+          {
+            lock.wait(waitTime);
+          } catch (InterruptedException ie)
+          {
+            Thread.currentThread().interrupt();
+            rejectedCount++;
+            return false;
+          }
+        }
+        start(profileId);
+        return true;
+      } finally
+      {
+        queueDepth--;
+      }
+    }
+  }
+
+  public void release(SubmitterProfile profile)
+  {
+    Integer profileId = profile == null ? 0 : profile.getProfileId();
+    synchronized (lock)
+    {
+      runningCount--;
+      Integer count = runningByProfile.get(profileId);
+      if (count == null || count <= 1)
+      {
+        runningByProfile.remove(profileId);
+      } else
+      {
+        runningByProfile.put(profileId, count - 1);
+      }
+      lock.notifyAll();
+    }
+  }
+
+  private boolean canStart(Integer profileId, int maxConcurrent, int maxConcurrentProfile)
+  {
+    if (runningCount >= maxConcurrent)
+    {
+      return false;
+    }
+    Integer count = runningByProfile.get(profileId);
+    return count == null || count < maxConcurrentProfile;
+  }
+
+  private void start(Integer profileId)
+  {
+    runningCount++;
+    Integer count = runningByProfile.get(profileId);
+    runningByProfile.put(profileId, count == null ? 1 : count + 1);
+    admittedCount++;
+  }
+
+  public int getRunningCount()
+  {
+    synchronized (lock)
+    {
+      return runningCount;
+    }
+  }
+
+  public int getRunningCount(SubmitterProfile profile)
+  {
+    synchronized (lock)
+    {
+      Integer count = runningByProfile.get(profile.getProfileId());
+      return count == null ? 0 : count;
+    }
+  }
+
+  public int getQueueDepth()
+  {
+    synchronized (lock)
+    {
+      return queueDepth;
+    }
+  }
+
+  public int getQueueDepthMax()
+  {
+    synchronized (lock)
+    {
+      return queueDepthMax;
+    }
+  }
+
+  public long getAdmittedCount()
+  {
+    synchronized (lock)
+    {
+      return admittedCount;
+    }
+  }
+
+  public long getRejectedCount()
+  {
+    synchronized (lock)
+    {
+      return rejectedCount;
+    }
+  }
+}
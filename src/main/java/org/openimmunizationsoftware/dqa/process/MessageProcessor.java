@@ -7,13 +7,14 @@
  */
 package org.openimmunizationsoftware.dqa.process;
 
-import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.util.ArrayList;
-import java.util.Date;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.hibernate.Query;
 import org.hibernate.Session;
@@ -38,24 +39,25 @@ import org.openimmunizationsoftware.dqa.db.model.received.types.PatientIdNumber;
 import org.openimmunizationsoftware.dqa.db.model.received.types.PatientImmunity;
 import org.openimmunizationsoftware.dqa.db.model.received.types.PatientPhone;
 import org.openimmunizationsoftware.dqa.manager.CodesReceived;
+import org.openimmunizationsoftware.dqa.manager.DuplicateMessageManager;
+import org.openimmunizationsoftware.dqa.manager.ForecastManager;
 import org.openimmunizationsoftware.dqa.manager.KeyedSettingManager;
 import org.openimmunizationsoftware.dqa.manager.MessageReceivedManager;
+import org.openimmunizationsoftware.dqa.manager.PatientHistoryManager;
 import org.openimmunizationsoftware.dqa.manager.PotentialIssues;
+import org.openimmunizationsoftware.dqa.manager.ReferenceDataWarmup;
+import org.openimmunizationsoftware.dqa.manager.RollingMetricsManager;
 import org.openimmunizationsoftware.dqa.parse.HL7Util;
 import org.openimmunizationsoftware.dqa.parse.VaccinationParserHL7;
 import org.openimmunizationsoftware.dqa.quality.QualityCollector;
 import org.openimmunizationsoftware.dqa.validate.Validator;
-import org.tch.fc.ConnectFactory;
-import org.tch.fc.ConnectorInterface;
 import org.tch.fc.model.ForecastActual;
-import org.tch.fc.model.Service;
-import org.tch.fc.model.Software;
-import org.tch.fc.model.SoftwareResult;
-import org.tch.fc.model.TestCase;
-import org.tch.fc.model.TestEvent;
 
 public class MessageProcessor
 {
+  private static final int DEFAULT_WARMUP_MAX_WAIT = 60000;
+
+  private static final AtomicBoolean warmupTimeoutLogged = new AtomicBoolean(false);
 
   // set for webservice
   // results.setBatchId(qualityCollector.getMessageBatch().getBatchId());
@@ -155,20 +157,71 @@ public class MessageProcessor
 
   public static MessageProcessResponse processMessage(MessageProcessRequest request)
   {
+    ReferenceDataWarmup warmup = ReferenceDataWarmup.getReferenceDataWarmup();
+    if (warmup != null && !warmup.isReady())
+    {
+      // Hold messages until the reference data has loaded, but only for so
+      // long after the warm-up started, so one stuck load can't stop intake
+      int maxWait = KeyedSettingManager.getKeyedSettingManager().getKeyedValueInt(KeyedSetting.WARMUP_MAX_WAIT,
+          DEFAULT_WARMUP_MAX_WAIT);
+      try
+      {
+        if (!warmup.awaitReady(Math.max(0, maxWait - warmup.getWarmupTime()), TimeUnit.MILLISECONDS)
+            && warmupTimeoutLogged.compareAndSet(false, true))
+        {
+          System.err.print("Stopped waiting for reference data after " + maxWait + " ms, caches still loading will load on first use\n"
+              + warmup.getReport());
+        }
+      } catch (InterruptedException ie)
+      {
+        // the caches will load on first use
+        Thread.currentThread().interrupt();
+      }
+    }
 
     MessageProcessResponse response = new MessageProcessResponse();
     MessageReceivedGeneric messageReceived;
 
     if (request.isHL7v2())
     {
-      if (request.getMessageType().equals(HL7Util.MESSAGE_TYPE_VXU))
+      AdmissionController admissionController = AdmissionController.getAdmissionController();
+      boolean admissionControlled = admissionController.isEnabled()
+          && (request.getMessageType().equals(HL7Util.MESSAGE_TYPE_VXU) || request.getMessageType().equals(
+              HL7Util.MESSAGE_TYPE_QBP));
+      if (admissionControlled && !admissionController.admit(request.getProfile()))
       {
         messageReceived = new MessageReceived();
-        processVXU(request, (MessageReceived) messageReceived);
+        PotentialIssue pi = PotentialIssues.getPotentialIssues().GeneralProcessingException;
+        String ackMessage = HL7Util.makeAckMessage(HL7Util.ACK_ERROR, HL7Util.SEVERITY_ERROR,
+            "Server is busy and unable to process message at this time, please resend later", request, pi);
+        messageReceived.setResponseText(ackMessage);
+        messageReceived.setSuccessfulCompletion(false);
+      } else if (request.getMessageType().equals(HL7Util.MESSAGE_TYPE_VXU))
+      {
+        try
+        {
+          messageReceived = new MessageReceived();
+          processVXU(request, (MessageReceived) messageReceived);
+        } finally
+        {
+          if (admissionControlled)
+          {
+            admissionController.release(request.getProfile());
+          }
+        }
       } else if (request.getMessageType().equals(HL7Util.MESSAGE_TYPE_QBP))
       {
-        messageReceived = new QueryReceived();
-        processQBP(request, (QueryReceived) messageReceived);
+        try
+        {
+          messageReceived = new QueryReceived();
+          processQBP(request, (QueryReceived) messageReceived);
+        } finally
+        {
+          if (admissionControlled)
+          {
+            admissionController.release(request.getProfile());
+          }
+        }
       } else
       {
         messageReceived = new MessageReceived();
@@ -183,6 +236,7 @@ public class MessageProcessor
           ackMessage = HL7Util.makeAckMessage(HL7Util.ACK_REJECT, HL7Util.SEVERITY_ERROR, pi.getDisplayText(), request, pi);
         }
         messageReceived.setResponseText(ackMessage);
+        messageReceived.setSuccessfulCompletion(false);
       }
     } else
     {
@@ -192,6 +246,9 @@ public class MessageProcessor
       messageReceived.setResponseText(ackMessage);
       messageReceived.setSuccessfulCompletion(false);
     }
+    // Every message is counted, including queries and the ones turned away
+    // before they were processed
+    RollingMetricsManager.getRollingMetricsManager().registerMessage(request.getProfile(), messageReceived);
     response.setMessageReceived(messageReceived);
     return response;
   }
@@ -201,10 +258,32 @@ public class MessageProcessor
     Transaction tx = request.getSession().beginTransaction();
     try
     {
+      PatientHistoryManager patientHistoryManager = PatientHistoryManager.getPatientHistoryManager();
+      PatientHistoryManager.ConsolidatedHistory patientHistory = null;
+      DuplicateMessageManager duplicateMessageManager = DuplicateMessageManager.getDuplicateMessageManager();
 
-      request.getProfile().initPotentialIssueStatus(request.getSession());
       messageReceived.setProfile(request.getProfile());
       messageReceived.setRequestText(request.getMessageText());
+      if (duplicateMessageManager.isEnabled())
+      {
+        String normalizedText = DuplicateMessageManager.normalizeMessage(request.getMessageText());
+        messageReceived.setContentHash(DuplicateMessageManager.hashMessage(normalizedText));
+        MessageReceived previous = duplicateMessageManager.findDuplicate(request.getProfile(), normalizedText,
+            messageReceived.getContentHash(), request.getSession());
+        if (previous != null)
+        {
+          // same content already processed, answer as before
+          messageReceived.setResponseText(DuplicateMessageManager.replaceAckMessageKey(previous.getResponseText(),
+              request.getMessageKey()));
+          messageReceived.setIssueAction(previous.getIssueAction());
+          messageReceived.setSubmitStatus(previous.getSubmitStatus());
+          tx.commit();
+          tx = null;
+          messageReceived.setSuccessfulCompletion(true);
+          return;
+        }
+      }
+      request.getProfile().initPotentialIssueStatus(request.getSession());
       request.getParser().createVaccinationUpdateMessage(messageReceived);
       if (!messageReceived.hasErrors())
       {
@@ -217,9 +296,18 @@ public class MessageProcessor
       messageReceived.setResponseText(ackMessage);
       messageReceived.setIssueAction(IssueAction.ACCEPT);
       MessageReceivedManager.saveMessageReceived(request.getProfile(), messageReceived, request.getSession());
+      if (patientHistoryManager.isEnabled())
+      {
+        patientHistory = patientHistoryManager.registerAcceptedMessage(messageReceived, request.getSession());
+      }
 
       tx.commit();
       tx = null;
+      if (patientHistory != null)
+      {
+        patientHistoryManager.cacheHistory(patientHistory);
+      }
+      duplicateMessageManager.registerMessage(messageReceived);
       messageReceived.setSuccessfulCompletion(true);
 
     } catch (Exception exception)
@@ -252,144 +340,34 @@ public class MessageProcessor
       request.getParser().createQueryMessage(queryReceived);
 
       QueryResult queryResult = new QueryResult();
+      ForecastManager.ForecastRequest forecastRequest = null;
 
       if (!queryReceived.hasErrors())
       {
-        Query query = session.createQuery("from Patient where messageReceived.profile = ? and idSubmitterNumber = ? and "
-            + "(messageReceived.issueAction = 'W' or messageReceived.issueAction = 'A') order by messageReceived.receivedDate ASC ");
-        query.setParameter(0, request.getProfile());
-        query.setParameter(1, queryReceived.getPatient().getIdSubmitterNumber());
-        List<Patient> patientList = query.list();
-        for (Iterator<Patient> patientIt = patientList.iterator(); patientIt.hasNext();)
+        Patient queryPatient = queryReceived.getPatient();
+        PatientHistoryManager patientHistoryManager = PatientHistoryManager.getPatientHistoryManager();
+        PatientHistoryManager.ConsolidatedHistory patientHistory = null;
+        if (patientHistoryManager.isEnabled())
         {
-          Patient patient = patientIt.next();
-          if (!patient.getNameFirst().equalsIgnoreCase(queryReceived.getPatient().getNameFirst())
-              || !patient.getNameLast().equalsIgnoreCase(queryReceived.getPatient().getNameLast()))
-          {
-            patientIt.remove();
-          }
+          patientHistory = patientHistoryManager.getHistory(request.getProfile(), queryPatient.getIdSubmitterNumber(),
+              session);
         }
-        if (patientList.size() > 0)
+        if (patientHistory != null && patientHistory.matchesName(queryPatient.getNameFirst(), queryPatient.getNameLast()))
         {
-          queryResult.setPatient(patientList.get(patientList.size() - 1));
-        }
-        List<NextOfKin> nextOfKinListComplete = queryResult.getNextOfKinList();
-        for (Patient patient : patientList)
+          readHistory(session, patientHistoryManager, patientHistory, queryResult);
+        } else
         {
-          MessageReceived messageReceived = patient.getMessageReceived();
-          query = session.createQuery("from NextOfKin where messageReceived = ?");
-          query.setParameter(0, messageReceived);
-          List<NextOfKin> nextOfKinList = query.list();
-          for (NextOfKin nextOfKin : nextOfKinList)
-          {
-            if (!nextOfKin.isSkipped())
-            {
-              int pos = 0;
-              while (pos < nextOfKinListComplete.size())
-              {
-                NextOfKin vc = nextOfKinListComplete.get(pos);
-                if (same(vc, nextOfKin))
-                {
-                  nextOfKinListComplete.remove(pos);
-
-                  break;
-                }
-                pos++;
-              }
-              nextOfKinListComplete.add(nextOfKin);
-            }
-          }
-          query = session.createQuery("from PatientIdNumber where patient = ?");
-          query.setParameter(0, patient);
-          List<PatientIdNumber> patientIdNumberList = query.list();
-          for (PatientIdNumber patientIdNumber : patientIdNumberList)
-          {
-            patient.getPatientIdNumberList().add(patientIdNumber);
-          }
-
-          query = session.createQuery("from PatientPhone where patient = ?");
-          query.setParameter(0, patient);
-          List<PatientPhone> patientPhoneList = query.list();
-          for (PatientPhone patientPhone : patientPhoneList)
-          {
-            patient.getPatientPhoneList().add(patientPhone);
-          }
-
-          query = session.createQuery("from PatientAddress where patient = ?");
-          query.setParameter(0, patient);
-          List<PatientAddress> patientAddressList = query.list();
-          if (patientAddressList.size() > 0)
-          {
-            patient.getPatientAddressList().set(0, patientAddressList.get(0));
-          }
-          for (int i = 1; i < patientAddressList.size(); i++)
-          {
-            patient.getPatientAddressList().add(patientAddressList.get(i));
-          }
+          replayHistory(session, request.getProfile(), queryPatient, queryResult);
         }
-        List<Vaccination> vaccinationListComplete = queryResult.getVaccinationList();
-        List<PatientImmunity> patientImmunityListComplete = queryResult.getPatient().getPatientImmunityList();
-        for (Patient patient : patientList)
+        ForecastManager forecastManager = ForecastManager.getForecastManager();
+        if (queryResult.getPatient() != null && forecastManager.isEnabled())
         {
-          MessageReceived messageReceived = patient.getMessageReceived();
-          query = session.createQuery("from Vaccination where messageReceived = ?");
-          query.setParameter(0, messageReceived);
-          List<Vaccination> vaccinationList = query.list();
-          for (Vaccination vaccination : vaccinationList)
-          {
-            if (!vaccination.isSkipped())
-            {
-              boolean addToList = true;
-              int pos = 0;
-              while (pos < vaccinationListComplete.size())
-              {
-                Vaccination vc = vaccinationListComplete.get(pos);
-                if (same(vc, vaccination))
-                {
-                  vaccinationListComplete.remove(pos);
-                  if (vaccination.isActionDelete())
-                  {
-                    addToList = false;
-                  }
-                  break;
-                }
-                pos++;
-              }
-              if (addToList)
-              {
-                vaccinationListComplete.add(vaccination);
-              }
-            }
-          }
-          query = session.createQuery("from PatientImmunity where patient = ?");
-          query.setParameter(0, patient);
-          List<PatientImmunity> patientImmunityList = query.list();
-          for (PatientImmunity patientImmunity : patientImmunityList)
-          {
-            if (!patientImmunity.isSkipped())
-            {
-              int pos = 0;
-              boolean addToList = true;
-              while (pos < patientImmunityListComplete.size())
-              {
-                PatientImmunity pi = patientImmunityListComplete.get(pos);
-                if (pi.getImmunityCode().equals(patientImmunity.getImmunityCode()))
-                {
-                  addToList = false;
-                  break;
-                }
-                pos++;
-              }
-              if (addToList)
-              {
-                patientImmunityListComplete.add(patientImmunity);
-              }
-            }
-          }
+          // forecast runs while the rest of the response is put together
+          forecastRequest = forecastManager.requestForecast(queryResult.getPatient(), queryResult.getVaccinationList());
         }
-        for (Vaccination vaccination : vaccinationListComplete)
+        for (Vaccination vaccination : queryResult.getVaccinationList())
         {
-          query = session.createQuery("from VaccinationVIS where vaccination = ?");
+          Query query = session.createQuery("from VaccinationVIS where vaccination = ?");
           query.setParameter(0, vaccination);
           List<VaccinationVIS> vaccinationVISList = query.list();
           vaccination.getVaccinationVisList().addAll(vaccinationVISList);
@@ -397,56 +375,12 @@ public class MessageProcessor
 
       }
 
-      if (queryResult.getPatient() != null)
+      if (forecastRequest != null)
       {
-
-        KeyedSettingManager ksm = KeyedSettingManager.getKeyedSettingManager();
-        if (ksm.getKeyedValueBoolean(KeyedSetting.CDS_SOFTWARE_SERVICE_ENABLED, false))
+        List<ForecastActual> forecastActualList = forecastRequest.waitForForecast();
+        if (forecastActualList != null)
         {
-          String cdsServiceType = ksm.getKeyedValue(KeyedSetting.CDS_SOFTWARE_SERVICE_TYPE, "");
-          String cdsServiceUrl = ksm.getKeyedValue(KeyedSetting.CDS_SOFTWARE_SERVICE_URL, "");
-          if (!cdsServiceType.equals("") && !cdsServiceUrl.equals(""))
-          {
-            // Do forecast
-            Patient patient = queryResult.getPatient();
-            TestCase testCase = new TestCase();
-            testCase.setEvalDate(new Date());
-
-            testCase.setPatientSex(patient.getSexCode().equals("M") ? "M" : "F");
-            testCase.setPatientDob(patient.getBirthDate());
-            List<TestEvent> testEventList = new ArrayList<TestEvent>();
-            for (Vaccination vaccination : queryResult.getVaccinationList())
-            {
-              String cvxString = vaccination.getAdminCvxCode();
-              if (!cvxString.equals(""))
-              {
-                try
-                {
-                  TestEvent testEvent = new TestEvent(Integer.parseInt(cvxString), vaccination.getAdminDate());
-                  testEventList.add(testEvent);
-                  vaccination.setTestEvent(testEvent);
-                } catch (NumberFormatException nfe)
-                {
-                  // ignore, forecast can't use bad CVX code
-                }
-              }
-            }
-            testCase.setTestEventList(testEventList);
-            Software software = new Software();
-            software.setServiceUrl(cdsServiceUrl);
-            software.setService(Service.getService(cdsServiceType));
-
-            ConnectorInterface connector = ConnectFactory.createConnecter(software);
-            try
-            {
-              SoftwareResult softwareResult = new SoftwareResult();
-              List<ForecastActual> forecastActualList = connector.queryForForecast(testCase, softwareResult);
-              queryResult.setForecastActualList(forecastActualList);
-            } catch (IOException ioe)
-            {
-              ioe.printStackTrace();
-            }
-          }
+          queryResult.setForecastActualList(forecastActualList);
         }
       }
 
@@ -476,45 +410,130 @@ public class MessageProcessor
     }
   }
 
-  private static boolean same(NextOfKin nk1, NextOfKin nk2)
+  /**
+   * Builds the consolidated history by replaying every accepted message for
+   * the patient in the order received.
+   */
+  private static void replayHistory(Session session, SubmitterProfile profile, Patient queryPatient, QueryResult queryResult)
   {
-    boolean firstNameConflicts;
-    boolean lastNameConflicts;
-    if (nk1.getNameFirst() == null || nk2.getNameFirst() == null)
+    Query query = session.createQuery("from Patient where messageReceived.profile = ? and idSubmitterNumber = ? and "
+        + "(messageReceived.issueAction = 'W' or messageReceived.issueAction = 'A') order by messageReceived.receivedDate ASC ");
+    query.setParameter(0, profile);
+    query.setParameter(1, queryPatient.getIdSubmitterNumber());
+    List<Patient> patientList = query.list();
+    for (Iterator<Patient> patientIt = patientList.iterator(); patientIt.hasNext();)
     {
-      firstNameConflicts = nk1.getNameFirst() != null || nk2.getNameFirst() != null;
-    } else
+      Patient patient = patientIt.next();
+      if (!patient.getNameFirst().equalsIgnoreCase(queryPatient.getNameFirst())
+          || !patient.getNameLast().equalsIgnoreCase(queryPatient.getNameLast()))
+      {
+        patientIt.remove();
+      }
+    }
+    if (patientList.size() > 0)
     {
-      firstNameConflicts = !nk1.getNameFirst().equals(nk2.getNameFirst());
+      queryResult.setPatient(patientList.get(patientList.size() - 1));
     }
-    if (nk1.getNameLast() == null || nk2.getNameLast() == null)
+    // Entries are kept in insertion order, a replaced entry is removed first
+    // so that it moves to the end just as it would in a list. The keys are the
+    // ones the patient history uses, so both give the same result.
+    Map<String, NextOfKin> nextOfKinMap = new LinkedHashMap<String, NextOfKin>();
+    for (Patient patient : patientList)
     {
-      lastNameConflicts = nk1.getNameLast() != null || nk2.getNameLast() != null;
-    } else
+      MessageReceived messageReceived = patient.getMessageReceived();
+      query = session.createQuery("from NextOfKin where messageReceived = ?");
+      query.setParameter(0, messageReceived);
+      List<NextOfKin> nextOfKinList = query.list();
+      for (NextOfKin nextOfKin : nextOfKinList)
+      {
+        if (!nextOfKin.isSkipped())
+        {
+          String key = PatientHistoryManager.nextOfKinKey(nextOfKin);
+          nextOfKinMap.remove(key);
+          nextOfKinMap.put(key, nextOfKin);
+        }
+      }
+      loadPatientDetails(session, patient);
+    }
+    queryResult.getNextOfKinList().addAll(nextOfKinMap.values());
+    Map<String, Vaccination> vaccinationMap = new LinkedHashMap<String, Vaccination>();
+    List<PatientImmunity> patientImmunityListComplete = queryResult.getPatient().getPatientImmunityList();
+    Map<String, PatientImmunity> patientImmunityMap = new LinkedHashMap<String, PatientImmunity>();
+    for (Patient patient : patientList)
     {
-      lastNameConflicts = !nk1.getNameLast().equals(nk2.getNameLast());
+      MessageReceived messageReceived = patient.getMessageReceived();
+      query = session.createQuery("from Vaccination where messageReceived = ?");
+      query.setParameter(0, messageReceived);
+      List<Vaccination> vaccinationList = query.list();
+      for (Vaccination vaccination : vaccinationList)
+      {
+        if (!vaccination.isSkipped())
+        {
+          String key = PatientHistoryManager.vaccinationKey(vaccination);
+          if (vaccinationMap.remove(key) == null || !vaccination.isActionDelete())
+          {
+            vaccinationMap.put(key, vaccination);
+          }
+        }
+      }
+      query = session.createQuery("from PatientImmunity where patient = ?");
+      query.setParameter(0, patient);
+      List<PatientImmunity> patientImmunityList = query.list();
+      for (PatientImmunity patientImmunity : patientImmunityList)
+      {
+        if (!patientImmunity.isSkipped() && !patientImmunityMap.containsKey(patientImmunity.getImmunityCode()))
+        {
+          patientImmunityMap.put(patientImmunity.getImmunityCode(), patientImmunity);
+        }
+      }
     }
-    return !firstNameConflicts && !lastNameConflicts;
+    queryResult.getVaccinationList().addAll(vaccinationMap.values());
+    patientImmunityListComplete.addAll(patientImmunityMap.values());
   }
 
-  private static boolean same(Vaccination v1, Vaccination v2)
+  /**
+   * Reads the consolidated history kept by the patient history manager.
+   */
+  private static void readHistory(Session session, PatientHistoryManager patientHistoryManager,
+      PatientHistoryManager.ConsolidatedHistory patientHistory, QueryResult queryResult)
+  {
+    Patient patient = (Patient) session.get(Patient.class, patientHistory.getPatientId());
+    loadPatientDetails(session, patient);
+    queryResult.setPatient(patient);
+    queryResult.getNextOfKinList().addAll(patientHistoryManager.loadNextOfKins(patientHistory, session));
+    queryResult.getVaccinationList().addAll(patientHistoryManager.loadVaccinations(patientHistory, session));
+    patient.getPatientImmunityList().addAll(patientHistoryManager.loadImmunities(patientHistory, session));
+  }
+
+  private static void loadPatientDetails(Session session, Patient patient)
   {
-    boolean s;
-    if (v1.getAdminDate() == null && v2.getAdminDate() == null)
+    Query query = session.createQuery("from PatientIdNumber where patient = ?");
+    query.setParameter(0, patient);
+    List<PatientIdNumber> patientIdNumberList = query.list();
+    for (PatientIdNumber patientIdNumber : patientIdNumberList)
     {
-      s = true;
-    } else if (v1.getAdminDate() == null || v2.getAdminDate() == null)
+      patient.getPatientIdNumberList().add(patientIdNumber);
+    }
+
+    query = session.createQuery("from PatientPhone where patient = ?");
+    query.setParameter(0, patient);
+    List<PatientPhone> patientPhoneList = query.list();
+    for (PatientPhone patientPhone : patientPhoneList)
     {
-      s = false;
-    } else
+      patient.getPatientPhoneList().add(patientPhone);
+    }
+
+    query = session.createQuery("from PatientAddress where patient = ?");
+    query.setParameter(0, patient);
+    List<PatientAddress> patientAddressList = query.list();
+    if (patientAddressList.size() > 0)
     {
-      s = v1.getAdminDate().equals(v2.getAdminDate());
+      patient.getPatientAddressList().set(0, patientAddressList.get(0));
     }
-    if (s)
+    for (int i = 1; i < patientAddressList.size(); i++)
     {
-      return v1.getAdminCvxCode().equals(v2.getAdminCvxCode());
+      patient.getPatientAddressList().add(patientAddressList.get(i));
     }
-    return s;
   }
 
   private static final String PAD = "                                                                                                          ";
@@ -7,18 +7,37 @@
  */
 package org.openimmunizationsoftware.dqa.quality;
 
+import java.io.BufferedOutputStream;
 import java.io.File;
-import java.io.FileReader;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
 import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
 import java.text.ParseException;
 import java.text.SimpleDateFormat;
+import java.util.ArrayList;
 import java.util.Calendar;
 import java.util.Date;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedList;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipOutputStream;
 
 import org.hibernate.Hibernate;
 import org.hibernate.Query;
@@ -26,6 +45,7 @@ import org.hibernate.Session;
 import org.hibernate.Transaction;
 import org.openimmunizationsoftware.dqa.db.model.IssueAction;
 import org.openimmunizationsoftware.dqa.db.model.IssueFound;
+import org.openimmunizationsoftware.dqa.db.model.KeyedSetting;
 import org.openimmunizationsoftware.dqa.db.model.MessageBatch;
 import org.openimmunizationsoftware.dqa.db.model.MessageReceived;
 import org.openimmunizationsoftware.dqa.db.model.PotentialIssue;
@@ -39,11 +59,16 @@ import org.openimmunizationsoftware.dqa.db.model.VaccineMvx;
 import org.openimmunizationsoftware.dqa.db.model.VaccineProduct;
 import org.openimmunizationsoftware.dqa.db.model.received.Patient;
 import org.openimmunizationsoftware.dqa.db.model.received.Vaccination;
+import org.openimmunizationsoftware.dqa.manager.KeyedSettingManager;
+import org.openimmunizationsoftware.dqa.manager.VaccineProductManager;
 
 public class AnalysisReport extends QualityReport
 {
+  private static final int MESSAGE_CHUNK_SIZE = 500;
+  private static final int PAGES_PENDING_PER_THREAD = 4;
 
   private File analysisDir = null;
+  private ZipOutputStream zipOut = null;
   private File analysisFile = null;
   private Submission submission = null;
   private String prefix = null;
@@ -60,7 +85,12 @@ public class AnalysisReport extends QualityReport
   public AnalysisReport(QualityCollector qualityCollector, Session session, SubmitterProfile profile, File analysisDir) {
     super(qualityCollector, profile, session, null);
     this.analysisDir = analysisDir;
-    if (!analysisDir.exists())
+    if (KeyedSettingManager.getKeyedSettingManager().getKeyedValueBoolean(KeyedSetting.ANALYSIS_REPORT_ZIP_ENABLED, false))
+    {
+      // The whole analysis goes into a single zip next to where the directory
+      // would have been, rather than one file per message
+      analysisFile = new File(analysisDir.getPath() + ".zip");
+    } else if (!analysisDir.exists())
     {
       analysisDir.mkdir();
     }
@@ -74,7 +104,13 @@ public class AnalysisReport extends QualityReport
 
   public void printReport() throws IOException
   {
-    if (analysisDir != null)
+    File reportFile = null;
+    if (analysisDir != null && analysisFile != null)
+    {
+      zipOut = new ZipOutputStream(new BufferedOutputStream(new FileOutputStream(analysisFile)));
+      reportFile = File.createTempFile("analysis", ".html");
+      out = new PrintWriter(reportFile);
+    } else if (analysisDir != null)
     {
       out = new PrintWriter(new File(analysisDir, "Analysis Report.html"));
     } else
@@ -98,6 +134,23 @@ public class AnalysisReport extends QualityReport
     }
     printFoot(out);
     out.close();
+    if (zipOut != null)
+    {
+      zipOut.putNextEntry(new ZipEntry("Analysis Report.html"));
+      FileInputStream reportIn = new FileInputStream(reportFile);
+      try
+      {
+        FileChannel reportChannel = reportIn.getChannel();
+        reportChannel.transferTo(0, reportChannel.size(), Channels.newChannel(zipOut));
+      } finally
+      {
+        reportIn.close();
+      }
+      zipOut.closeEntry();
+      zipOut.close();
+      zipOut = null;
+      reportFile.delete();
+    }
   }
 
   public static void printFoot(PrintWriter printWriter)
@@ -117,6 +170,20 @@ public class AnalysisReport extends QualityReport
   }
 
   private void printMessagesReceived(MessageBatch messageBatch) throws IOException
+  {
+    int threads = KeyedSettingManager.getKeyedSettingManager().getKeyedValueInt(KeyedSetting.ANALYSIS_REPORT_THREADS, 4);
+    MessagePageWriter messagePageWriter = new MessagePageWriter(threads);
+    try
+    {
+      printMessagesReceived(messageBatch, messagePageWriter);
+      messagePageWriter.finish();
+    } finally
+    {
+      messagePageWriter.close();
+    }
+  }
+
+  private void printMessagesReceived(MessageBatch messageBatch, MessagePageWriter messagePageWriter) throws IOException
   {
 
     out.println("    <h2>Messages Received</h2>");
@@ -134,101 +201,149 @@ public class AnalysisReport extends QualityReport
     out.println("      </tr>");
     SimpleDateFormat sdf = new SimpleDateFormat("MM/dd/yyyy");
     int count = 0;
-    Query query = session.createQuery("from ReceiveQueue where messageBatch = ? order by messageReceived.receivedId");
-    query.setParameter(0, qualityCollector.getMessageBatch());
-    List<ReceiveQueue> receiveQueueList = query.list();
-    for (ReceiveQueue receiveQueue : receiveQueueList)
-    {
-      count++;
-      MessageReceived messageReceived = receiveQueue.getMessageReceived();
-      messageReceived.setInternalTemporaryId(count);
-      String messageName = "Message " + count + " " + messageReceived.getIssueAction().getActionLabelForMessageReceivedPastTense() + "";
-
-      query = session.createQuery("from Vaccination where messageReceived = ?");
-      query.setParameter(0, messageReceived);
-      List<Vaccination> vaccinationList = query.list();
-      messageReceived.setVaccinations(vaccinationList);
-      query = session.createQuery("from Patient where messageReceived = ?");
-      query.setParameter(0, messageReceived);
-      List<Patient> patientList = query.list();
-      Patient patient = null;
-      if (patientList.size() > 0)
-      {
-        patient = patientList.get(0);
-        messageReceived.setPatient(patient);
-      }
-
-      String link = "<a class=\"tooltip\" href=\"" + messageName + ".html\">";
-      out.println("      <tr>");
-      out.println("        <td>" + link + count + "</a></td>");
-      out.println("        <td>" + link + messageReceived.getMessageKey() + "</a></td>");
-      if (patient == null)
-      {
-        out.println("        <td>&nbsp;</td>");
-        out.println("        <td>&nbsp;</td>");
-      } else
-      {
-        out.println("        <td>" + link + patient.getNameLast() + ", " + patient.getNameFirst() + "</a></td>");
-        if (patient.getBirthDate() != null)
-        {
-          out.println("        <td>" + link + sdf.format(patient.getBirthDate()) + "</a></td>");
-        } else
-        {
-          out.println("        <td>&nbsp;</td>");
-        }
+    long lastReceivedId = 0;
+    boolean moreMessages = true;
+    while (moreMessages)
+    {
+      // Read the batch a chunk at a time, picking up after the last message
+      // seen, so only one chunk of messages and children is held at once
+      Query query = session.createQuery("from ReceiveQueue rq join fetch rq.messageReceived mr "
+          + "where rq.messageBatch = ? and mr.receivedId > ? order by mr.receivedId");
+      query.setParameter(0, qualityCollector.getMessageBatch());
+      query.setLong(1, lastReceivedId);
+      query.setMaxResults(MESSAGE_CHUNK_SIZE);
+      List<ReceiveQueue> receiveQueueList = query.list();
+      moreMessages = receiveQueueList.size() == MESSAGE_CHUNK_SIZE;
+      if (receiveQueueList.size() == 0)
+      {
+        break;
       }
-      if (messageReceived.getIssueAction().equals(IssueAction.ERROR))
+      List<MessageReceived> messageReceivedList = new ArrayList<MessageReceived>(receiveQueueList.size());
+      for (ReceiveQueue receiveQueue : receiveQueueList)
       {
-        out.println("        <td><span class=\"problem\">" + messageReceived.getIssueAction().getActionLabel() + "</span></td>");
-      } else
+        messageReceivedList.add(receiveQueue.getMessageReceived());
+      }
+      Map<Long, List<Vaccination>> vaccinationMap = new HashMap<Long, List<Vaccination>>();
+      for (Object o : loadChildren("from Vaccination where messageReceived in (:messages) order by vaccinationId", messageReceivedList))
       {
-        out.println("        <td>" + link + messageReceived.getIssueAction().getActionLabel() + "</a></td>");
+        Vaccination vaccination = (Vaccination) o;
+        getChildList(vaccinationMap, vaccination.getMessageReceived()).add(vaccination);
       }
-      int adminCount = 0;
-      int histCount = 0;
-      int delCount = 0;
-      int nonAdminCount = 0;
-      if (vaccinationList != null)
+      Map<Long, List<Patient>> patientMap = new HashMap<Long, List<Patient>>();
+      for (Object o : loadChildren("from Patient where messageReceived in (:messages) order by patientId", messageReceivedList))
       {
-        for (Vaccination vaccination : vaccinationList)
+        Patient patient = (Patient) o;
+        getChildList(patientMap, patient.getMessageReceived()).add(patient);
+      }
+      Map<Long, List<IssueFound>> issueFoundMap = new HashMap<Long, List<IssueFound>>();
+      for (Object o : loadChildren("from IssueFound where messageReceived in (:messages) order by positionId", messageReceivedList))
+      {
+        IssueFound issueFound = (IssueFound) o;
+        getChildList(issueFoundMap, issueFound.getMessageReceived()).add(issueFound);
+      }
+
+      for (ReceiveQueue receiveQueue : receiveQueueList)
+      {
+        count++;
+        MessageReceived messageReceived = receiveQueue.getMessageReceived();
+        messageReceived.setInternalTemporaryId(count);
+        String messageName = "Message " + count + " " + messageReceived.getIssueAction().getActionLabelForMessageReceivedPastTense() + "";
+
+        List<Vaccination> vaccinationList = getChildList(vaccinationMap, messageReceived);
+        messageReceived.setVaccinations(vaccinationList);
+        List<Patient> patientList = getChildList(patientMap, messageReceived);
+        Patient patient = null;
+        if (patientList.size() > 0)
         {
-          if (vaccination.isActionDelete())
-          {
-            delCount++;
-          } else if (vaccination.isCompletionNotAdministered() || vaccination.isCompletionPartiallyAdministered()
-              || vaccination.isCompletionRefused())
-          {
-            nonAdminCount++;
-          } else if (vaccination.isInformationSourceAdmin())
+          patient = patientList.get(0);
+          messageReceived.setPatient(patient);
+        }
+
+        String link = "<a class=\"tooltip\" href=\"" + messageName + ".html\">";
+        out.println("      <tr>");
+        out.println("        <td>" + link + count + "</a></td>");
+        out.println("        <td>" + link + messageReceived.getMessageKey() + "</a></td>");
+        if (patient == null)
+        {
+          out.println("        <td>&nbsp;</td>");
+          out.println("        <td>&nbsp;</td>");
+        } else
+        {
+          out.println("        <td>" + link + patient.getNameLast() + ", " + patient.getNameFirst() + "</a></td>");
+          if (patient.getBirthDate() != null)
           {
-            adminCount++;
+            out.println("        <td>" + link + sdf.format(patient.getBirthDate()) + "</a></td>");
           } else
           {
-            histCount++;
+            out.println("        <td>&nbsp;</td>");
           }
         }
+        if (messageReceived.getIssueAction().equals(IssueAction.ERROR))
+        {
+          out.println("        <td><span class=\"problem\">" + messageReceived.getIssueAction().getActionLabel() + "</span></td>");
+        } else
+        {
+          out.println("        <td>" + link + messageReceived.getIssueAction().getActionLabel() + "</a></td>");
+        }
+        int adminCount = 0;
+        int histCount = 0;
+        int delCount = 0;
+        int nonAdminCount = 0;
+        if (vaccinationList != null)
+        {
+          for (Vaccination vaccination : vaccinationList)
+          {
+            if (vaccination.isActionDelete())
+            {
+              delCount++;
+            } else if (vaccination.isCompletionNotAdministered() || vaccination.isCompletionPartiallyAdministered()
+                || vaccination.isCompletionRefused())
+            {
+              nonAdminCount++;
+            } else if (vaccination.isInformationSourceAdmin())
+            {
+              adminCount++;
+            } else
+            {
+              histCount++;
+            }
+          }
+        }
+        out.println("        <td align=\"center\">" + adminCount + "</td>");
+        out.println("        <td align=\"center\">" + histCount + "</td>");
+        out.println("        <td align=\"center\">" + delCount + "</td>");
+        out.println("        <td align=\"center\">" + nonAdminCount + "</td>");
+        out.println("      </tr>");
+
+        if (messageReceivedError == null && messageReceived.getIssueAction().equals(IssueAction.ERROR))
+        {
+          messageReceivedError = messageReceived;
+        } else if (messageReceivedWarn == null && messageReceived.getIssueAction().equals(IssueAction.WARN))
+        {
+          messageReceivedWarn = messageReceived;
+        } else if (messageReceivedAccept == null && messageReceived.getIssueAction().equals(IssueAction.ACCEPT))
+        {
+          messageReceivedAccept = messageReceived;
+        } else if (messageReceivedSkip == null && messageReceived.getIssueAction().equals(IssueAction.SKIP))
+        {
+          messageReceivedSkip = messageReceived;
+        }
+
+        messagePageWriter.add(prepareMessagePage(messageBatch, messageReceived, messageName, getChildList(issueFoundMap, messageReceived)));
       }
-      out.println("        <td align=\"center\">" + adminCount + "</td>");
-      out.println("        <td align=\"center\">" + histCount + "</td>");
-      out.println("        <td align=\"center\">" + delCount + "</td>");
-      out.println("        <td align=\"center\">" + nonAdminCount + "</td>");
-      out.println("      </tr>");
+      lastReceivedId = messageReceivedList.get(messageReceivedList.size() - 1).getReceivedId();
 
-      if (messageReceivedError == null && messageReceived.getIssueAction().equals(IssueAction.ERROR))
-      {
-        messageReceivedError = messageReceived;
-      } else if (messageReceivedWarn == null && messageReceived.getIssueAction().equals(IssueAction.WARN))
+      // Nothing from this chunk is needed again (apart from the few example
+      // messages already fully loaded), so let go of it before the next one
+      for (ReceiveQueue receiveQueue : receiveQueueList)
       {
-        messageReceivedWarn = messageReceived;
-      } else if (messageReceivedAccept == null && messageReceived.getIssueAction().equals(IssueAction.ACCEPT))
-      {
-        messageReceivedAccept = messageReceived;
-      } else if (messageReceivedSkip == null && messageReceived.getIssueAction().equals(IssueAction.SKIP))
-      {
-        messageReceivedSkip = messageReceived;
+        MessageReceived messageReceived = receiveQueue.getMessageReceived();
+        evictAll(messageReceived.getVaccinations());
+        evictAll(getChildList(patientMap, messageReceived));
+        evictAll(getChildList(issueFoundMap, messageReceived));
+        session.evict(messageReceived);
+        session.evict(receiveQueue);
       }
-
-      printMessageReceived(messageBatch, count, receiveQueue.getMessageReceived(), messageName);
     }
     out.println("    </table>");
 
@@ -282,8 +397,287 @@ public class AnalysisReport extends QualityReport
   private ToolTip RELEVANT_CODES_STATUS = new ToolTip("Status",
       "Status of received code in context of adminstered date and patient birth date (if applicable)");
 
+  private List<?> loadChildren(String hql, List<MessageReceived> messageReceivedList)
+  {
+    Query query = session.createQuery(hql);
+    query.setParameterList("messages", messageReceivedList);
+    return query.list();
+  }
+
+  private static <T> List<T> getChildList(Map<Long, List<T>> childMap, MessageReceived messageReceived)
+  {
+    List<T> childList = childMap.get(messageReceived.getReceivedId());
+    if (childList == null)
+    {
+      childList = new ArrayList<T>();
+      childMap.put(messageReceived.getReceivedId(), childList);
+    }
+    return childList;
+  }
+
+  private void evictAll(List<?> entityList)
+  {
+    if (entityList != null)
+    {
+      for (Object entity : entityList)
+      {
+        session.evict(entity);
+      }
+    }
+  }
+
   public void printMessageReceived(MessageBatch messageBatch, int count, MessageReceived messageReceived, String messageName) throws IOException
   {
+    Query query = session.createQuery("from IssueFound where messageReceived = ? order by positionId");
+    query.setParameter(0, messageReceived);
+    List<IssueFound> issueFoundList = query.list();
+    printMessageReceived(messageBatch, count, messageReceived, messageName, issueFoundList);
+  }
+
+  public void printMessageReceived(MessageBatch messageBatch, int count, MessageReceived messageReceived, String messageName,
+      List<IssueFound> issueFoundList) throws IOException
+  {
+    MessagePage messagePage = prepareMessagePage(messageBatch, messageReceived, messageName, issueFoundList);
+    storeMessagePage(renderAndWrite(messagePage));
+  }
+
+  /**
+   * Everything needed to render one message page. It is gathered on the report
+   * thread, where the session is, so the page itself can be rendered and
+   * written on a worker thread.
+   */
+  private static class MessagePage
+  {
+    private String messageName = "";
+    private MessageReceived messageReceived = null;
+    private List<IssueFound> issueFoundList = null;
+    private Map<PotentialIssue, IssueAction> potentialIssueActionMap = null;
+    private Map<Vaccination, VaccineCvx> vaccineCvxByAgeMap = new HashMap<Vaccination, VaccineCvx>();
+    private Map<Vaccination, List<VaccineCpt>> vaccineCptMap = new HashMap<Vaccination, List<VaccineCpt>>();
+    private Map<Vaccination, VaccineMvx> vaccineMvxMap = new HashMap<Vaccination, VaccineMvx>();
+    private Map<Vaccination, List<VaccineProduct>> vaccineProductMap = new HashMap<Vaccination, List<VaccineProduct>>();
+    private String content = null;
+  }
+
+  private MessagePage prepareMessagePage(MessageBatch messageBatch, MessageReceived messageReceived, String messageName,
+      List<IssueFound> issueFoundList)
+  {
+    MessagePage messagePage = new MessagePage();
+    messagePage.messageName = messageName;
+    messagePage.messageReceived = messageReceived;
+    messagePage.issueFoundList = issueFoundList;
+    Hibernate.initialize(messageReceived.getIssueAction());
+
+    Set<PotentialIssue> potentialIssueFoundSet = new HashSet<PotentialIssue>();
+    for (IssueFound issueFound : issueFoundList)
+    {
+      Hibernate.initialize(issueFound.getIssueAction());
+      Hibernate.initialize(issueFound.getIssue());
+      Hibernate.initialize(issueFound.getCodeReceived());
+      if (issueFound.getIssueAction().equals(IssueAction.ERROR) || issueFound.getIssueAction().equals(IssueAction.WARN)
+          || issueFound.getIssueAction().equals(IssueAction.SKIP))
+      {
+        potentialIssueFoundSet.add(issueFound.getIssue());
+        addIssue(messageReceived, issueFound);
+      }
+    }
+    initDocumentation(messageBatch);
+    messagePage.potentialIssueActionMap = getPotentialIssueActionMap(potentialIssueFoundSet);
+
+    if (messageReceived.getVaccinations() != null)
+    {
+      VaccineProductManager vaccineProductManager = VaccineProductManager.getVaccineProductManager();
+      for (Vaccination vaccination : messageReceived.getVaccinations())
+      {
+        if (!vaccination.getAdminCvxCode().equals("") && vaccination.getAdminDate() != null)
+        {
+          VaccineCvx vaccineCvx = null;
+          try
+          {
+            int cvxId = Integer.parseInt(vaccination.getAdminCvxCode());
+            vaccineCvx = (VaccineCvx) session.get(VaccineCvx.class, cvxId);
+          } catch (NumberFormatException nfe)
+          {
+            // ignore
+          }
+          if (vaccination.getVaccineCvx() == null && vaccineCvx != null)
+          {
+            vaccination.setVaccineCvx(vaccineCvx);
+          }
+          if (vaccineCvx != null)
+          {
+            messagePage.vaccineCvxByAgeMap.put(vaccination, vaccineCvx);
+          }
+        }
+        if (!vaccination.getAdminCptCode().equals("") && vaccination.getAdminDate() != null)
+        {
+          messagePage.vaccineCptMap.put(vaccination, vaccineProductManager.getVaccineCpts(vaccination.getAdminCptCode()));
+        }
+        if (!vaccination.getManufacturerCode().equals("") && vaccination.getAdminDate() != null)
+        {
+          messagePage.vaccineMvxMap.put(vaccination, (VaccineMvx) session.get(VaccineMvx.class, vaccination.getManufacturerCode()));
+        }
+        if (vaccination.getAdminDate() != null && vaccination.getVaccineCvx() != null)
+        {
+          messagePage.vaccineProductMap.put(vaccination, vaccineProductManager.getVaccineProducts(vaccination.getVaccineCvx()));
+        }
+      }
+    }
+    return messagePage;
+  }
+
+  /**
+   * Renders the page and, when writing to the analysis directory, writes it
+   * out as well. Otherwise the content is left on the page for the report
+   * thread to store. Safe to call from a worker thread.
+   */
+  private MessagePage renderAndWrite(MessagePage messagePage) throws IOException
+  {
+    messagePage.content = renderMessagePage(messagePage);
+    if (analysisDir != null && zipOut == null)
+    {
+      writeFile(new File(analysisDir, messagePage.messageName + ".html"), messagePage.content);
+      messagePage.content = null;
+    }
+    return messagePage;
+  }
+
+  /**
+   * Renders message pages on a small pool of worker threads while the report
+   * thread goes on to the next message. Pages are stored back on the report
+   * thread in the order they were added, and only a few pages per thread are
+   * allowed to be waiting at once.
+   */
+  private class MessagePageWriter
+  {
+    private ExecutorService executor = null;
+    private int pendingLimit = 0;
+    private LinkedList<Future<MessagePage>> pendingList = new LinkedList<Future<MessagePage>>();
+
+    public MessagePageWriter(int threads) {
+      if (threads > 1)
+      {
+        pendingLimit = threads * PAGES_PENDING_PER_THREAD;
+        executor = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+          private int count = 0;
+
+          public synchronized Thread newThread(Runnable runnable)
+          {
+            count++;
+            Thread thread = new Thread(runnable, "DQA Analysis Report " + count);
+            thread.setDaemon(true);
+            return thread;
+          }
+        });
+      }
+    }
+
+    public void add(final MessagePage messagePage) throws IOException
+    {
+      if (executor == null)
+      {
+        storeMessagePage(renderAndWrite(messagePage));
+        return;
+      }
+      pendingList.add(executor.submit(new Callable<MessagePage>() {
+        public MessagePage call() throws Exception
+        {
+          return renderAndWrite(messagePage);
+        }
+      }));
+      while (pendingList.size() >= pendingLimit)
+      {
+        storeNext();
+      }
+    }
+
+    public void finish() throws IOException
+    {
+      while (!pendingList.isEmpty())
+      {
+        storeNext();
+      }
+    }
+
+    public void close()
+    {
+      if (executor != null)
+      {
+        executor.shutdownNow();
+      }
+    }
+
+    private void storeNext() throws IOException
+    {
+      MessagePage messagePage;
+      try
+      {
+        messagePage = pendingList.removeFirst().get();
+      } catch (InterruptedException ie)
+      {
+        Thread.currentThread().interrupt();
+        throw new IOException("Interrupted while waiting for message page to be written");
+      } catch (ExecutionException ee)
+      {
+        if (ee.getCause() instanceof IOException)
+        {
+          throw (IOException) ee.getCause();
+        } else if (ee.getCause() instanceof RuntimeException)
+        {
+          throw (RuntimeException) ee.getCause();
+        }
+        throw new IOException("Unable to write message page: " + ee.getCause());
+      }
+      storeMessagePage(messagePage);
+    }
+  }
+
+  private void storeMessagePage(MessagePage messagePage) throws IOException
+  {
+    if (messagePage.content == null)
+    {
+      return;
+    }
+    if (zipOut != null)
+    {
+      zipOut.putNextEntry(new ZipEntry(messagePage.messageName + ".html"));
+      zipOut.write(messagePage.content.getBytes());
+      zipOut.closeEntry();
+    } else
+    {
+      Transaction transaction = session.beginTransaction();
+      SubmissionAnalysis submissionAnalysis = new SubmissionAnalysis();
+      submissionAnalysis.setSubmission(submission);
+      submissionAnalysis.setAnalysisLabel(messagePage.messageName);
+      submissionAnalysis.setMessageReceived(messagePage.messageReceived);
+      submissionAnalysis.setAnalysisContent(Hibernate.createClob(messagePage.content, session));
+      session.save(submissionAnalysis);
+      transaction.commit();
+    }
+  }
+
+  private static void writeFile(File file, String content) throws IOException
+  {
+    FileOutputStream fileOut = new FileOutputStream(file);
+    try
+    {
+      // Encode the whole page up front so it goes out in a single write
+      ByteBuffer buffer = Charset.defaultCharset().encode(content);
+      FileChannel channel = fileOut.getChannel();
+      while (buffer.hasRemaining())
+      {
+        channel.write(buffer);
+      }
+    } finally
+    {
+      fileOut.close();
+    }
+  }
+
+  private String renderMessagePage(MessagePage messagePage)
+  {
+    MessageReceived messageReceived = messagePage.messageReceived;
+    List<IssueFound> issueFoundList = messagePage.issueFoundList;
     SimpleDateFormat sdf = new SimpleDateFormat("MM/dd/yyyy");
     Date wayOffIntoFuture = null;
     try
@@ -294,18 +688,9 @@ public class AnalysisReport extends QualityReport
       throw new NullPointerException("Unexpected parse exception");
     }
 
-    File file = null;
-    PrintWriter messageOut;
-    if (analysisDir != null)
-    {
-      messageOut = new PrintWriter(new File(analysisDir, messageName + ".html"));
-    } else
-    {
-      file = File.createTempFile(prefix, messageName + ".html");
-      messageOut = new PrintWriter(file);
-    }
-    printHead(messageOut, messageName);
-    Query query;
+    StringWriter stringWriter = new StringWriter();
+    PrintWriter messageOut = new PrintWriter(stringWriter);
+    printHead(messageOut, messagePage.messageName);
     String messageName1 = "Message " + messageReceived.getInternalTemporaryId() + " "
         + messageReceived.getIssueAction().getActionLabelForMessageReceivedPastTense() + "";
     messageOut.println("<h2>" + messageName1 + "</h2>");
@@ -322,16 +707,10 @@ public class AnalysisReport extends QualityReport
     messageOut.println("        <th>Position</th>");
     messageOut.println("        <th>Value</th>");
     messageOut.println("      </tr>");
-    Set<PotentialIssue> potentialIssueFoundSet = new HashSet<PotentialIssue>();
-    query = session.createQuery("from IssueFound where messageReceived = ? order by positionId");
-    query.setParameter(0, messageReceived);
-    List<IssueFound> issueFoundList = query.list();
     for (IssueFound issueFound : issueFoundList)
     {
       if (issueFound.getIssueAction().equals(IssueAction.ERROR))
       {
-        potentialIssueFoundSet.add(issueFound.getIssue());
-        addIssue(messageReceived, issueFound);
         printIssue(issueFound, messageOut);
       }
     }
@@ -339,8 +718,6 @@ public class AnalysisReport extends QualityReport
     {
       if (issueFound.getIssueAction().equals(IssueAction.WARN))
       {
-        potentialIssueFoundSet.add(issueFound.getIssue());
-        addIssue(messageReceived, issueFound);
         printIssue(issueFound, messageOut);
       }
     }
@@ -348,8 +725,6 @@ public class AnalysisReport extends QualityReport
     {
       if (issueFound.getIssueAction().equals(IssueAction.SKIP))
       {
-        potentialIssueFoundSet.add(issueFound.getIssue());
-        addIssue(messageReceived, issueFound);
         printIssue(issueFound, messageOut);
       }
     }
@@ -367,18 +742,6 @@ public class AnalysisReport extends QualityReport
         if (!vaccination.getAdminCvxCode().equals("") && vaccination.getAdminDate() != null)
         {
           VaccineCvx vaccineCvx = vaccination.getVaccineCvx();
-          if (vaccineCvx == null)
-          {
-            try
-            {
-              int cvxId = Integer.parseInt(vaccination.getAdminCvxCode());
-              vaccineCvx = (VaccineCvx) session.get(VaccineCvx.class, cvxId);
-              vaccination.setVaccineCvx(vaccineCvx);
-            } catch (NumberFormatException nfe)
-            {
-              // ignore
-            }
-          }
           if (vaccineCvx != null)
           {
             if (!printed)
@@ -457,15 +820,7 @@ public class AnalysisReport extends QualityReport
       {
         if (!vaccination.getAdminCvxCode().equals("") && vaccination.getAdminDate() != null)
         {
-          VaccineCvx vaccineCvx = null;
-          try
-          {
-            int cvxId = Integer.parseInt(vaccination.getAdminCvxCode());
-            vaccineCvx = (VaccineCvx) session.get(VaccineCvx.class, cvxId);
-          } catch (NumberFormatException nfe)
-          {
-            // ignore
-          }
+          VaccineCvx vaccineCvx = messagePage.vaccineCvxByAgeMap.get(vaccination);
           if (vaccineCvx != null)
           {
             if (!printed)
@@ -555,9 +910,7 @@ public class AnalysisReport extends QualityReport
 
         if (!vaccination.getAdminCptCode().equals("") && vaccination.getAdminDate() != null)
         {
-          query = session.createQuery("from VaccineCpt where cptCode = ?");
-          query.setString(0, vaccination.getAdminCptCode());
-          List<VaccineCpt> vaccineCpts = query.list();
+          List<VaccineCpt> vaccineCpts = messagePage.vaccineCptMap.get(vaccination);
           for (VaccineCpt vaccineCpt : vaccineCpts)
           {
             if (!printed)
@@ -657,7 +1010,7 @@ public class AnalysisReport extends QualityReport
             messageOut.println("  </tr>");
             printed = true;
           }
-          VaccineMvx vaccineMvx = (VaccineMvx) session.get(VaccineMvx.class, vaccination.getManufacturerCode());
+          VaccineMvx vaccineMvx = messagePage.vaccineMvxMap.get(vaccination);
 
           messageOut.println("  <tr>");
           messageOut.println("    <td>" + vaccineMvx.getMvxCode() + "</td>");
@@ -717,9 +1070,7 @@ public class AnalysisReport extends QualityReport
       {
         if (vaccination.getAdminDate() != null && vaccination.getVaccineCvx() != null)
         {
-          query = session.createQuery("from VaccineProduct where cvx = ?");
-          query.setParameter(0, vaccination.getVaccineCvx());
-          List<VaccineProduct> vaccineProductList = query.list();
+          List<VaccineProduct> vaccineProductList = messagePage.vaccineProductMap.get(vaccination);
           for (VaccineProduct vaccineProduct : vaccineProductList)
           {
             if (!printed)
@@ -799,9 +1150,7 @@ public class AnalysisReport extends QualityReport
       {
         if (vaccination.getAdminDate() != null && vaccination.getVaccineCvx() != null)
         {
-          query = session.createQuery("from VaccineProduct where cvx = ?");
-          query.setParameter(0, vaccination.getVaccineCvx());
-          List<VaccineProduct> vaccineProductList = query.list();
+          List<VaccineProduct> vaccineProductList = messagePage.vaccineProductMap.get(vaccination);
           for (VaccineProduct vaccineProduct : vaccineProductList)
           {
             if (!printed)
@@ -844,26 +1193,11 @@ public class AnalysisReport extends QualityReport
       printed = false;
     }
 
-    printDocumentation(messageBatch, potentialIssueFoundSet, messageOut);
+    printDocumentation(messagePage.potentialIssueActionMap, messageOut);
 
     printFoot(messageOut);
     messageOut.close();
-    
-    if (analysisDir == null)
-    {
-      Transaction transaction = session.beginTransaction();
-      SubmissionAnalysis submissionAnalysis = new SubmissionAnalysis();
-      submissionAnalysis.setSubmission(submission);
-      submissionAnalysis.setAnalysisLabel(messageName);
-      submissionAnalysis.setMessageReceived(messageReceived);
-      session.save(submissionAnalysis);
-      session.flush();
-      FileReader fileReader = new FileReader(file);
-      submissionAnalysis.setAnalysisContent(Hibernate.createClob(fileReader, file.length(), session));
-      session.update(submissionAnalysis);
-      transaction.commit();
-      fileReader.close();
-    }
+    return stringWriter.toString();
   }
 
   public void printMessageText(MessageReceived messageReceived, PrintWriter messageOut)
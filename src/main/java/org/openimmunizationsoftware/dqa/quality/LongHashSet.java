@@ -0,0 +1,170 @@
+/*
+ * Copyright 2013 by Dandelion Software & Research, Inc (DSR)
+ * 
+ * This application was written for immunization information system (IIS) community and has
+ * been released by DSR under an Apache 2 License with the hope that this software will be used
+ * to improve Public Health.  
+ */
+package org.openimmunizationsoftware.dqa.quality;
+
+/**
+ * Set of primitive long values using open addressing, so each value costs 8 to
+ * 16 bytes instead of a String and a hash set entry. Used to track ids seen in
+ * a batch by their 64-bit hash. Also provides the hash functions used to build
+ * those ids from their parts without creating Strings.
+ */
+public class LongHashSet
+{
+  /**
+   * Starting value for {@link #hash(long, String)} and
+   * {@link #hash(long, long)}.
+   */
+  public static final long HASH_START = 0xcbf29ce484222325L;
+
+  private static final long FNV_PRIME = 0x100000001b3L;
+  private static final int MIN_CAPACITY = 16;
+
+  private long[] table;
+  private int size = 0;
+  private boolean containsZero = false;
+
+  public LongHashSet() {
+    table = new long[MIN_CAPACITY];
+  }
+
+  /**
+   * Continues a 64-bit FNV-1a hash with the characters of the text, null is
+   * hashed differently than an empty string.
+   */
+  public static long hash(long hash, String text)
+  {
+    if (text == null)
+    {
+      return hash(hash, -1L);
+    }
+    for (int i = 0; i < text.length(); i++)
+    {
+      char c = text.charAt(i);
+      hash ^= (c & 0xff);
+      hash *= FNV_PRIME;
+      hash ^= (c >>> 8);
+      hash *= FNV_PRIME;
+    }
+    // mark the end so "ab" + "c" and "a" + "bc" differ
+    hash ^= 0xff;
+    hash *= FNV_PRIME;
+    return hash;
+  }
+
+  /**
+   * Continues a 64-bit FNV-1a hash with the eight bytes of the value.
+   */
+  public static long hash(long hash, long value)
+  {
+    for (int i = 0; i < 8; i++)
+    {
+      hash ^= (value & 0xff);
+      hash *= FNV_PRIME;
+      value >>>= 8;
+    }
+    return hash;
+  }
+
+  /**
+   * Adds the value, returns true if it was not already in the set.
+   */
+  public boolean add(long value)
+  {
+    if (value == 0)
+    {
+      if (containsZero)
+      {
+        return false;
+      }
+      containsZero = true;
+      size++;
+      return true;
+    }
+    int pos = slot(value, table.length);
+    while (table[pos] != 0)
+    {
+      if (table[pos] == value)
+      {
+        return false;
+      }
+      pos = (pos + 1) & (table.length - 1);
+    }
+    table[pos] = value;
+    size++;
+    if (size * 2 > table.length)
+    {
+      resize(table.length * 2);
+    }
+    return true;
+  }
+
+  public boolean contains(long value)
+  {
+    if (value == 0)
+    {
+      return containsZero;
+    }
+    int pos = slot(value, table.length);
+    while (table[pos] != 0)
+    {
+      if (table[pos] == value)
+      {
+        return true;
+      }
+      pos = (pos + 1) & (table.length - 1);
+    }
+    return false;
+  }
+
+  public void addAll(LongHashSet other)
+  {
+    if (other.containsZero)
+    {
+      add(0);
+    }
+    for (long value : other.table)
+    {
+      if (value != 0)
+      {
+        add(value);
+      }
+    }
+  }
+
+  public int size()
+  {
+    return size;
+  }
+
+  private void resize(int capacity)
+  {
+    long[] oldTable = table;
+    table = new long[capacity];
+    for (long value : oldTable)
+    {
+      if (value != 0)
+      {
+        int pos = slot(value, capacity);
+        while (table[pos] != 0)
+        {
+          pos = (pos + 1) & (capacity - 1);
+        }
+        table[pos] = value;
+      }
+    }
+  }
+
+  private static int slot(long value, int capacity)
+  {
+    // spread the bits so sequential values do not cluster
+    value ^= value >>> 33;
+    value *= 0xff51afd7ed558ccdL;
+    value ^= value >>> 33;
+    return (int) value & (capacity - 1);
+  }
+}
@@ -14,7 +14,10 @@ import java.util.HashSet;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicIntegerArray;
 
+import org.openimmunizationsoftware.dqa.db.model.BatchActions;
 import org.openimmunizationsoftware.dqa.db.model.BatchCodeReceived;
 import org.openimmunizationsoftware.dqa.db.model.BatchIssues;
 import org.openimmunizationsoftware.dqa.db.model.BatchReport;
@@ -29,17 +32,24 @@ import org.openimmunizationsoftware.dqa.db.model.PotentialIssue;
 import org.openimmunizationsoftware.dqa.db.model.PotentialIssueStatus;
 import org.openimmunizationsoftware.dqa.db.model.SubmitterProfile;
 import org.openimmunizationsoftware.dqa.db.model.VaccineCvx;
-import org.openimmunizationsoftware.dqa.db.model.VaccineGroup;
 import org.openimmunizationsoftware.dqa.db.model.received.Vaccination;
-import org.openimmunizationsoftware.dqa.manager.VaccineGroupManager;
+import org.openimmunizationsoftware.dqa.quality.model.CompiledModel;
 import org.openimmunizationsoftware.dqa.quality.model.ModelFactory;
 import org.openimmunizationsoftware.dqa.quality.model.ModelForm;
-import org.openimmunizationsoftware.dqa.quality.model.ModelSection;
 
 public class QualityCollector
 {
-  private Set<String> patientIds = new HashSet<String>();
-  private Set<String> vaccinationIds = new HashSet<String>();
+  private static final long PATIENT_ID = LongHashSet.hash(LongHashSet.HASH_START, "PATIENT");
+  private static final long PATIENT_MESSAGE = LongHashSet.hash(LongHashSet.HASH_START, "MESSAGE#");
+  private static final long VACCINATION_ID = LongHashSet.hash(LongHashSet.HASH_START, "VACCINATION");
+  private static final long VACCINATION_ADMIN = LongHashSet.hash(LongHashSet.HASH_START, "ADMIN");
+  private static final long VACCINATION_POSITION = LongHashSet.hash(LongHashSet.HASH_START, "VACCINATION#");
+
+  private LongHashSet patientIds = new LongHashSet();
+  private LongHashSet vaccinationIds = new LongHashSet();
+  private Set<String> patientIdsExact = null;
+  private Set<String> vaccinationIdsExact = null;
+  private int idHashCollisionCount = 0;
   private MessageBatch messageBatch = null;
   private BatchReport report = null;
   private SubmitterProfile profile = null;
@@ -51,6 +61,11 @@ public class QualityCollector
   private int numeratorVaccinationAdminDateAge = 0;
   private QualityScoring scoring = null;
   private ModelForm modelForm = null;
+  private CompiledModel compiledModel = null;
+  private AtomicIntegerArray scoredIssueCounts = null;
+  private AtomicIntegerArray vaccineGroupCounts = null;
+  private AtomicInteger errorIssueCount = new AtomicInteger();
+  private AtomicInteger warnIssueCount = new AtomicInteger();
   private MessageHeader exampleHeader = null;
 
   public void setExampleHeader(MessageHeader exampleHeader)
@@ -78,6 +93,29 @@ public class QualityCollector
     return batchVaccineCvx.getReceivedCount();
   }
 
+  /**
+   * Patient and vaccination ids are normally tracked only by a 64-bit hash.
+   * When exact verify is on the full ids are also kept so hash collisions can
+   * be counted. Must be set before any messages are registered.
+   */
+  public void setExactVerify(boolean exactVerify)
+  {
+    if (exactVerify)
+    {
+      patientIdsExact = new HashSet<String>();
+      vaccinationIdsExact = new HashSet<String>();
+    } else
+    {
+      patientIdsExact = null;
+      vaccinationIdsExact = null;
+    }
+  }
+
+  public int getIdHashCollisionCount()
+  {
+    return idHashCollisionCount;
+  }
+
   public QualityScoring getCompletenessScoring()
   {
     return scoring;
@@ -91,6 +129,10 @@ public class QualityCollector
   }
 
   public QualityCollector(String title, BatchType batchType, SubmitterProfile profile) {
+    this(title, batchType, profile, ModelFactory.getCompiledModel(profile));
+  }
+
+  QualityCollector(String title, BatchType batchType, SubmitterProfile profile, CompiledModel compiledModel) {
     messageBatch = new MessageBatch();
     messageBatch.setBatchTitle(title);
     messageBatch.setStartDate(new Date());
@@ -98,11 +140,107 @@ public class QualityCollector
     messageBatch.setBatchType(batchType);
     messageBatch.setProfile(profile);
     this.profile = profile;
-    modelForm = ModelFactory.createModelForm(profile);
+    this.compiledModel = compiledModel;
+    modelForm = compiledModel.getModelForm();
+    scoredIssueCounts = new AtomicIntegerArray(compiledModel.getScoredIssueCount());
+    vaccineGroupCounts = new AtomicIntegerArray(compiledModel.getVaccineGroupCount());
     report = messageBatch.getBatchReport();
 
   }
 
+  /**
+   * Creates an empty collector for the same batch that shares this collector's
+   * model. Each thread processing part of a batch should use its own shard and
+   * then {@link #merge(QualityCollector)} it back into this collector.
+   */
+  public QualityCollector createShard()
+  {
+    return new QualityCollector(this);
+  }
+
+  private QualityCollector(QualityCollector parent) {
+    MessageBatch parentBatch = parent.getMessageBatch();
+    messageBatch = new MessageBatch();
+    messageBatch.setBatchTitle(parentBatch.getBatchTitle());
+    messageBatch.setStartDate(parentBatch.getStartDate());
+    messageBatch.setEndDate(parentBatch.getEndDate());
+    messageBatch.setBatchType(parentBatch.getBatchType());
+    messageBatch.setProfile(parentBatch.getProfile());
+    this.profile = parent.profile;
+    modelForm = parent.modelForm;
+    compiledModel = parent.compiledModel;
+    scoredIssueCounts = new AtomicIntegerArray(compiledModel.getScoredIssueCount());
+    vaccineGroupCounts = new AtomicIntegerArray(compiledModel.getVaccineGroupCount());
+    setExactVerify(parent.patientIdsExact != null);
+    report = messageBatch.getBatchReport();
+  }
+
+  /**
+   * Adds everything collected by another collector for the same batch to this
+   * one. Counts are summed, the timeliness numerator is summed so the average
+   * stays exact, and the earliest and latest administered dates are combined.
+   */
+  public synchronized void merge(QualityCollector other)
+  {
+    if (exampleHeader == null)
+    {
+      exampleHeader = other.exampleHeader;
+    }
+    patientIds.addAll(other.patientIds);
+    vaccinationIds.addAll(other.vaccinationIds);
+    if (patientIdsExact != null && other.patientIdsExact != null)
+    {
+      patientIdsExact.addAll(other.patientIdsExact);
+      vaccinationIdsExact.addAll(other.vaccinationIdsExact);
+    }
+    idHashCollisionCount += other.idHashCollisionCount;
+    report.addToCounts(other.report);
+    numeratorVaccinationAdminDateAge += other.numeratorVaccinationAdminDateAge;
+    if (other.vaccinationAdminDateEarliest != null
+        && (vaccinationAdminDateEarliest == null || other.vaccinationAdminDateEarliest
+            .before(vaccinationAdminDateEarliest)))
+    {
+      vaccinationAdminDateEarliest = other.vaccinationAdminDateEarliest;
+    }
+    if (other.vaccinationAdminDateLatest != null
+        && (vaccinationAdminDateLatest == null || other.vaccinationAdminDateLatest.after(vaccinationAdminDateLatest)))
+    {
+      vaccinationAdminDateLatest = other.vaccinationAdminDateLatest;
+    }
+    for (int i = 0; i < scoredIssueCounts.length(); i++)
+    {
+      scoredIssueCounts.addAndGet(i, other.scoredIssueCounts.get(i));
+    }
+    for (int i = 0; i < vaccineGroupCounts.length(); i++)
+    {
+      vaccineGroupCounts.addAndGet(i, other.vaccineGroupCounts.get(i));
+    }
+    errorIssueCount.addAndGet(other.errorIssueCount.get());
+    warnIssueCount.addAndGet(other.warnIssueCount.get());
+    MessageBatch otherBatch = other.getMessageBatch();
+    for (BatchActions batchActions : otherBatch.getBatchActionsMap().values())
+    {
+      messageBatch.getBatchActions(batchActions.getIssueAction()).inc(batchActions);
+    }
+    for (BatchIssues batchIssues : otherBatch.getBatchIssuesMap().values())
+    {
+      messageBatch.getBatchIssues(batchIssues.getIssue()).inc(batchIssues);
+    }
+    for (BatchCodeReceived batchCodeReceived : otherBatch.getBatchCodeReceivedMap().values())
+    {
+      messageBatch.getBatchCodeReceived(batchCodeReceived.getCodeReceived()).inc(batchCodeReceived);
+    }
+    for (BatchVaccineCvx batchVaccineCvx : otherBatch.getBatchVaccineCvxMap().values())
+    {
+      messageBatch.getBatchVaccineCvx(batchVaccineCvx.getVaccineCvx()).inc(batchVaccineCvx);
+    }
+    if (otherBatch.getEndDate() != null
+        && (messageBatch.getEndDate() == null || otherBatch.getEndDate().after(messageBatch.getEndDate())))
+    {
+      messageBatch.setEndDate(otherBatch.getEndDate());
+    }
+  }
+
   public void registerCodeReceived(CodeReceived codeReceived)
   {
     messageBatch.getBatchCodeReceived(codeReceived).incReceivedCount();
@@ -116,14 +254,21 @@ public class QualityCollector
     }
     report.incMessageCount();
     String patientId = messageReceived.getPatient().getIdSubmitter().getNumber();
+    long patientIdHash;
     if (patientId == null || patientId.equals(""))
     {
-      patientId = "MESSAGE#" + report.getMessageCount();
+      patientId = null;
+      patientIdHash = LongHashSet.hash(PATIENT_MESSAGE, report.getMessageCount());
+    } else
+    {
+      patientIdHash = LongHashSet.hash(PATIENT_ID, patientId);
     }
-    if (!patientIds.contains(patientId))
+    boolean patientAdded = patientIds.add(patientIdHash);
+    if (patientIdsExact != null)
     {
-      patientIds.add(patientId);
-    } else
+      verifyExact(patientIdsExact, patientId == null ? "MESSAGE#" + report.getMessageCount() : patientId, patientAdded);
+    }
+    if (!patientAdded)
     {
       // TODO register issue, can't do here, too late
     }
@@ -137,9 +282,30 @@ public class QualityCollector
       }
     }
     messageBatch.incBatchActionCount(messageReceived.getIssueAction());
+    Map<PotentialIssue, PotentialIssueStatus> potentialIssueStatusMap = profile == null ? null : profile
+        .getPotentialIssueStatusMap();
     for (IssueFound issueFound : messageReceived.getIssuesFound())
     {
       messageBatch.incBatchIssueCount(issueFound.getIssue());
+      int issueIndex = compiledModel.getScoredIssueIndex(issueFound.getIssue());
+      if (issueIndex >= 0)
+      {
+        scoredIssueCounts.incrementAndGet(issueIndex);
+      }
+      if (potentialIssueStatusMap != null)
+      {
+        PotentialIssueStatus potentialIssueStatus = potentialIssueStatusMap.get(issueFound.getIssue());
+        if (potentialIssueStatus != null)
+        {
+          if (potentialIssueStatus.getAction().isError())
+          {
+            errorIssueCount.incrementAndGet();
+          } else if (potentialIssueStatus.getAction().isWarn())
+          {
+            warnIssueCount.incrementAndGet();
+          }
+        }
+      }
     }
     report.incNextOfKinCount(messageReceived.getNextOfKins().size());
     int vacPos = 0;
@@ -150,22 +316,43 @@ public class QualityCollector
     {
       vacPos++;
       String vaccinationId = vaccination.getIdSubmitter();
+      long vaccinationIdHash;
       if (vaccinationId == null || vaccinationId.equals(""))
       {
+        vaccinationId = null;
         if (vaccination.getAdminCode() != null && !vaccination.getAdminCode().equals("")
             && vaccination.getAdminDate() != null)
         {
-          vaccinationId = vaccination.getAdminCode() + "-" + vaccination.getAdminDate().getTime();
+          vaccinationIdHash = LongHashSet.hash(LongHashSet.hash(VACCINATION_ADMIN, vaccination.getAdminCode()),
+              vaccination.getAdminDate().getTime());
         } else
         {
-          vaccinationId = "VACCINATION#" + vacPos;
+          vaccinationIdHash = LongHashSet.hash(VACCINATION_POSITION, vacPos);
         }
-        vaccinationId = patientId + "-" + vaccinationId;
+        vaccinationIdHash = LongHashSet.hash(vaccinationIdHash, patientIdHash);
+      } else
+      {
+        vaccinationIdHash = LongHashSet.hash(VACCINATION_ID, vaccinationId);
       }
-      if (!vaccinationIds.contains(vaccinationId))
+      boolean added = vaccinationIds.add(vaccinationIdHash);
+      if (vaccinationIdsExact != null)
       {
-        vaccinationIds.add(vaccinationId);
-      } else
+        if (vaccinationId == null)
+        {
+          if (vaccination.getAdminCode() != null && !vaccination.getAdminCode().equals("")
+              && vaccination.getAdminDate() != null)
+          {
+            vaccinationId = vaccination.getAdminCode() + "-" + vaccination.getAdminDate().getTime();
+          } else
+          {
+            vaccinationId = "VACCINATION#" + vacPos;
+          }
+          vaccinationId = (patientId == null ? "MESSAGE#" + report.getMessageCount() : patientId) + "-"
+              + vaccinationId;
+        }
+        verifyExact(vaccinationIdsExact, vaccinationId, added);
+      }
+      if (!added)
       {
         // TODO register issue
       }
@@ -196,6 +383,14 @@ public class QualityCollector
         if (vaccination.getVaccineCvx() != null)
         {
           messageBatch.getBatchVaccineCvx(vaccination.getVaccineCvx()).incReceivedCount();
+          int[] vaccineGroups = compiledModel.getVaccineCvxGroups(vaccination.getVaccineCvx());
+          if (vaccineGroups != null)
+          {
+            for (int vaccineGroup : vaccineGroups)
+            {
+              vaccineGroupCounts.incrementAndGet(vaccineGroup);
+            }
+          }
         }
       } else
       {
@@ -211,6 +406,7 @@ public class QualityCollector
       if (timelinessGap < Long.MAX_VALUE)
       {
         numeratorVaccinationAdminDateAge += (timelinessGap / AS_THE_DAY_IS_LONG);
+        report.getTimelinessHistogram().record(timelinessGap);
       }
       if (latestAdmin != null)
       {
@@ -223,20 +419,16 @@ public class QualityCollector
           vaccinationAdminDateLatest = latestAdmin;
         }
       }
-      int dayEarly = modelForm.getModelSection("timeliness.early").getDays();
-      int dayOnTime = modelForm.getModelSection("timeliness.onTime").getDays();
-      int dayLate = modelForm.getModelSection("timeliness.late").getDays();
-      int dayVeryLate = modelForm.getModelSection("timeliness.veryLate").getDays();
-      if (timelinessGap < (AS_THE_DAY_IS_LONG * dayEarly))
+      if (timelinessGap < compiledModel.getTimelinessEarly())
       {
         report.incTimelinessCountEarly();
-      } else if (timelinessGap < (AS_THE_DAY_IS_LONG * dayOnTime))
+      } else if (timelinessGap < compiledModel.getTimelinessOnTime())
       {
         report.incTimelinessCountOnTime();
-      } else if (timelinessGap < (AS_THE_DAY_IS_LONG * dayLate))
+      } else if (timelinessGap < compiledModel.getTimelinessLate())
       {
         report.incTimelinessCountLate();
-      } else if (timelinessGap < (AS_THE_DAY_IS_LONG * dayVeryLate))
+      } else if (timelinessGap < compiledModel.getTimelinessVeryLate())
       {
         report.incTimelinessCountVeryLate();
       } else
@@ -246,6 +438,15 @@ public class QualityCollector
     }
   }
 
+  private void verifyExact(Set<String> idsExact, String id, boolean hashAdded)
+  {
+    if (idsExact.add(id) && !hashAdded)
+    {
+      // different id with the same hash as one already seen
+      idHashCollisionCount++;
+    }
+  }
+
   private boolean isUnderage(MessageReceived messageReceived)
   {
     Calendar cal = Calendar.getInstance();
@@ -260,43 +461,37 @@ public class QualityCollector
     scoreTimeliness();
     scoreQuality();
     scoreCompleteness();
-    int overallScore = (int) (modelForm.getWeight("timeliness") * report.getTimelinessScore()
-        + modelForm.getWeight("quality") * report.getQualityScore() + modelForm.getWeight("completeness")
+    int overallScore = (int) (compiledModel.getWeightTimeliness() * report.getTimelinessScore()
+        + compiledModel.getWeightQuality() * report.getQualityScore() + compiledModel.getWeightCompleteness()
         * report.getCompletenessScore() + 0.5);
     report.setOverallScore(overallScore);
   }
 
   private void scoreCompleteness()
   {
-    scoring = new QualityScoring(modelForm);
+    scoring = new QualityScoring(compiledModel);
     Map<PotentialIssue, BatchIssues> batchIssuesMap = messageBatch.getBatchIssuesMap();
-    ScoringSet patientExpected = scoring.getScoringSet(QualityScoring.PATIENT_EXPECTED);
-    ScoringSet patientOptional = scoring.getScoringSet(QualityScoring.PATIENT_OPTIONAL);
-    ScoringSet patientRecommended = scoring.getScoringSet(QualityScoring.PATIENT_RECOMMENDED);
-    ScoringSet patientRequired = scoring.getScoringSet(QualityScoring.PATIENT_REQUIRED);
-    ScoringSet vaccinationExpected = scoring.getScoringSet(QualityScoring.VACCINATION_EXPECTED);
-    ScoringSet vaccinationOptional = scoring.getScoringSet(QualityScoring.VACCINATION_OPTIONAL);
-    ScoringSet vaccinationRecommended = scoring.getScoringSet(QualityScoring.VACCINATION_RECOMMENDED);
-    ScoringSet vaccinationRequired = scoring.getScoringSet(QualityScoring.VACCINATION_REQUIRED);
-
-    score(batchIssuesMap, patientExpected);
-    score(batchIssuesMap, patientOptional);
-    score(batchIssuesMap, patientRecommended);
-    score(batchIssuesMap, patientRequired);
-    score(batchIssuesMap, vaccinationExpected);
-    score(batchIssuesMap, vaccinationOptional);
-    score(batchIssuesMap, vaccinationRecommended);
-    score(batchIssuesMap, vaccinationRequired);
-    double patientScore = patientExpected.getWeightedScore() + patientOptional.getWeightedScore()
-        + patientRecommended.getWeightedScore() + patientRequired.getWeightedScore();
-    double vaccinationScore = vaccinationExpected.getWeightedScore() + vaccinationOptional.getWeightedScore()
-        + vaccinationRecommended.getWeightedScore() + vaccinationRequired.getWeightedScore();
+    ScoringSet[] scoringSets = scoring.getScoringSetArray();
+    double patientScore = 0.0;
+    double vaccinationScore = 0.0;
+    for (int i = 0; i < scoringSets.length; i++)
+    {
+      score(batchIssuesMap, scoringSets[i]);
+      // first half are patient sets, second half vaccination sets
+      if (i < scoringSets.length / 2)
+      {
+        patientScore += scoringSets[i].getWeightedScore();
+      } else
+      {
+        vaccinationScore += scoringSets[i].getWeightedScore();
+      }
+    }
 
     double vaccineGroupScore = scoreVaccineGroupScore();
 
-    int completenessScore = (int) (100.0 * patientScore * modelForm.getWeight("completeness.patient") + 100.0
-        * vaccinationScore * modelForm.getWeight("completeness.vaccination") + 100.0 * vaccineGroupScore
-        * modelForm.getWeight("completeness.vaccineGroup") + 0.5);
+    int completenessScore = (int) (100.0 * patientScore * compiledModel.getWeightCompletenessPatient() + 100.0
+        * vaccinationScore * compiledModel.getWeightCompletenessVaccination() + 100.0 * vaccineGroupScore
+        * compiledModel.getWeightCompletenessVaccineGroup() + 0.5);
     report.setCompletenessPatientScore((int) (patientScore * 100 + 0.5));
     report.setCompletenessVaccinationScore((int) (vaccinationScore * 100 + 0.5));
     report.setCompletenessVaccineGroupScore((int) (vaccineGroupScore * 100 + 0.5));
@@ -305,13 +500,11 @@ public class QualityCollector
 
   private double scoreVaccineGroupScore()
   {
-    VaccineGroupManager vaccineGroupManager = VaccineGroupManager.getVaccineGroupManager();
     double score = 0.0;
-    score = scoreVaccineGroup(vaccineGroupManager, modelForm.getModelSection("completeness.vaccineGroup.expected"));
-    score = score
-        + scoreVaccineGroup(vaccineGroupManager, modelForm.getModelSection("completeness.vaccineGroup.recommended"));
-    score = score
-        + scoreVaccineGroup(vaccineGroupManager, modelForm.getModelSection("completeness.vaccineGroup.unexpected"));
+    for (int i = 0; i < compiledModel.getVaccineGroupSectionCount(); i++)
+    {
+      score = score + scoreVaccineGroup(compiledModel.getVaccineGroupSection(i));
+    }
     if (score < 0)
     {
       score = 0;
@@ -319,23 +512,22 @@ public class QualityCollector
     return score;
   }
 
-  private double scoreVaccineGroup(VaccineGroupManager vaccineGroupManager, ModelSection vgsection)
+  private double scoreVaccineGroup(CompiledModel.VaccineGroupSection vgsection)
   {
+    if (vgsection.getInvalidGroupName() != null)
+    {
+      throw new IllegalArgumentException("Invalid vaccine group name '" + vgsection.getInvalidGroupName() + "'");
+    }
     float score = 0;
     float denominator = 0;
-    for (ModelSection section : vgsection.getSections())
+    for (int i = 0; i < vgsection.getGroupCount(); i++)
     {
-      denominator += section.getWeight();
-      VaccineGroup vaccineGroup = vaccineGroupManager.getVaccineGroup(section.getName());
-      if (vaccineGroup == null)
-      {
-        throw new IllegalArgumentException("Invalid vaccine group name '" + section.getName() + "'");
-      }
-      for (VaccineCvx vaccineCvx : vaccineGroup.getVaccineCvxList())
+      denominator += vgsection.getGroupWeight(i);
+      for (VaccineCvx vaccineCvx : vgsection.getGroupVaccineCvx(i))
       {
         if (getVaccineCvxCount(vaccineCvx) > 0)
         {
-          score += section.getWeight();
+          score += vgsection.getGroupWeight(i);
           break;
         }
       }
@@ -411,33 +603,38 @@ public class QualityCollector
   }
 
   private int getDenominator(CompletenessRow completenessRow)
+  {
+    return getDenominator(completenessRow.getReportDenominator());
+  }
+
+  private int getDenominator(ReportDenominator reportDenominator)
   {
     int denominator = 0;
-    if (completenessRow.getReportDenominator() == ReportDenominator.MESSAGE_COUNT)
+    if (reportDenominator == ReportDenominator.MESSAGE_COUNT)
     {
       denominator = report.getMessageCount();
-    } else if (completenessRow.getReportDenominator() == ReportDenominator.NEXTOFKIN_COUNT)
+    } else if (reportDenominator == ReportDenominator.NEXTOFKIN_COUNT)
     {
       denominator = report.getNextOfKinCount();
-    } else if (completenessRow.getReportDenominator() == ReportDenominator.OBSERVATION_COUNT)
+    } else if (reportDenominator == ReportDenominator.OBSERVATION_COUNT)
     {
       denominator = report.getObservationCount();
-    } else if (completenessRow.getReportDenominator() == ReportDenominator.PATIENT_COUNT)
+    } else if (reportDenominator == ReportDenominator.PATIENT_COUNT)
     {
       denominator = report.getPatientCount();
-    } else if (completenessRow.getReportDenominator() == ReportDenominator.PATIENT_UNDERAGE_COUNT)
+    } else if (reportDenominator == ReportDenominator.PATIENT_UNDERAGE_COUNT)
     {
       denominator = report.getPatientUnderageCount();
-    } else if (completenessRow.getReportDenominator() == ReportDenominator.VACCINATION_COUNT)
+    } else if (reportDenominator == ReportDenominator.VACCINATION_COUNT)
     {
       denominator = report.getVaccinationCount();
-    } else if (completenessRow.getReportDenominator() == ReportDenominator.VACCINATION_ADMIN_COUNT)
+    } else if (reportDenominator == ReportDenominator.VACCINATION_ADMIN_COUNT)
     {
       denominator = report.getVaccinationAdministeredCount();
-    } else if (completenessRow.getReportDenominator() == ReportDenominator.VACCINATION_VIS_COUNT)
+    } else if (reportDenominator == ReportDenominator.VACCINATION_VIS_COUNT)
     {
       denominator = report.getVaccinationVisCount();
-    } else if (completenessRow.getReportDenominator() == ReportDenominator.VACCINATION_REFUSAL_COUNT)
+    } else if (reportDenominator == ReportDenominator.VACCINATION_REFUSAL_COUNT)
     {
       denominator = report.getVaccinationRefusalCount();
     }
@@ -472,36 +669,139 @@ public class QualityCollector
 
     int denominator = report.getMessageCount() + report.getVaccinationCount();
     // If there are more than 10% errors then the score is 0.
-    double denominatorScaled = 0.03 * denominator;
-    double qualityErrorScore;
-    if (errorCount > denominatorScaled)
+    double qualityErrorScore = scoreQualityCount(errorCount, 0.03 * denominator);
+    double qualityWarnScore = scoreQualityCount(warningCount, 0.3 * denominator);
+    report.setQualityWarnScore((int) (100.0 * qualityWarnScore + 0.5));
+    report.setQualityErrorScore((int) (100.0 * qualityErrorScore + 0.5));
+    report.setQualityScore((int) (100.0 * qualityErrorScore * compiledModel.getWeightQualityErrors() + 100.0
+        * qualityWarnScore * compiledModel.getWeightQualityWarnings() + 0.5));
+  }
+
+  private static double scoreQualityCount(int count, double denominatorScaled)
+  {
+    double qualityScore;
+    if (count > denominatorScaled)
     {
-      qualityErrorScore = 0;
+      qualityScore = 0;
     } else
     {
-      qualityErrorScore = 1.0 - (1.0 * errorCount / denominatorScaled);
+      qualityScore = 1.0 - (1.0 * count / denominatorScaled);
     }
-    if (qualityErrorScore < 0)
+    if (qualityScore < 0)
     {
-      qualityErrorScore = 0;
+      qualityScore = 0;
     }
-    denominatorScaled = 0.3 * denominator;
-    double qualityWarnScore;
-    if (warningCount > denominatorScaled)
-    {
-      qualityWarnScore = 0;
-    } else
+    return qualityScore;
+  }
+
+  /**
+   * Calculates the current scores from counts kept as messages are
+   * registered, without changing the batch report. Work is proportional to the
+   * number of completeness rows so it can be called often while messages are
+   * still being registered, from any thread. Counts read while a message is
+   * being registered may be off by that message.
+   */
+  public QualitySnapshot snapshotScore()
+  {
+    QualitySnapshot snapshot = new QualitySnapshot();
+    snapshot.setMessageCount(report.getMessageCount());
+
+    // timeliness, same calculation as scoreTimeliness
+    double scoreEarly = 0;
+    double scoreOnTime = 0;
+    double scoreLate = 0;
+    double scoreVeryLate = 0;
+    int messageWithAdminCount = report.getMessageWithAdminCount();
+    if (messageWithAdminCount > 0)
     {
-      qualityWarnScore = 1.0 - (1.0 * warningCount / denominatorScaled);
+      scoreEarly = report.getTimelinessCountEarly() / messageWithAdminCount;
+      scoreOnTime = report.getTimelinessCountOnTime() / messageWithAdminCount;
+      scoreLate = report.getTimelinessCountLate() / messageWithAdminCount;
+      scoreVeryLate = report.getTimelinessCountVeryLate() / messageWithAdminCount;
     }
-    if (qualityWarnScore < 0)
+    int timeliness = (int) (100.0 * (compiledModel.getWeightTimelinessEarly() * scoreEarly
+        + compiledModel.getWeightTimelinessOnTime() * scoreOnTime + compiledModel.getWeightTimelinessLate() * scoreLate + compiledModel
+        .getWeightTimelinessVeryLate() * scoreVeryLate) + 0.5);
+    timeliness = timeliness > 100 ? 100 : (timeliness < 0 ? 0 : timeliness);
+    snapshot.setTimelinessScore(timeliness);
+
+    // quality, same calculation as scoreQuality
+    int denominator = report.getMessageCount() + report.getVaccinationCount();
+    double qualityErrorScore = scoreQualityCount(errorIssueCount.get(), 0.03 * denominator);
+    double qualityWarnScore = scoreQualityCount(warnIssueCount.get(), 0.3 * denominator);
+    snapshot.setQualityWarnScore((int) (100.0 * qualityWarnScore + 0.5));
+    snapshot.setQualityErrorScore((int) (100.0 * qualityErrorScore + 0.5));
+    snapshot.setQualityScore((int) (100.0 * qualityErrorScore * compiledModel.getWeightQualityErrors() + 100.0
+        * qualityWarnScore * compiledModel.getWeightQualityWarnings() + 0.5));
+
+    // completeness, same calculation as scoreCompleteness
+    double patientScore = 0.0;
+    double vaccinationScore = 0.0;
+    int setCount = CompiledModel.COMPLETENESS_SECTIONS.length;
+    for (int i = 0; i < setCount; i++)
+    {
+      double overallScore = 0.0;
+      double overallWeight = 0;
+      for (int r = compiledModel.getRowStart(i); r < compiledModel.getRowStart(i + 1); r++)
+      {
+        int numerator = scoredIssueCounts.get(compiledModel.getRowIssueIndex(r));
+        int rowDenominator = getDenominator(compiledModel.getRowDenominator(r));
+        if (rowDenominator > 0)
+        {
+          if (compiledModel.isRowInvert(r))
+          {
+            numerator = rowDenominator - (numerator > rowDenominator ? rowDenominator : numerator);
+          }
+          overallScore += compiledModel.getRowWeight(r) * numerator / (double) rowDenominator;
+        }
+        if (compiledModel.getRowWeight(r) > 0)
+        {
+          overallWeight += compiledModel.getRowWeight(r);
+        }
+      }
+      double overallPercent = overallWeight > 0 ? overallScore / overallWeight : 0;
+      overallPercent = overallPercent < 0 ? 0 : (overallPercent > 1 ? 1 : overallPercent);
+      if (i < setCount / 2)
+      {
+        patientScore += overallPercent * compiledModel.getCompletenessSetWeight(i);
+      } else
+      {
+        vaccinationScore += overallPercent * compiledModel.getCompletenessSetWeight(i);
+      }
+    }
+    double vaccineGroupScore = 0.0;
+    for (int i = 0; i < compiledModel.getVaccineGroupSectionCount(); i++)
+    {
+      CompiledModel.VaccineGroupSection vgsection = compiledModel.getVaccineGroupSection(i);
+      float score = 0;
+      float groupDenominator = 0;
+      int start = compiledModel.getVaccineGroupStart(i);
+      for (int g = 0; g < vgsection.getGroupCount(); g++)
+      {
+        groupDenominator += vgsection.getGroupWeight(g);
+        if (vaccineGroupCounts.get(start + g) > 0)
+        {
+          score += vgsection.getGroupWeight(g);
+        }
+      }
+      vaccineGroupScore += (groupDenominator > 0 ? score / groupDenominator : 0) * vgsection.getWeight();
+    }
+    if (vaccineGroupScore < 0)
     {
-      qualityWarnScore = 0;
+      vaccineGroupScore = 0;
     }
-    report.setQualityWarnScore((int) (100.0 * qualityWarnScore + 0.5));
-    report.setQualityErrorScore((int) (100.0 * qualityErrorScore + 0.5));
-    report.setQualityScore((int) (100.0 * qualityErrorScore * modelForm.getWeight("quality.errors") + 100.0
-        * qualityWarnScore * modelForm.getWeight("quality.warnings") + 0.5));
+    int completenessScore = (int) (100.0 * patientScore * compiledModel.getWeightCompletenessPatient() + 100.0
+        * vaccinationScore * compiledModel.getWeightCompletenessVaccination() + 100.0 * vaccineGroupScore
+        * compiledModel.getWeightCompletenessVaccineGroup() + 0.5);
+    snapshot.setCompletenessPatientScore((int) (patientScore * 100 + 0.5));
+    snapshot.setCompletenessVaccinationScore((int) (vaccinationScore * 100 + 0.5));
+    snapshot.setCompletenessVaccineGroupScore((int) (vaccineGroupScore * 100 + 0.5));
+    snapshot.setCompletenessScore(completenessScore);
+
+    snapshot.setOverallScore((int) (compiledModel.getWeightTimeliness() * snapshot.getTimelinessScore()
+        + compiledModel.getWeightQuality() * snapshot.getQualityScore() + compiledModel.getWeightCompleteness()
+        * snapshot.getCompletenessScore() + 0.5));
+    return snapshot;
   }
 
   private void scoreTimeliness()
@@ -520,9 +820,9 @@ public class QualityCollector
       timelinessAverage = numeratorVaccinationAdminDateAge / (double) report.getMessageWithAdminCount();
     }
 
-    int timeliness = (int) (100.0 * (modelForm.getWeight("timeliness.early") * scoreEarly
-        + modelForm.getWeight("timeliness.onTime") * scoreOnTime + modelForm.getWeight("timeliness.late") * scoreLate + modelForm
-        .getWeight("timeliness.veryLate") * scoreVeryLate) + 0.5);
+    int timeliness = (int) (100.0 * (compiledModel.getWeightTimelinessEarly() * scoreEarly
+        + compiledModel.getWeightTimelinessOnTime() * scoreOnTime + compiledModel.getWeightTimelinessLate() * scoreLate + compiledModel
+        .getWeightTimelinessVeryLate() * scoreVeryLate) + 0.5);
     if (timeliness > 100)
     {
       timeliness = 100;
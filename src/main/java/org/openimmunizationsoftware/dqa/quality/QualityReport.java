@@ -31,6 +31,7 @@ import org.openimmunizationsoftware.dqa.db.model.CodeReceived;
 import org.openimmunizationsoftware.dqa.db.model.CodeTable;
 import org.openimmunizationsoftware.dqa.db.model.IssueFound;
 import org.openimmunizationsoftware.dqa.db.model.KeyedSetting;
+import org.openimmunizationsoftware.dqa.db.model.LatencyHistogram;
 import org.openimmunizationsoftware.dqa.db.model.MessageHeader;
 import org.openimmunizationsoftware.dqa.db.model.IssueAction;
 import org.openimmunizationsoftware.dqa.db.model.MessageBatch;
@@ -896,6 +897,16 @@ public class QualityReport
     DecimalFormat df = new DecimalFormat("0.0");
     out.println("        <td>" + df.format(report.getTimelinessAverage()) + "</th>");
     out.println("      </tr>");
+    LatencyHistogram timelinessHistogram = report.getTimelinessHistogram();
+    if (timelinessHistogram.getCount() > 0)
+    {
+      out.println("      <tr>");
+      out.println("        <th align=\"left\">Elapsed Days 50% / 90% / 99%</th>");
+      out.println("        <td>" + df.format(timelinessHistogram.getPercentileDays(0.5)) + " / "
+          + df.format(timelinessHistogram.getPercentileDays(0.9)) + " / " + df.format(timelinessHistogram.getPercentileDays(0.99))
+          + "</th>");
+      out.println("      </tr>");
+    }
     out.println("    </table>");
 
   }
@@ -1302,7 +1313,15 @@ public class QualityReport
   public void printDocumentation(MessageBatch messageBatch, Set<PotentialIssue> potentialIssueFoundSet, PrintWriter printWriter)
   {
     initDocumentation(messageBatch);
+    printDocumentation(getPotentialIssueActionMap(potentialIssueFoundSet), printWriter);
+  }
 
+  /**
+   * Returns the profile's action for each of the issues found. Requires
+   * initDocumentation to have been called first.
+   */
+  protected Map<PotentialIssue, IssueAction> getPotentialIssueActionMap(Set<PotentialIssue> potentialIssueFoundSet)
+  {
     Map<PotentialIssue, IssueAction> potentialIssueActionMap = new HashMap<PotentialIssue, IssueAction>();
 
     for (PotentialIssueStatus potentialIssueStatus : potentialIssueStatusList)
@@ -1312,7 +1331,16 @@ public class QualityReport
         potentialIssueActionMap.put(potentialIssueStatus.getIssue(), potentialIssueStatus.getAction());
       }
     }
+    return potentialIssueActionMap;
+  }
 
+  /**
+   * Prints documentation for the given issues without touching the session,
+   * so may be called from a thread other than the one running the report once
+   * initDocumentation has been called.
+   */
+  protected void printDocumentation(Map<PotentialIssue, IssueAction> potentialIssueActionMap, PrintWriter printWriter)
+  {
     printWriter.println("<h2>Issues Found Documentation</h2>");
 
     for (Field field : fieldList)
@@ -10,7 +10,7 @@ package org.openimmunizationsoftware.dqa.quality;
 import java.util.HashMap;
 import java.util.Map;
 
-import org.openimmunizationsoftware.dqa.quality.model.ModelForm;
+import org.openimmunizationsoftware.dqa.quality.model.CompiledModel;
 
 public class QualityScoring
 {
@@ -38,26 +38,26 @@ public class QualityScoring
     return scoringSet;
   }
 
-  public QualityScoring(ModelForm modelForm) {
-
-    ScoringSet patExp = getScoringSet(PATIENT_EXPECTED);
-    ScoringSet patOpt = getScoringSet(PATIENT_OPTIONAL);
-    ScoringSet patRec = getScoringSet(PATIENT_RECOMMENDED);
-    ScoringSet patReq = getScoringSet(PATIENT_REQUIRED);
-    ScoringSet vacExp = getScoringSet(VACCINATION_EXPECTED);
-    ScoringSet vacOpt = getScoringSet(VACCINATION_OPTIONAL);
-    ScoringSet vacRec = getScoringSet(VACCINATION_RECOMMENDED);
-    ScoringSet vacReq = getScoringSet(VACCINATION_REQUIRED);
-
-    patReq.setSection(modelForm.getModelSection("completeness.patient.required"));
-    patExp.setSection(modelForm.getModelSection("completeness.patient.expected"));
-    patRec.setSection(modelForm.getModelSection("completeness.patient.recommended"));
-    patOpt.setSection(modelForm.getModelSection("completeness.patient.optional"));
-    vacReq.setSection(modelForm.getModelSection("completeness.vaccination.required"));
-    vacExp.setSection(modelForm.getModelSection("completeness.vaccination.expected"));
-    vacRec.setSection(modelForm.getModelSection("completeness.vaccination.recommended"));
-    vacOpt.setSection(modelForm.getModelSection("completeness.vaccination.optional"));
+  private ScoringSet[] scoringSetArray = null;
 
+  /**
+   * Scoring sets in the order of {@link CompiledModel#COMPLETENESS_SECTIONS},
+   * the first four are patient sets and the last four vaccination sets.
+   */
+  public ScoringSet[] getScoringSetArray()
+  {
+    return scoringSetArray;
+  }
+
+  public QualityScoring(CompiledModel compiledModel) {
+    String[] labels = { PATIENT_EXPECTED, PATIENT_OPTIONAL, PATIENT_RECOMMENDED, PATIENT_REQUIRED,
+        VACCINATION_EXPECTED, VACCINATION_OPTIONAL, VACCINATION_RECOMMENDED, VACCINATION_REQUIRED };
+    scoringSetArray = new ScoringSet[labels.length];
+    for (int i = 0; i < labels.length; i++)
+    {
+      scoringSetArray[i] = getScoringSet(labels[i]);
+      scoringSetArray[i].setSection(compiledModel.getCompletenessSection(i));
+    }
   }
 
 }
@@ -0,0 +1,134 @@
+/*
+ * Copyright 2013 by Dandelion Software & Research, Inc (DSR)
+ * 
+ * This application was written for immunization information system (IIS) community and has
+ * been released by DSR under an Apache 2 License with the hope that this software will be used
+ * to improve Public Health.  
+ */
+package org.openimmunizationsoftware.dqa.quality;
+
+import java.util.Date;
+
+/**
+ * Scores for a batch as they stood at one moment while the batch was still
+ * being collected. See {@link QualityCollector#snapshotScore()}.
+ */
+public class QualitySnapshot
+{
+  private Date snapshotDate = new Date();
+  private int messageCount = 0;
+  private int overallScore = 0;
+  private int completenessScore = 0;
+  private int completenessPatientScore = 0;
+  private int completenessVaccinationScore = 0;
+  private int completenessVaccineGroupScore = 0;
+  private int qualityScore = 0;
+  private int qualityErrorScore = 0;
+  private int qualityWarnScore = 0;
+  private int timelinessScore = 0;
+
+  public Date getSnapshotDate()
+  {
+    return snapshotDate;
+  }
+
+  public int getMessageCount()
+  {
+    return messageCount;
+  }
+
+  public void setMessageCount(int messageCount)
+  {
+    this.messageCount = messageCount;
+  }
+
+  public int getOverallScore()
+  {
+    return overallScore;
+  }
+
+  public void setOverallScore(int overallScore)
+  {
+    this.overallScore = overallScore;
+  }
+
+  public int getCompletenessScore()
+  {
+    return completenessScore;
+  }
+
+  public void setCompletenessScore(int completenessScore)
+  {
+    this.completenessScore = completenessScore;
+  }
+
+  public int getCompletenessPatientScore()
+  {
+    return completenessPatientScore;
+  }
+
+  public void setCompletenessPatientScore(int completenessPatientScore)
+  {
+    this.completenessPatientScore = completenessPatientScore;
+  }
+
+  public int getCompletenessVaccinationScore()
+  {
+    return completenessVaccinationScore;
+  }
+
+  public void setCompletenessVaccinationScore(int completenessVaccinationScore)
+  {
+    this.completenessVaccinationScore = completenessVaccinationScore;
+  }
+
+  public int getCompletenessVaccineGroupScore()
+  {
+    return completenessVaccineGroupScore;
+  }
+
+  public void setCompletenessVaccineGroupScore(int completenessVaccineGroupScore)
+  {
+    this.completenessVaccineGroupScore = completenessVaccineGroupScore;
+  }
+
+  public int getQualityScore()
+  {
+    return qualityScore;
+  }
+
+  public void setQualityScore(int qualityScore)
+  {
+    this.qualityScore = qualityScore;
+  }
+
+  public int getQualityErrorScore()
+  {
+    return qualityErrorScore;
+  }
+
+  public void setQualityErrorScore(int qualityErrorScore)
+  {
+    this.qualityErrorScore = qualityErrorScore;
+  }
+
+  public int getQualityWarnScore()
+  {
+    return qualityWarnScore;
+  }
+
+  public void setQualityWarnScore(int qualityWarnScore)
+  {
+    this.qualityWarnScore = qualityWarnScore;
+  }
+
+  public int getTimelinessScore()
+  {
+    return timelinessScore;
+  }
+
+  public void setTimelinessScore(int timelinessScore)
+  {
+    this.timelinessScore = timelinessScore;
+  }
+}
@@ -0,0 +1,442 @@
+/*
+ * Copyright 2013 by Dandelion Software & Research, Inc (DSR)
+ * 
+ * This application was written for immunization information system (IIS) community and has
+ * been released by DSR under an Apache 2 License with the hope that this software will be used
+ * to improve Public Health.  
+ */
+package org.openimmunizationsoftware.dqa.quality.model;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.openimmunizationsoftware.dqa.db.model.PotentialIssue;
+import org.openimmunizationsoftware.dqa.db.model.VaccineCvx;
+import org.openimmunizationsoftware.dqa.db.model.VaccineGroup;
+import org.openimmunizationsoftware.dqa.quality.ReportDenominator;
+
+/**
+ * A model form with every section, weight and threshold used while collecting
+ * and scoring already looked up, so that per message and scoring work does not
+ * search sections by name. Instances are shared between collectors and must
+ * not be changed.
+ */
+public class CompiledModel
+{
+  private static final long AS_THE_DAY_IS_LONG = 24 * 60 * 60 * 1000;
+
+  /**
+   * Completeness sections in the order the scoring sets are built: patient
+   * expected, optional, recommended and required, then the same for
+   * vaccinations.
+   */
+  public static final String[] COMPLETENESS_SECTIONS = { "completeness.patient.expected",
+      "completeness.patient.optional", "completeness.patient.recommended", "completeness.patient.required",
+      "completeness.vaccination.expected", "completeness.vaccination.optional",
+      "completeness.vaccination.recommended", "completeness.vaccination.required" };
+
+  private static final String[] VACCINE_GROUP_SECTIONS = { "completeness.vaccineGroup.expected",
+      "completeness.vaccineGroup.recommended", "completeness.vaccineGroup.unexpected" };
+
+  /**
+   * A vaccine group section with its groups resolved to the vaccines that
+   * count towards them.
+   */
+  public static class VaccineGroupSection
+  {
+    private final float weight;
+    private final float[] groupWeights;
+    private final VaccineCvx[][] groupVaccineCvx;
+    private final String invalidGroupName;
+
+    private VaccineGroupSection(ModelSection vgsection, Map<String, VaccineGroup> vaccineGroupMap) {
+      List<ModelSection> sections = vgsection.getSections();
+      weight = vgsection.getWeight();
+      groupWeights = new float[sections.size()];
+      groupVaccineCvx = new VaccineCvx[sections.size()][];
+      String invalidName = null;
+      for (int i = 0; i < sections.size(); i++)
+      {
+        ModelSection section = sections.get(i);
+        groupWeights[i] = section.getWeight();
+        VaccineGroup vaccineGroup = vaccineGroupMap.get(section.getName());
+        if (vaccineGroup == null)
+        {
+          if (invalidName == null)
+          {
+            invalidName = section.getName();
+          }
+          groupVaccineCvx[i] = new VaccineCvx[0];
+        } else
+        {
+          groupVaccineCvx[i] = vaccineGroup.getVaccineCvxList().toArray(new VaccineCvx[0]);
+        }
+      }
+      invalidGroupName = invalidName;
+    }
+
+    public float getWeight()
+    {
+      return weight;
+    }
+
+    public int getGroupCount()
+    {
+      return groupWeights.length;
+    }
+
+    public float getGroupWeight(int i)
+    {
+      return groupWeights[i];
+    }
+
+    public VaccineCvx[] getGroupVaccineCvx(int i)
+    {
+      return groupVaccineCvx[i];
+    }
+
+    /**
+     * Name of the first group not in the vaccine group map, or null
+     * if all are valid.
+     */
+    public String getInvalidGroupName()
+    {
+      return invalidGroupName;
+    }
+  }
+
+  private final ModelForm modelForm;
+  private final String reportDefinition;
+
+  private final float weightTimeliness;
+  private final float weightQuality;
+  private final float weightCompleteness;
+  private final float weightTimelinessEarly;
+  private final float weightTimelinessOnTime;
+  private final float weightTimelinessLate;
+  private final float weightTimelinessVeryLate;
+  private final float weightQualityErrors;
+  private final float weightQualityWarnings;
+  private final float weightCompletenessPatient;
+  private final float weightCompletenessVaccination;
+  private final float weightCompletenessVaccineGroup;
+  private final long timelinessEarly;
+  private final long timelinessOnTime;
+  private final long timelinessLate;
+  private final long timelinessVeryLate;
+  private final ModelSection[] completenessSections;
+  private final VaccineGroupSection[] vaccineGroupSections;
+
+  private final Map<PotentialIssue, Integer> scoredIssueIndexMap = new HashMap<PotentialIssue, Integer>();
+  private final float[] completenessSetWeights;
+  private final int[] rowStart;
+  private final int[] rowIssueIndex;
+  private final ReportDenominator[] rowDenominator;
+  private final float[] rowWeight;
+  private final boolean[] rowInvert;
+  private final Map<VaccineCvx, int[]> vaccineCvxGroupMap = new HashMap<VaccineCvx, int[]>();
+  private final int[] vaccineGroupStart;
+
+  /**
+   * Compiles the model form, resolving vaccine group sections by group code
+   * using the map given, normally the one held by the VaccineGroupManager.
+   */
+  public CompiledModel(ModelForm modelForm, String reportDefinition, Map<String, VaccineGroup> vaccineGroupMap) {
+    this.modelForm = modelForm;
+    this.reportDefinition = reportDefinition;
+    weightTimeliness = modelForm.getWeight("timeliness");
+    weightQuality = modelForm.getWeight("quality");
+    weightCompleteness = modelForm.getWeight("completeness");
+    weightTimelinessEarly = modelForm.getWeight("timeliness.early");
+    weightTimelinessOnTime = modelForm.getWeight("timeliness.onTime");
+    weightTimelinessLate = modelForm.getWeight("timeliness.late");
+    weightTimelinessVeryLate = modelForm.getWeight("timeliness.veryLate");
+    weightQualityErrors = modelForm.getWeight("quality.errors");
+    weightQualityWarnings = modelForm.getWeight("quality.warnings");
+    weightCompletenessPatient = modelForm.getWeight("completeness.patient");
+    weightCompletenessVaccination = modelForm.getWeight("completeness.vaccination");
+    weightCompletenessVaccineGroup = modelForm.getWeight("completeness.vaccineGroup");
+    timelinessEarly = AS_THE_DAY_IS_LONG * modelForm.getModelSection("timeliness.early").getDays();
+    timelinessOnTime = AS_THE_DAY_IS_LONG * modelForm.getModelSection("timeliness.onTime").getDays();
+    timelinessLate = AS_THE_DAY_IS_LONG * modelForm.getModelSection("timeliness.late").getDays();
+    timelinessVeryLate = AS_THE_DAY_IS_LONG * modelForm.getModelSection("timeliness.veryLate").getDays();
+    completenessSections = new ModelSection[COMPLETENESS_SECTIONS.length];
+    for (int i = 0; i < COMPLETENESS_SECTIONS.length; i++)
+    {
+      completenessSections[i] = modelForm.getModelSection(COMPLETENESS_SECTIONS[i]);
+    }
+    vaccineGroupSections = new VaccineGroupSection[VACCINE_GROUP_SECTIONS.length];
+    for (int i = 0; i < VACCINE_GROUP_SECTIONS.length; i++)
+    {
+      vaccineGroupSections[i] = new VaccineGroupSection(modelForm.getModelSection(VACCINE_GROUP_SECTIONS[i]),
+          vaccineGroupMap);
+    }
+
+    // completeness rows flattened the same way ScoringSet builds them
+    completenessSetWeights = new float[completenessSections.length];
+    rowStart = new int[completenessSections.length + 1];
+    List<ModelScore> rowScores = new ArrayList<ModelScore>();
+    List<Boolean> rowInverts = new ArrayList<Boolean>();
+    for (int i = 0; i < completenessSections.length; i++)
+    {
+      completenessSetWeights[i] = completenessSections[i].getWeight();
+      rowStart[i] = rowScores.size();
+      for (ModelScore score : completenessSections[i].getScores())
+      {
+        rowScores.add(score);
+        rowInverts.add(score.getWeight() < 0 ? false : score.isInvert());
+        for (ModelScore subScore : score.getScores())
+        {
+          rowScores.add(subScore);
+          rowInverts.add(subScore.isInvert());
+        }
+      }
+    }
+    rowStart[completenessSections.length] = rowScores.size();
+    rowIssueIndex = new int[rowScores.size()];
+    rowDenominator = new ReportDenominator[rowScores.size()];
+    rowWeight = new float[rowScores.size()];
+    rowInvert = new boolean[rowScores.size()];
+    for (int r = 0; r < rowScores.size(); r++)
+    {
+      ModelScore score = rowScores.get(r);
+      Integer issueIndex = scoredIssueIndexMap.get(score.getPotentialIssue());
+      if (issueIndex == null)
+      {
+        issueIndex = scoredIssueIndexMap.size();
+        scoredIssueIndexMap.put(score.getPotentialIssue(), issueIndex);
+      }
+      rowIssueIndex[r] = issueIndex;
+      rowDenominator[r] = score.getDenominator();
+      rowWeight[r] = score.getWeight();
+      rowInvert[r] = rowInverts.get(r);
+    }
+
+    vaccineGroupStart = new int[vaccineGroupSections.length + 1];
+    Map<VaccineCvx, List<Integer>> groupLists = new HashMap<VaccineCvx, List<Integer>>();
+    int groupIndex = 0;
+    for (int i = 0; i < vaccineGroupSections.length; i++)
+    {
+      vaccineGroupStart[i] = groupIndex;
+      for (int g = 0; g < vaccineGroupSections[i].getGroupCount(); g++)
+      {
+        for (VaccineCvx vaccineCvx : vaccineGroupSections[i].getGroupVaccineCvx(g))
+        {
+          List<Integer> groupList = groupLists.get(vaccineCvx);
+          if (groupList == null)
+          {
+            groupList = new ArrayList<Integer>();
+            groupLists.put(vaccineCvx, groupList);
+          }
+          groupList.add(groupIndex);
+        }
+        groupIndex++;
+      }
+    }
+    vaccineGroupStart[vaccineGroupSections.length] = groupIndex;
+    for (Map.Entry<VaccineCvx, List<Integer>> entry : groupLists.entrySet())
+    {
+      int[] groups = new int[entry.getValue().size()];
+      for (int g = 0; g < groups.length; g++)
+      {
+        groups[g] = entry.getValue().get(g);
+      }
+      vaccineCvxGroupMap.put(entry.getKey(), groups);
+    }
+  }
+
+  public ModelForm getModelForm()
+  {
+    return modelForm;
+  }
+
+  String getReportDefinition()
+  {
+    return reportDefinition;
+  }
+
+  public float getWeightTimeliness()
+  {
+    return weightTimeliness;
+  }
+
+  public float getWeightQuality()
+  {
+    return weightQuality;
+  }
+
+  public float getWeightCompleteness()
+  {
+    return weightCompleteness;
+  }
+
+  public float getWeightTimelinessEarly()
+  {
+    return weightTimelinessEarly;
+  }
+
+  public float getWeightTimelinessOnTime()
+  {
+    return weightTimelinessOnTime;
+  }
+
+  public float getWeightTimelinessLate()
+  {
+    return weightTimelinessLate;
+  }
+
+  public float getWeightTimelinessVeryLate()
+  {
+    return weightTimelinessVeryLate;
+  }
+
+  public float getWeightQualityErrors()
+  {
+    return weightQualityErrors;
+  }
+
+  public float getWeightQualityWarnings()
+  {
+    return weightQualityWarnings;
+  }
+
+  public float getWeightCompletenessPatient()
+  {
+    return weightCompletenessPatient;
+  }
+
+  public float getWeightCompletenessVaccination()
+  {
+    return weightCompletenessVaccination;
+  }
+
+  public float getWeightCompletenessVaccineGroup()
+  {
+    return weightCompletenessVaccineGroup;
+  }
+
+  /**
+   * Gap between administration and receipt, in milliseconds, below which a
+   * message is early.
+   */
+  public long getTimelinessEarly()
+  {
+    return timelinessEarly;
+  }
+
+  public long getTimelinessOnTime()
+  {
+    return timelinessOnTime;
+  }
+
+  public long getTimelinessLate()
+  {
+    return timelinessLate;
+  }
+
+  public long getTimelinessVeryLate()
+  {
+    return timelinessVeryLate;
+  }
+
+  /**
+   * Completeness section for the position in {@link #COMPLETENESS_SECTIONS}.
+   */
+  public ModelSection getCompletenessSection(int i)
+  {
+    return completenessSections[i];
+  }
+
+  public int getVaccineGroupSectionCount()
+  {
+    return vaccineGroupSections.length;
+  }
+
+  /**
+   * Vaccine group sections in order: expected, recommended, unexpected.
+   */
+  public VaccineGroupSection getVaccineGroupSection(int i)
+  {
+    return vaccineGroupSections[i];
+  }
+
+  /**
+   * Number of distinct issues counted by completeness rows.
+   */
+  public int getScoredIssueCount()
+  {
+    return scoredIssueIndexMap.size();
+  }
+
+  /**
+   * Position of the issue among the scored issues, or -1 if no completeness
+   * row counts it.
+   */
+  public int getScoredIssueIndex(PotentialIssue potentialIssue)
+  {
+    Integer issueIndex = scoredIssueIndexMap.get(potentialIssue);
+    return issueIndex == null ? -1 : issueIndex;
+  }
+
+  public float getCompletenessSetWeight(int i)
+  {
+    return completenessSetWeights[i];
+  }
+
+  /**
+   * First completeness row of the set, rows of set i run from
+   * getRowStart(i) up to getRowStart(i + 1).
+   */
+  public int getRowStart(int i)
+  {
+    return rowStart[i];
+  }
+
+  public int getRowIssueIndex(int r)
+  {
+    return rowIssueIndex[r];
+  }
+
+  public ReportDenominator getRowDenominator(int r)
+  {
+    return rowDenominator[r];
+  }
+
+  public float getRowWeight(int r)
+  {
+    return rowWeight[r];
+  }
+
+  public boolean isRowInvert(int r)
+  {
+    return rowInvert[r];
+  }
+
+  /**
+   * Number of vaccine groups across all vaccine group sections.
+   */
+  public int getVaccineGroupCount()
+  {
+    return vaccineGroupStart[vaccineGroupStart.length - 1];
+  }
+
+  /**
+   * First vaccine group of the section, groups of section i run from
+   * getVaccineGroupStart(i) up to getVaccineGroupStart(i + 1).
+   */
+  public int getVaccineGroupStart(int i)
+  {
+    return vaccineGroupStart[i];
+  }
+
+  /**
+   * Vaccine groups, across all sections, that the vaccine counts towards or
+   * null if none.
+   */
+  public int[] getVaccineCvxGroups(VaccineCvx vaccineCvx)
+  {
+    return vaccineCvxGroupMap.get(vaccineCvx);
+  }
+}
@@ -9,7 +9,9 @@ package org.openimmunizationsoftware.dqa.quality.model;
 
 import java.io.ByteArrayInputStream;
 import java.io.IOException;
+import java.util.HashMap;
 import java.util.List;
+import java.util.Map;
 
 import javax.xml.parsers.DocumentBuilder;
 import javax.xml.parsers.DocumentBuilderFactory;
@@ -17,8 +19,12 @@ import javax.xml.parsers.ParserConfigurationException;
 
 import org.openimmunizationsoftware.dqa.InitializationException;
 import org.openimmunizationsoftware.dqa.db.model.PotentialIssue;
+import org.openimmunizationsoftware.dqa.db.model.ReportTemplate;
 import org.openimmunizationsoftware.dqa.db.model.SubmitterProfile;
 import org.openimmunizationsoftware.dqa.manager.PotentialIssues;
+import org.openimmunizationsoftware.dqa.manager.Reload;
+import org.openimmunizationsoftware.dqa.manager.ReloadManager;
+import org.openimmunizationsoftware.dqa.manager.VaccineGroupManager;
 import org.openimmunizationsoftware.dqa.quality.ReportDenominator;
 import org.w3c.dom.Document;
 import org.w3c.dom.NamedNodeMap;
@@ -46,14 +52,61 @@ public class ModelFactory
     return modelFormDefault;
   }
 
+  private static final Map<Integer, CompiledModel> compiledModelMap = new HashMap<Integer, CompiledModel>();
+  private static boolean compiledModelReloadRegistered = false;
+
+  /**
+   * Returns the compiled model for the profile's report template. Models are
+   * kept per template and compiled again when the template definition changes
+   * or settings are reloaded.
+   */
+  public static CompiledModel getCompiledModel(SubmitterProfile profile)
+  {
+    ReportTemplate reportTemplate = profile.getReportTemplate();
+    String text = reportTemplate.getReportDefinition();
+    synchronized (compiledModelMap)
+    {
+      if (!compiledModelReloadRegistered)
+      {
+        ReloadManager.registerReload(new Reload() {
+          public void reload()
+          {
+            synchronized (compiledModelMap)
+            {
+              compiledModelMap.clear();
+              compiledModelReloadRegistered = false;
+            }
+          }
+        });
+        compiledModelReloadRegistered = true;
+      }
+      CompiledModel compiledModel = compiledModelMap.get(reportTemplate.getTemplateId());
+      if (compiledModel != null && compiledModel.getReportDefinition().equals(text))
+      {
+        return compiledModel;
+      }
+    }
+    CompiledModel compiledModel = new CompiledModel(parseModelForm(text), text, VaccineGroupManager.getVaccineGroupManager()
+        .getVaccineGroupMap());
+    synchronized (compiledModelMap)
+    {
+      compiledModelMap.put(reportTemplate.getTemplateId(), compiledModel);
+    }
+    return compiledModel;
+  }
+
   public static ModelForm createModelForm(SubmitterProfile profile)
+  {
+    return parseModelForm(profile.getReportTemplate().getReportDefinition());
+  }
+
+  private static ModelForm parseModelForm(String text)
   {
     try
     {
       ModelForm modelForm = new ModelForm();
       DocumentBuilderFactory docBuilderFactory = DocumentBuilderFactory.newInstance();
       DocumentBuilder docBuilder = docBuilderFactory.newDocumentBuilder();
-      String text = profile.getReportTemplate().getReportDefinition();
       Document doc = docBuilder.parse(new ByteArrayInputStream(text.getBytes()));
       doc.getDocumentElement().normalize();
       NodeList nodes = doc.getChildNodes();
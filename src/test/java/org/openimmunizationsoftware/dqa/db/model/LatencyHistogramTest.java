@@ -0,0 +1,83 @@
+package org.openimmunizationsoftware.dqa.db.model;
+
+import junit.framework.TestCase;
+
+public class LatencyHistogramTest extends TestCase
+{
+  private static final long MILLIS_PER_MINUTE = 60 * 1000;
+
+  public void testGetBucket()
+  {
+    for (long minutes = 0; minutes < 16; minutes++)
+    {
+      assertEquals(minutes, LatencyHistogram.getBucket(minutes));
+      assertEquals(minutes, LatencyHistogram.getBucketLimit((int) minutes));
+    }
+    assertEquals(16, LatencyHistogram.getBucket(16));
+    assertEquals(16, LatencyHistogram.getBucket(17));
+    assertEquals(17, LatencyHistogram.getBucket(18));
+    assertEquals(17, LatencyHistogram.getBucketLimit(16));
+    assertEquals(19, LatencyHistogram.getBucketLimit(17));
+  }
+
+  public void testBucketLimits()
+  {
+    // every bucket starts just after the one before it ends, and the limit is
+    // within an eighth of the smallest delay in the bucket
+    long previousLimit = -1;
+    int bucket = 0;
+    while (previousLimit < 365L * 24 * 60 * 100)
+    {
+      long first = previousLimit + 1;
+      long limit = LatencyHistogram.getBucketLimit(bucket);
+      assertTrue(limit >= first);
+      assertEquals(bucket, LatencyHistogram.getBucket(first));
+      assertEquals(bucket, LatencyHistogram.getBucket(limit));
+      assertTrue(limit - first <= first / 8);
+      previousLimit = limit;
+      bucket++;
+    }
+    assertEquals(LatencyHistogram.getBucket(Long.MAX_VALUE), LatencyHistogram.getBucket(Long.MAX_VALUE / 2));
+  }
+
+  public void testPercentile()
+  {
+    LatencyHistogram histogram = new LatencyHistogram();
+    assertEquals(0.0, histogram.getMedianDays(), 0.0);
+    for (int i = 0; i < 90; i++)
+    {
+      histogram.record(10 * MILLIS_PER_MINUTE);
+    }
+    for (int i = 0; i < 10; i++)
+    {
+      histogram.record(2 * 24 * 60 * MILLIS_PER_MINUTE);
+    }
+    histogram.record(-1);
+    assertEquals(101, histogram.getCount());
+    assertEquals(10 / (24.0 * 60), histogram.getMedianDays(), 0.0001);
+    assertEquals(2.0, histogram.getPercentileDays(0.99), 0.25);
+  }
+
+  public void testTextRoundTrip()
+  {
+    LatencyHistogram histogram = new LatencyHistogram();
+    histogram.record(0);
+    histogram.record(0);
+    histogram.record(5 * MILLIS_PER_MINUTE);
+    histogram.record(3000 * MILLIS_PER_MINUTE);
+    LatencyHistogram other = new LatencyHistogram();
+    other.record(5 * MILLIS_PER_MINUTE);
+    histogram.merge(other);
+
+    String text = histogram.toText();
+    assertEquals("0:2,5:2," + LatencyHistogram.getBucket(3000) + ":1", text);
+    LatencyHistogram read = LatencyHistogram.fromText(text);
+    assertEquals(5, read.getCount());
+    assertEquals(text, read.toText());
+    assertEquals(histogram.getPercentileDays(0.9), read.getPercentileDays(0.9), 0.0);
+
+    assertEquals(0, LatencyHistogram.fromText(null).getCount());
+    assertEquals(0, LatencyHistogram.fromText("").getCount());
+    assertEquals("3:4", LatencyHistogram.fromText("3:4,x:1,9999:1,7").toText());
+  }
+}
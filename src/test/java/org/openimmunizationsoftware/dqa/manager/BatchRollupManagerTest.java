@@ -0,0 +1,112 @@
+package org.openimmunizationsoftware.dqa.manager;
+
+import java.util.Calendar;
+import java.util.Date;
+import java.util.Iterator;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+import org.openimmunizationsoftware.dqa.db.model.BatchType;
+import org.openimmunizationsoftware.dqa.db.model.IssueAction;
+import org.openimmunizationsoftware.dqa.db.model.MessageBatch;
+
+public class BatchRollupManagerTest extends TestCase
+{
+  private static Date date(int year, int month, int day)
+  {
+    Calendar calendar = Calendar.getInstance();
+    calendar.clear();
+    calendar.set(year, month - 1, day);
+    return calendar.getTime();
+  }
+
+  public void testPeriodStartAndEnd()
+  {
+    Calendar calendar = Calendar.getInstance();
+    calendar.setTime(date(2013, 5, 15));
+    calendar.set(Calendar.HOUR_OF_DAY, 14);
+    Date afternoon = calendar.getTime();
+
+    assertEquals(date(2013, 5, 15), BatchRollupManager.getPeriodStart(BatchType.DAILY, afternoon));
+    assertEquals(date(2013, 5, 16), BatchRollupManager.getPeriodEnd(BatchType.DAILY, afternoon));
+    assertEquals(date(2013, 5, 1), BatchRollupManager.getPeriodStart(BatchType.MONTHLY, afternoon));
+    assertEquals(date(2013, 6, 1), BatchRollupManager.getPeriodEnd(BatchType.MONTHLY, afternoon));
+
+    Date weekStart = BatchRollupManager.getPeriodStart(BatchType.WEEKLY, afternoon);
+    calendar.setTime(weekStart);
+    assertEquals(calendar.getFirstDayOfWeek(), calendar.get(Calendar.DAY_OF_WEEK));
+    assertFalse(weekStart.after(afternoon));
+    Date weekEnd = BatchRollupManager.getPeriodEnd(BatchType.WEEKLY, afternoon);
+    assertTrue(weekEnd.after(afternoon));
+    calendar.add(Calendar.DAY_OF_MONTH, 7);
+    assertEquals(calendar.getTime(), weekEnd);
+  }
+
+  public void testIsRollup()
+  {
+    MessageBatch messageBatch = new MessageBatch();
+    messageBatch.setBatchType(BatchType.DAILY);
+    messageBatch.setBatchTitle("Daily batch");
+    assertFalse(BatchRollupManager.isRollup(messageBatch));
+    messageBatch.setBatchTitle(BatchRollupManager.ROLLUP_TITLE_PREFIX + "Daily 05/15/2013");
+    assertTrue(BatchRollupManager.isRollup(messageBatch));
+    messageBatch.setBatchType(BatchType.SUBMISSION);
+    assertFalse(BatchRollupManager.isRollup(messageBatch));
+  }
+
+  public void testRangePeriodsWholeMonth()
+  {
+    Map<Date, BatchType> periods = BatchRollupManager.getRangePeriods(date(2013, 5, 1), date(2013, 6, 1));
+    assertEquals(1, periods.size());
+    assertEquals(BatchType.MONTHLY, periods.get(date(2013, 5, 1)));
+  }
+
+  public void testRangePeriodsCoverRange()
+  {
+    Date rangeStart = date(2013, 4, 20);
+    Date rangeEnd = date(2013, 6, 12);
+    Map<Date, BatchType> periods = BatchRollupManager.getRangePeriods(rangeStart, rangeEnd);
+    assertEquals(BatchType.MONTHLY, periods.get(date(2013, 5, 1)));
+
+    // the periods follow each other without gaps from the start to the end
+    Date expectedStart = rangeStart;
+    int weekCount = 0;
+    for (Iterator<Map.Entry<Date, BatchType>> it = periods.entrySet().iterator(); it.hasNext();)
+    {
+      Map.Entry<Date, BatchType> period = it.next();
+      assertEquals(expectedStart, period.getKey());
+      if (period.getValue() == BatchType.WEEKLY)
+      {
+        weekCount++;
+      }
+      expectedStart = BatchRollupManager.getPeriodEnd(period.getValue(), period.getKey());
+    }
+    assertEquals(rangeEnd, expectedStart);
+    assertTrue(weekCount > 0);
+    assertTrue(periods.size() < 20);
+  }
+
+  public void testRangePeriodsEmpty()
+  {
+    assertEquals(0, BatchRollupManager.getRangePeriods(date(2013, 5, 1), date(2013, 5, 1)).size());
+  }
+
+  public void testAddToRollup()
+  {
+    MessageBatch rollupBatch = new MessageBatch();
+    for (int i = 0; i < 2; i++)
+    {
+      MessageBatch messageBatch = new MessageBatch();
+      messageBatch.getBatchReport().incMessageCount();
+      messageBatch.getBatchReport().incVaccinationAdministeredCount();
+      messageBatch.incBatchActionCount(IssueAction.ERROR);
+      BatchRollupManager.addToRollup(rollupBatch, messageBatch);
+    }
+    assertEquals(2, rollupBatch.getBatchReport().getMessageCount());
+    assertEquals(2, rollupBatch.getBatchReport().getVaccinationAdministeredCount());
+    assertEquals(1, rollupBatch.getBatchActionsMap().size());
+    assertEquals(2, rollupBatch.getBatchActions(IssueAction.ERROR).getActionCount());
+    assertSame(rollupBatch, rollupBatch.getBatchActions(IssueAction.ERROR).getMessageBatch());
+  }
+}
@@ -0,0 +1,101 @@
+package org.openimmunizationsoftware.dqa.manager;
+
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+import org.hibernate.Query;
+import org.hibernate.Session;
+import org.hibernate.SessionFactory;
+import org.hibernate.Transaction;
+import org.hibernate.cfg.AnnotationConfiguration;
+import org.hibernate.cfg.Configuration;
+import org.openimmunizationsoftware.dqa.db.model.BatchActions;
+import org.openimmunizationsoftware.dqa.db.model.IssueAction;
+import org.openimmunizationsoftware.dqa.db.model.MessageBatch;
+
+/**
+ * Runs against an in memory HSQL database with the schema created from the
+ * hbm mappings.
+ */
+public class BatchStatisticsWriterTest extends TestCase
+{
+  private SessionFactory factory = null;
+
+  @Override
+  protected void setUp() throws Exception
+  {
+    Configuration configuration = new AnnotationConfiguration().configure();
+    List<Object> c3p0Keys = new ArrayList<Object>();
+    for (Object key : configuration.getProperties().keySet())
+    {
+      if (key.toString().startsWith("hibernate.c3p0."))
+      {
+        c3p0Keys.add(key);
+      }
+    }
+    for (Object key : c3p0Keys)
+    {
+      configuration.getProperties().remove(key);
+    }
+    configuration.setProperty("hibernate.connection.driver_class", "org.hsqldb.jdbcDriver");
+    configuration.setProperty("hibernate.connection.url", "jdbc:hsqldb:mem:batchstatistics");
+    configuration.setProperty("hibernate.connection.username", "sa");
+    configuration.setProperty("connection.password", "");
+    configuration.setProperty("hibernate.dialect", "org.hibernate.dialect.HSQLDialect");
+    configuration.setProperty("hibernate.hbm2ddl.auto", "create-drop");
+    factory = configuration.buildSessionFactory();
+  }
+
+  @Override
+  protected void tearDown() throws Exception
+  {
+    factory.close();
+  }
+
+  private static long countRows(Session session, MessageBatch messageBatch)
+  {
+    Query query = session.createQuery("select count(*) from BatchActions where messageBatch = ?");
+    query.setParameter(0, messageBatch);
+    return ((Number) query.uniqueResult()).longValue();
+  }
+
+  public void testWriteTwice()
+  {
+    Session session = factory.openSession();
+    try
+    {
+      Transaction transaction = session.beginTransaction();
+      session.save(IssueAction.ERROR);
+      session.save(IssueAction.WARN);
+      MessageBatch messageBatch = new MessageBatch();
+      messageBatch.setBatchTitle("Test");
+      messageBatch.setStartDate(new Date());
+      session.save(messageBatch);
+      messageBatch.incBatchActionCount(IssueAction.ERROR);
+      messageBatch.incBatchActionCount(IssueAction.ERROR);
+      messageBatch.incBatchActionCount(IssueAction.WARN);
+
+      assertEquals(2, BatchStatisticsWriter.saveBatchStatistics(messageBatch, session));
+      assertEquals(2, countRows(session, messageBatch));
+      BatchActions errorActions = messageBatch.getBatchActions(IssueAction.ERROR);
+      BatchActions warnActions = messageBatch.getBatchActions(IssueAction.WARN);
+      assertTrue(errorActions.getBatchActionsId() != 0);
+      assertTrue(warnActions.getBatchActionsId() != 0);
+      assertTrue(errorActions.getBatchActionsId() != warnActions.getBatchActionsId());
+
+      messageBatch.incBatchActionCount(IssueAction.ERROR);
+      assertEquals(2, BatchStatisticsWriter.saveBatchStatistics(messageBatch, session));
+      assertEquals(2, countRows(session, messageBatch));
+      BatchActions stored = (BatchActions) session.get(BatchActions.class, errorActions.getBatchActionsId());
+      assertNotNull(stored);
+      assertEquals(3, stored.getActionCount());
+      transaction.commit();
+    } finally
+    {
+      session.close();
+    }
+  }
+}
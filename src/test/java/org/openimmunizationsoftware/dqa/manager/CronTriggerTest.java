@@ -0,0 +1,71 @@
+package org.openimmunizationsoftware.dqa.manager;
+
+import java.text.SimpleDateFormat;
+import java.util.Date;
+
+import junit.framework.TestCase;
+
+public class CronTriggerTest extends TestCase
+{
+  private static final SimpleDateFormat sdf = new SimpleDateFormat("yyyy-MM-dd HH:mm");
+
+  private static String next(String expression, String after) throws Exception
+  {
+    Date date = new CronTrigger(expression).getNextFireTime(sdf.parse(after));
+    return date == null ? null : sdf.format(date);
+  }
+
+  public void testMinutes() throws Exception
+  {
+    assertEquals("2013-01-15 10:31", next("* * * * *", "2013-01-15 10:30"));
+    assertEquals("2013-01-15 10:40", next("*/10 * * * *", "2013-01-15 10:30"));
+    assertEquals("2013-01-15 11:00", next("*/10 * * * *", "2013-01-15 10:55"));
+    assertEquals("2013-01-15 11:05", next("5,35 * * * *", "2013-01-15 10:35"));
+    assertEquals("2013-01-16 00:00", next("0 * * * *", "2013-01-15 23:59"));
+  }
+
+  public void testHours() throws Exception
+  {
+    assertEquals("2013-01-15 12:00", next("0 8-18/2 * * *", "2013-01-15 10:00"));
+    assertEquals("2013-01-16 08:00", next("0 8-18/2 * * *", "2013-01-15 18:00"));
+    assertEquals("2013-01-16 02:30", next("30 2 * * *", "2013-01-15 02:30"));
+  }
+
+  public void testDays() throws Exception
+  {
+    // 2013-01-15 is a Tuesday
+    assertEquals("2013-01-20 03:00", next("0 3 * * 0", "2013-01-15 10:00"));
+    assertEquals("2013-01-20 03:00", next("0 3 * * 7", "2013-01-15 10:00"));
+    assertEquals("2013-01-16 03:00", next("0 3 * * 1-5", "2013-01-15 10:00"));
+    assertEquals("2013-01-21 03:00", next("0 3 * * 1-5", "2013-01-18 10:00"));
+    assertEquals("2013-02-01 00:00", next("0 0 1 * *", "2013-01-15 10:00"));
+    assertEquals("2013-03-31 00:00", next("0 0 31 * *", "2013-02-15 10:00"));
+    // day of month or day of week
+    assertEquals("2013-01-20 00:00", next("0 0 1 * 0", "2013-01-15 10:00"));
+    assertEquals("2013-02-01 00:00", next("0 0 1 * 0", "2013-01-27 10:00"));
+  }
+
+  public void testMonths() throws Exception
+  {
+    assertEquals("2013-06-01 00:00", next("0 0 1 6 *", "2013-01-15 10:00"));
+    assertEquals("2014-06-01 00:00", next("0 0 1 6 *", "2013-06-01 00:00"));
+    assertEquals("2016-02-29 00:00", next("0 0 29 2 *", "2013-01-15 10:00"));
+    assertNull(next("0 0 30 2 *", "2013-01-15 10:00"));
+  }
+
+  public void testInvalid()
+  {
+    String[] invalid = { "* * * *", "60 * * * *", "* 24 * * *", "* * 0 * *", "* * * 13 *", "* * * * 8", "a * * * *" };
+    for (String expression : invalid)
+    {
+      try
+      {
+        new CronTrigger(expression);
+        fail("Expected '" + expression + "' to be rejected");
+      } catch (IllegalArgumentException iae)
+      {
+        // expected
+      }
+    }
+  }
+}
@@ -0,0 +1,51 @@
+package org.openimmunizationsoftware.dqa.manager;
+
+import junit.framework.TestCase;
+
+public class DuplicateMessageManagerTest extends TestCase
+{
+  private static final String MESSAGE = "MSH|^~\\&|EHR|CLINIC|DQA||20130115103000||VXU^V04^VXU_V04|ABC123|P|2.5.1|\r"
+      + "PID|1||1234^^^OIS^MR||Dundy^Bennett^A||20110614|M|\r"
+      + "RXA|0|1|20130110||08^HepB^CVX|0.5|mL|\r";
+
+  private static final String RESENT = "MSH|^~\\&|EHR|CLINIC|DQA||20130116080000||VXU^V04^VXU_V04|XYZ789|P|2.5.1|\n"
+      + "PID|1||1234^^^OIS^MR||Dundy^Bennett^A||20110614|M|\r\n"
+      + "\n"
+      + "RXA|0|1|20130110||08^HepB^CVX|0.5|mL|  \n";
+
+  public void testNormalizeMessage()
+  {
+    String normalized = DuplicateMessageManager.normalizeMessage(MESSAGE);
+    assertEquals("MSH|^~\\&|EHR|CLINIC|DQA||||VXU^V04^VXU_V04||P|2.5.1|\r"
+        + "PID|1||1234^^^OIS^MR||Dundy^Bennett^A||20110614|M|\r" + "RXA|0|1|20130110||08^HepB^CVX|0.5|mL|\r",
+        normalized);
+    assertEquals(normalized, DuplicateMessageManager.normalizeMessage(RESENT));
+    assertEquals(DuplicateMessageManager.hashMessage(normalized),
+        DuplicateMessageManager.hashMessage(DuplicateMessageManager.normalizeMessage(RESENT)));
+
+    String changed = DuplicateMessageManager.normalizeMessage(MESSAGE.replace("20130110", "20130111"));
+    assertFalse(normalized.equals(changed));
+    assertFalse(DuplicateMessageManager.hashMessage(normalized).equals(DuplicateMessageManager.hashMessage(changed)));
+    assertEquals(16, DuplicateMessageManager.hashMessage("").length());
+  }
+
+  public void testNormalizeOtherSeparator()
+  {
+    assertEquals("MSH#^~\\&#A#B#C#D##S#VXU###2.5.1\r",
+        DuplicateMessageManager.normalizeMessage("MSH#^~\\&#A#B#C#D#20130115#S#VXU#123##2.5.1"));
+  }
+
+  public void testReplaceAckMessageKey()
+  {
+    assertEquals("MSH|^~\\&|DQA|||||ACK|1|P|2.5.1|\rMSA|AA|NEW123\r",
+        DuplicateMessageManager.replaceAckMessageKey("MSH|^~\\&|DQA|||||ACK|1|P|2.5.1|\rMSA|AA|OLD456\r", "NEW123"));
+    assertEquals("MSH|^~\\&|DQA|||||ACK|1|P|2.5.1|\rMSA|AE|NEW123|Error\rERR|||\r",
+        DuplicateMessageManager.replaceAckMessageKey(
+            "MSH|^~\\&|DQA|||||ACK|1|P|2.5.1|\rMSA|AE|OLD456|Error\rERR|||\r", "NEW123"));
+    assertEquals("MSH|^~\\&|DQA|\rMSA|AA|NEW123",
+        DuplicateMessageManager.replaceAckMessageKey("MSH|^~\\&|DQA|\rMSA|AA|", "NEW123"));
+    assertEquals("MSH|^~\\&|DQA|\rERR|||\r",
+        DuplicateMessageManager.replaceAckMessageKey("MSH|^~\\&|DQA|\rERR|||\r", "NEW123"));
+    assertEquals("MSH|^~\\&|DQA|\rMSA", DuplicateMessageManager.replaceAckMessageKey("MSH|^~\\&|DQA|\rMSA", "NEW123"));
+  }
+}
@@ -0,0 +1,96 @@
+package org.openimmunizationsoftware.dqa.manager;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Random;
+
+import junit.framework.TestCase;
+
+public class ExternalIdSorterTest extends TestCase
+{
+  private static int countRunFiles()
+  {
+    File[] files = new File(System.getProperty("java.io.tmpdir")).listFiles();
+    int count = 0;
+    for (File file : files)
+    {
+      if (file.getName().startsWith("dqa-export-run"))
+      {
+        count++;
+      }
+    }
+    return count;
+  }
+
+  public void testMemoryRun() throws Exception
+  {
+    ExternalIdSorter sorter = new ExternalIdSorter(10);
+    sorter.add("b", 1, 1);
+    sorter.add("a", 2, 2);
+    sorter.add("a", 1, 3);
+    assertEquals(0, sorter.getRunCount());
+    assertTrue(sorter.next());
+    assertEquals(3, sorter.getId());
+    assertTrue(sorter.next());
+    assertEquals(2, sorter.getId());
+    assertTrue(sorter.next());
+    assertEquals(1, sorter.getId());
+    assertFalse(sorter.next());
+    sorter.close();
+  }
+
+  public void testMultipleRuns() throws Exception
+  {
+    int runFilesBefore = countRunFiles();
+    List<Integer> expected = new ArrayList<Integer>();
+    Random random = new Random(1);
+    ExternalIdSorter sorter = new ExternalIdSorter(7);
+    for (int id = 0; id < 100; id++)
+    {
+      // ids are chosen so their sorted order is key, then date, then id
+      int key = random.nextInt(5);
+      int date = random.nextInt(3);
+      expected.add(key * 1000000 + date * 1000 + id);
+      sorter.add(ExternalIdSorter.makeKey("k" + key, null), date, key * 1000000 + date * 1000 + id);
+    }
+    Collections.sort(expected);
+    assertEquals(100, sorter.getCount());
+    assertEquals(14, sorter.getRunCount());
+    assertEquals(runFilesBefore + 14, countRunFiles());
+    for (int id : expected)
+    {
+      assertTrue(sorter.next());
+      assertEquals(id, sorter.getId());
+    }
+    assertFalse(sorter.next());
+    assertEquals(15, sorter.getRunCount());
+    sorter.close();
+    assertEquals(0, sorter.getRunCount());
+    assertEquals(runFilesBefore, countRunFiles());
+  }
+
+  public void testAddAfterNext() throws Exception
+  {
+    ExternalIdSorter sorter = new ExternalIdSorter(2);
+    sorter.add("a", 1, 1);
+    sorter.next();
+    try
+    {
+      sorter.add("b", 1, 2);
+      fail("Expected ids to be refused once sorting has started");
+    } catch (IllegalStateException ise)
+    {
+      // expected
+    }
+    sorter.close();
+  }
+
+  public void testMakeKey()
+  {
+    // null sorts like an empty value and the separator keeps parts apart
+    assertEquals(ExternalIdSorter.makeKey("a", ""), ExternalIdSorter.makeKey("a", null));
+    assertTrue(ExternalIdSorter.makeKey("a", "z").compareTo(ExternalIdSorter.makeKey("ab", "a")) < 0);
+  }
+}
@@ -0,0 +1,83 @@
+package org.openimmunizationsoftware.dqa.quality;
+
+import junit.framework.TestCase;
+
+public class LongHashSetTest extends TestCase
+{
+  public void testAdd()
+  {
+    LongHashSet set = new LongHashSet();
+    assertTrue(set.add(5));
+    assertFalse(set.add(5));
+    assertTrue(set.add(-5));
+    assertTrue(set.add(0));
+    assertFalse(set.add(0));
+    assertEquals(3, set.size());
+    assertTrue(set.contains(5));
+    assertTrue(set.contains(-5));
+    assertTrue(set.contains(0));
+    assertFalse(set.contains(6));
+  }
+
+  public void testResize()
+  {
+    // many times the starting capacity, so the table grows several times and
+    // values are probed past each other
+    LongHashSet set = new LongHashSet();
+    for (long i = 1; i <= 10000; i++)
+    {
+      assertTrue(set.add(i * 31));
+    }
+    assertEquals(10000, set.size());
+    for (long i = 1; i <= 10000; i++)
+    {
+      assertTrue(set.contains(i * 31));
+      assertFalse(set.contains(i * 31 + 1));
+      assertFalse(set.add(i * 31));
+    }
+    assertEquals(10000, set.size());
+  }
+
+  public void testCollisions()
+  {
+    // values that only differ in their high bits, which the slot must still
+    // tell apart
+    LongHashSet set = new LongHashSet();
+    for (long i = 1; i <= 1000; i++)
+    {
+      assertTrue(set.add(i << 40));
+    }
+    for (long i = 1; i <= 1000; i++)
+    {
+      assertTrue(set.contains(i << 40));
+    }
+    assertFalse(set.contains(1001L << 40));
+    assertEquals(1000, set.size());
+  }
+
+  public void testAddAll()
+  {
+    LongHashSet set = new LongHashSet();
+    set.add(0);
+    set.add(1);
+    set.add(2);
+    LongHashSet other = new LongHashSet();
+    other.add(2);
+    other.add(3);
+    other.addAll(set);
+    assertEquals(4, other.size());
+    assertTrue(other.contains(0));
+    assertTrue(other.contains(1));
+    assertTrue(other.contains(3));
+  }
+
+  public void testHash()
+  {
+    long h = LongHashSet.HASH_START;
+    assertEquals(LongHashSet.hash(h, "abc"), LongHashSet.hash(h, "abc"));
+    assertFalse(LongHashSet.hash(h, "abc") == LongHashSet.hash(h, "abd"));
+    assertFalse(LongHashSet.hash(LongHashSet.hash(h, "ab"), "c") == LongHashSet.hash(LongHashSet.hash(h, "a"), "bc"));
+    assertFalse(LongHashSet.hash(h, (String) null) == LongHashSet.hash(h, ""));
+    assertFalse(LongHashSet.hash(h, 1L) == LongHashSet.hash(h, 2L));
+  }
+}
@@ -0,0 +1,229 @@
+package org.openimmunizationsoftware.dqa.quality;
+
+import java.util.Date;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+
+import org.openimmunizationsoftware.dqa.db.model.BatchReport;
+import org.openimmunizationsoftware.dqa.db.model.BatchType;
+import org.openimmunizationsoftware.dqa.db.model.IssueAction;
+import org.openimmunizationsoftware.dqa.db.model.IssueFound;
+import org.openimmunizationsoftware.dqa.db.model.MessageReceived;
+import org.openimmunizationsoftware.dqa.db.model.PotentialIssue;
+import org.openimmunizationsoftware.dqa.db.model.PotentialIssueStatus;
+import org.openimmunizationsoftware.dqa.db.model.SubmitterProfile;
+import org.openimmunizationsoftware.dqa.db.model.VaccineCvx;
+import org.openimmunizationsoftware.dqa.db.model.VaccineGroup;
+import org.openimmunizationsoftware.dqa.db.model.received.Vaccination;
+import org.openimmunizationsoftware.dqa.quality.model.CompiledModel;
+import org.openimmunizationsoftware.dqa.quality.model.ModelForm;
+import org.openimmunizationsoftware.dqa.quality.model.ModelScore;
+import org.openimmunizationsoftware.dqa.quality.model.ModelSection;
+
+import junit.framework.TestCase;
+
+public class QualityCollectorTest extends TestCase
+{
+  private static final long MILLIS_PER_DAY = 24 * 60 * 60 * 1000;
+
+  private PotentialIssue patientMissing = createIssue(1);
+  private PotentialIssue patientTestName = createIssue(2);
+  private PotentialIssue vaccinationMissing = createIssue(3);
+  private PotentialIssue messageError = createIssue(4);
+  private PotentialIssue[] issues = { patientMissing, patientTestName, vaccinationMissing, messageError };
+  private VaccineCvx hepB = createVaccineCvx("08");
+  private VaccineCvx mmr = createVaccineCvx("03");
+  private VaccineCvx flu = createVaccineCvx("88");
+  private VaccineCvx[] vaccines = { hepB, mmr, flu };
+
+  private static PotentialIssue createIssue(int issueId)
+  {
+    PotentialIssue potentialIssue = new PotentialIssue();
+    potentialIssue.setIssueId(issueId);
+    return potentialIssue;
+  }
+
+  private static VaccineCvx createVaccineCvx(String cvxCode)
+  {
+    VaccineCvx vaccineCvx = new VaccineCvx();
+    vaccineCvx.setCvxCode(cvxCode);
+    return vaccineCvx;
+  }
+
+  private static ModelSection addSection(ModelSection parent, String name, float weight, int days)
+  {
+    ModelSection section = new ModelSection();
+    section.setName(name);
+    section.setWeight(weight);
+    section.setDays(days);
+    parent.getSections().add(section);
+    return section;
+  }
+
+  private static ModelScore addScore(List<ModelScore> scores, PotentialIssue potentialIssue,
+      ReportDenominator denominator, float weight, boolean invert)
+  {
+    ModelScore score = new ModelScore();
+    score.setLabel("Issue " + potentialIssue.getIssueId());
+    score.setPotentialIssue(potentialIssue);
+    score.setDenominator(denominator);
+    score.setWeight(weight);
+    score.setInvert(invert);
+    scores.add(score);
+    return score;
+  }
+
+  private CompiledModel createCompiledModel()
+  {
+    ModelForm modelForm = new ModelForm();
+    ModelSection timeliness = addSection(modelForm, "timeliness", 0.3f, 0);
+    addSection(timeliness, "early", 1.0f, 2);
+    addSection(timeliness, "onTime", 0.7f, 7);
+    addSection(timeliness, "late", 0.3f, 30);
+    addSection(timeliness, "veryLate", 0.1f, 365);
+    ModelSection quality = addSection(modelForm, "quality", 0.3f, 0);
+    addSection(quality, "errors", 0.6f, 0);
+    addSection(quality, "warnings", 0.4f, 0);
+    ModelSection completeness = addSection(modelForm, "completeness", 0.4f, 0);
+    ModelSection patient = addSection(completeness, "patient", 0.5f, 0);
+    ModelSection required = addSection(patient, "required", 0.8f, 0);
+    addScore(required.getScores(), patientMissing, ReportDenominator.PATIENT_COUNT, 0.6f, true);
+    addScore(required.getScores(), patientTestName, ReportDenominator.PATIENT_COUNT, -0.2f, false);
+    addSection(patient, "expected", 0.2f, 0);
+    addSection(patient, "recommended", 0, 0);
+    addSection(patient, "optional", 0, 0);
+    ModelSection vaccination = addSection(completeness, "vaccination", 0.3f, 0);
+    required = addSection(vaccination, "required", 1.0f, 0);
+    ModelScore score = addScore(required.getScores(), vaccinationMissing, ReportDenominator.VACCINATION_COUNT, 0.8f, true);
+    addScore(score.getScores(), messageError, ReportDenominator.VACCINATION_COUNT, -0.2f, false);
+    addSection(vaccination, "expected", 0, 0);
+    addSection(vaccination, "recommended", 0, 0);
+    addSection(vaccination, "optional", 0, 0);
+    ModelSection vaccineGroup = addSection(completeness, "vaccineGroup", 0.2f, 0);
+    ModelSection expected = addSection(vaccineGroup, "expected", 1.0f, 0);
+    addSection(expected, "HepB", 1.0f, 0);
+    addSection(expected, "MMR", 1.0f, 0);
+    addSection(vaccineGroup, "recommended", 0, 0);
+    ModelSection unexpected = addSection(vaccineGroup, "unexpected", -0.5f, 0);
+    addSection(unexpected, "Flu", 1.0f, 0);
+
+    Map<String, VaccineGroup> vaccineGroupMap = new HashMap<String, VaccineGroup>();
+    vaccineGroupMap.put("HepB", createVaccineGroup("HepB", hepB));
+    vaccineGroupMap.put("MMR", createVaccineGroup("MMR", mmr));
+    vaccineGroupMap.put("Flu", createVaccineGroup("Flu", flu));
+    return new CompiledModel(modelForm, "", vaccineGroupMap);
+  }
+
+  private static VaccineGroup createVaccineGroup(String groupCode, VaccineCvx vaccineCvx)
+  {
+    VaccineGroup vaccineGroup = new VaccineGroup();
+    vaccineGroup.setGroupCode(groupCode);
+    vaccineGroup.getVaccineCvxList().add(vaccineCvx);
+    return vaccineGroup;
+  }
+
+  private SubmitterProfile createProfile()
+  {
+    SubmitterProfile profile = new SubmitterProfile();
+    HashMap<PotentialIssue, PotentialIssueStatus> statusMap = new HashMap<PotentialIssue, PotentialIssueStatus>();
+    statusMap.put(messageError, createStatus(messageError, IssueAction.ERROR));
+    statusMap.put(patientTestName, createStatus(patientTestName, IssueAction.WARN));
+    statusMap.put(patientMissing, createStatus(patientMissing, IssueAction.ACCEPT));
+    profile.setPotentialIssueStatusMap(statusMap);
+    return profile;
+  }
+
+  private static PotentialIssueStatus createStatus(PotentialIssue potentialIssue, IssueAction issueAction)
+  {
+    PotentialIssueStatus potentialIssueStatus = new PotentialIssueStatus();
+    potentialIssueStatus.setIssue(potentialIssue);
+    potentialIssueStatus.setAction(issueAction);
+    return potentialIssueStatus;
+  }
+
+  private MessageReceived createMessage(Random random, int messageNumber)
+  {
+    MessageReceived messageReceived = new MessageReceived();
+    messageReceived.setIssueAction(IssueAction.ACCEPT);
+    messageReceived.setReceivedDate(new Date());
+    messageReceived.getPatient().getIdSubmitter().setNumber("P" + random.nextInt(40));
+    for (PotentialIssue potentialIssue : issues)
+    {
+      if (random.nextInt(5) == 0)
+      {
+        IssueFound issueFound = new IssueFound();
+        issueFound.setIssue(potentialIssue);
+        messageReceived.getIssuesFound().add(issueFound);
+      }
+    }
+    int vaccinationCount = random.nextInt(3);
+    for (int i = 0; i < vaccinationCount; i++)
+    {
+      Vaccination vaccination = new Vaccination();
+      vaccination.setIdSubmitter("V" + messageNumber + "-" + i);
+      if (random.nextInt(4) > 0)
+      {
+        vaccination.getInformationSource().setCode(Vaccination.INFO_SOURCE_ADMIN);
+        vaccination.setAdminDate(new Date(messageReceived.getReceivedDate().getTime() - random.nextInt(60)
+            * MILLIS_PER_DAY));
+        vaccination.setVaccineCvx(vaccines[random.nextInt(vaccines.length)]);
+      }
+      messageReceived.getVaccinations().add(vaccination);
+    }
+    return messageReceived;
+  }
+
+  private static void assertSameScores(QualitySnapshot snapshot, BatchReport report)
+  {
+    assertEquals(report.getMessageCount(), snapshot.getMessageCount());
+    assertEquals(report.getTimelinessScore(), snapshot.getTimelinessScore());
+    assertEquals(report.getQualityErrorScore(), snapshot.getQualityErrorScore());
+    assertEquals(report.getQualityWarnScore(), snapshot.getQualityWarnScore());
+    assertEquals(report.getQualityScore(), snapshot.getQualityScore());
+    assertEquals(report.getCompletenessPatientScore(), snapshot.getCompletenessPatientScore());
+    assertEquals(report.getCompletenessVaccinationScore(), snapshot.getCompletenessVaccinationScore());
+    assertEquals(report.getCompletenessVaccineGroupScore(), snapshot.getCompletenessVaccineGroupScore());
+    assertEquals(report.getCompletenessScore(), snapshot.getCompletenessScore());
+    assertEquals(report.getOverallScore(), snapshot.getOverallScore());
+  }
+
+  public void testSnapshotScoreMatchesScore()
+  {
+    CompiledModel compiledModel = createCompiledModel();
+    Random random = new Random(1);
+    for (int messageCount = 1; messageCount <= 200; messageCount *= 3)
+    {
+      QualityCollector collector = new QualityCollector("Test", BatchType.SUBMISSION, createProfile(),
+          compiledModel);
+      for (int i = 0; i < messageCount; i++)
+      {
+        collector.registerProcessedMessage(createMessage(random, i));
+      }
+      QualitySnapshot snapshot = collector.snapshotScore();
+      collector.score();
+      assertSameScores(snapshot, collector.getMessageBatch().getBatchReport());
+    }
+  }
+
+  public void testSnapshotScoreAfterMerge()
+  {
+    CompiledModel compiledModel = createCompiledModel();
+    Random random = new Random(2);
+    QualityCollector collector = new QualityCollector("Test", BatchType.SUBMISSION, createProfile(), compiledModel);
+    QualityCollector shard = collector.createShard();
+    for (int i = 0; i < 100; i++)
+    {
+      (i % 2 == 0 ? collector : shard).registerProcessedMessage(createMessage(random, i));
+    }
+    collector.merge(shard);
+    QualitySnapshot snapshot = collector.snapshotScore();
+    collector.score();
+    BatchReport report = collector.getMessageBatch().getBatchReport();
+    assertEquals(100, report.getMessageCount());
+    assertTrue(report.getCompletenessScore() > 0 && report.getCompletenessScore() < 100);
+    assertTrue(report.getQualityScore() > 0 && report.getQualityScore() < 100);
+    assertSameScores(snapshot, report);
+  }
+}